@@ -0,0 +1,143 @@
+// BinaryProtocol.java
+package messenger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Length-prefixed binary framing, used by both ends once negotiated.
+//
+// The client opens with the text line "PROTOCOL:binary:<version>" before
+// logging in. A server that speaks that version answers "PROTOCOL_OK:<version>"
+// and from then on both sides exchange frames; otherwise it answers
+// "PROTOCOL_UNSUPPORTED:<version>" and the connection stays on the text protocol.
+// Appending ":deflate" to the request asks for compression; the server
+// confirms with "PROTOCOL_OK:<version>:deflate" and may then send large
+// frames as COMPRESSED.
+//
+// Frame: int32 body length, then the body: one type byte followed by that
+// type's fields. Integers are big-endian, booleans one byte, strings an
+// int32 byte count followed by UTF-8, so content may contain any character.
+final class BinaryProtocol {
+    static final int VERSION = 1;
+    static final String HANDSHAKE = "PROTOCOL:binary:";
+    static final String HANDSHAKE_OK = "PROTOCOL_OK:";
+    static final String HANDSHAKE_UNSUPPORTED = "PROTOCOL_UNSUPPORTED:";
+    static final String DEFLATE = ":deflate";
+
+    // Client to server
+    static final byte LOGIN = 1;              // name, password
+    static final byte REGISTER = 2;           // name, password
+    static final byte PRIVATE = 3;            // recipient, content
+    static final byte GET_CONTACTS = 4;
+    static final byte GET_HISTORY_PAGE = 5;   // user, int limit, long beforeId
+    static final byte GET_HISTORY_SINCE = 6;  // user, long afterId, int limit
+    static final byte START_SESSION = 7;
+    static final byte RESUME = 8;             // token, long pushes received
+    static final byte LOGOUT = 9;
+    static final byte SEARCH = 10;            // query, contact ("" = all), int limit, int offset
+    static final byte CREATE_GROUP = 11;      // name, int count, then count x member
+    static final byte GROUP = 12;             // group, content
+    static final byte GET_GROUPS = 13;
+    static final byte GET_GROUP_HISTORY = 14; // group, int limit, long beforeId
+    static final byte PING = 15;              // answered with SERVER_PONG
+    static final byte PONG = 16;              // answer to SERVER_PING
+
+    // Server to client
+    static final byte AUTH_SUCCESS = 64;
+    static final byte AUTH_FAILED = 65;
+    static final byte REGISTER_SUCCESS = 66;
+    static final byte REGISTER_FAILED = 67;
+    static final byte PRIVATE_MSG = 68;       // sender, content
+    static final byte CONTACTS = 69;          // int count, then count x (name, boolean online)
+    static final byte ONLINE_UPDATE = 70;     // same as CONTACTS, changed users only
+    static final byte HISTORY_PAGE = 71;      // user, long cursor, boolean hasMore, int count,
+                                              // then count x (long id, sender, long epochSeconds, message)
+    static final byte HISTORY_SINCE = 72;     // same as HISTORY_PAGE
+    static final byte SESSION = 73;           // token, long pushes sent so far
+    static final byte RESUMED = 74;
+    static final byte RESUME_FAILED = 75;
+    static final byte PENDING_MESSAGES = 76;  // int count, then count x (long id, sender, long epochSeconds, message)
+    static final byte SEARCH_RESULTS = 77;    // int offset, boolean hasMore, int count,
+                                              // then count x (long id, contact, sender, long epochSeconds, snippet)
+    static final byte GROUP_MSG = 78;         // group, sender, content
+    static final byte GROUPS = 79;            // int count, then count x (name, int members, members x name)
+    static final byte GROUP_CREATED = 80;     // name
+    static final byte GROUP_FAILED = 81;      // name
+    static final byte GROUP_HISTORY = 82;     // same as HISTORY_PAGE, with the group in place of the user
+    static final byte THROTTLED = 83;         // command, int retryAfterMillis; the command was not run
+    static final byte SERVER_PING = 84;       // answer with PONG
+    static final byte SERVER_PONG = 85;       // answer to PING
+    static final byte COMPRESSED = 127;       // int body length, then that body deflated
+
+    private BinaryProtocol() {
+    }
+
+    // Builds one frame, length prefix included
+    static class FrameWriter {
+        private byte[] bytes = new byte[64];
+        private int length;
+
+        FrameWriter(byte type) {
+            length = 4;
+            bytes[length++] = type;
+        }
+
+        FrameWriter putString(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            putInt(utf8.length);
+            ensureCapacity(utf8.length);
+            System.arraycopy(utf8, 0, bytes, length, utf8.length);
+            length += utf8.length;
+            return this;
+        }
+
+        FrameWriter putInt(int value) {
+            ensureCapacity(4);
+            bytes[length++] = (byte) (value >>> 24);
+            bytes[length++] = (byte) (value >>> 16);
+            bytes[length++] = (byte) (value >>> 8);
+            bytes[length++] = (byte) value;
+            return this;
+        }
+
+        FrameWriter putLong(long value) {
+            putInt((int) (value >>> 32));
+            return putInt((int) value);
+        }
+
+        FrameWriter putBoolean(boolean value) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) (value ? 1 : 0);
+            return this;
+        }
+
+        ByteBuffer toBuffer() {
+            ByteBuffer frame = ByteBuffer.wrap(bytes, 0, length);
+            frame.putInt(0, length - 4);
+            return frame;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+    }
+
+    // Field readers for a frame body positioned after the type byte
+
+    static String getString(ByteBuffer body) {
+        int size = body.getInt();
+        if (size < 0 || size > body.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + size);
+        }
+        String value = new String(body.array(), body.arrayOffset() + body.position(), size, StandardCharsets.UTF_8);
+        body.position(body.position() + size);
+        return value;
+    }
+
+    static boolean getBoolean(ByteBuffer body) {
+        return body.get() != 0;
+    }
+}
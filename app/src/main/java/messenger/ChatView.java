@@ -0,0 +1,304 @@
+// ChatView.java
+package messenger;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The open conversation as a list of message bubbles. JList only asks the
+// renderer for the rows it paints, and the renderer draws each bubble
+// directly instead of building styled text, so a long conversation costs one
+// list entry per message rather than a growing document. Wrapped lines and
+// row heights are measured once per message and list width and then cached;
+// fonts and colours are shared by every row. Only used on the event
+// dispatch thread.
+@SuppressWarnings("serial")
+class ChatView extends JList<MessageCache.Message> {
+    private static final Font TEXT_FONT = new Font("Segoe UI", Font.PLAIN, 14);
+    private static final Font HEADER_FONT = new Font("Segoe UI", Font.PLAIN, 12);
+    private static final Font WELCOME_FONT = new Font("Segoe UI", Font.ITALIC, 14);
+    private static final Color BACKGROUND = new Color(248, 249, 250);
+    private static final Color SELECTED_BACKGROUND = new Color(228, 230, 235);
+    private static final Color HEADER_COLOR = new Color(108, 117, 125);
+    private static final Color MY_BUBBLE = new Color(0, 123, 255);
+    private static final Color THEIR_BUBBLE = new Color(233, 236, 239);
+    private static final String WELCOME = "Welcome to the chat!";
+
+    private static final int SIDE_MARGIN = 15;
+    private static final int ROW_GAP = 10;
+    private static final int HEADER_GAP = 2;
+    private static final int BUBBLE_PAD_X = 10;
+    private static final int BUBBLE_PAD_Y = 6;
+    private static final int BUBBLE_ARC = 14;
+    // Bubbles take at most this share of the width
+    private static final double BUBBLE_SHARE = 0.7;
+    // Width used before the list has been laid out
+    private static final int MIN_WIDTH = 200;
+
+    private final Model model = new Model();
+    private final Map<MessageCache.Message, Layout> layouts = new HashMap<>();
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm");
+    private final FontMetrics textMetrics = getFontMetrics(TEXT_FONT);
+    private final FontMetrics headerMetrics = getFontMetrics(HEADER_FONT);
+    private int layoutWidth = -1;
+    private String me;
+    private boolean scrollQueued;
+
+    // Wrapped text of one message at the current width
+    private static class Layout {
+        final List<String> lines;
+        final int textWidth;
+        final int height;
+
+        Layout(List<String> lines, int textWidth, int height) {
+            this.lines = lines;
+            this.textWidth = textWidth;
+            this.height = height;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class Model extends AbstractListModel<MessageCache.Message> {
+        private final List<MessageCache.Message> messages = new ArrayList<>();
+
+        @Override
+        public int getSize() {
+            return messages.size();
+        }
+
+        @Override
+        public MessageCache.Message getElementAt(int index) {
+            return messages.get(index);
+        }
+
+        void set(List<MessageCache.Message> confirmed, List<MessageCache.Message> unsynced) {
+            int oldSize = messages.size();
+            messages.clear();
+            if (oldSize > 0) {
+                fireIntervalRemoved(this, 0, oldSize - 1);
+            }
+            messages.addAll(confirmed);
+            messages.addAll(unsynced);
+            if (!messages.isEmpty()) {
+                fireIntervalAdded(this, 0, messages.size() - 1);
+            }
+        }
+
+        void append(MessageCache.Message message) {
+            messages.add(message);
+            fireIntervalAdded(this, messages.size() - 1, messages.size() - 1);
+        }
+
+        void prepend(List<MessageCache.Message> page) {
+            if (!page.isEmpty()) {
+                messages.addAll(0, page);
+                fireIntervalAdded(this, 0, page.size() - 1);
+            }
+        }
+
+        // Every row needs measuring again
+        void invalidateRows() {
+            if (!messages.isEmpty()) {
+                fireContentsChanged(this, 0, messages.size() - 1);
+            }
+        }
+    }
+
+    ChatView() {
+        setModel(model);
+        setCellRenderer(new BubbleRenderer());
+        setBackground(BACKGROUND);
+        setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                if (getWidth() != layoutWidth) {
+                    model.invalidateRows();
+                }
+            }
+        });
+    }
+
+    // The logged-in user, whose messages go on the right
+    void setMe(String username) {
+        me = username;
+    }
+
+    // Shows a whole conversation, scrolled to the newest message
+    void setMessages(List<MessageCache.Message> confirmed, List<MessageCache.Message> unsynced) {
+        layouts.clear();
+        model.set(confirmed, unsynced);
+        scrollToBottom();
+    }
+
+    void clear() {
+        setMessages(new ArrayList<>(), new ArrayList<>());
+    }
+
+    void append(MessageCache.Message message) {
+        model.append(message);
+        scrollToBottom();
+    }
+
+    // Older messages go on top; the caller keeps the scroll position
+    void prepend(List<MessageCache.Message> page) {
+        model.prepend(page);
+    }
+
+    void scrollToBottom() {
+        // After the list has been revalidated for the new rows; a burst of
+        // appends scrolls once
+        if (scrollQueued) {
+            return;
+        }
+        scrollQueued = true;
+        SwingUtilities.invokeLater(() -> {
+            scrollQueued = false;
+            int last = model.getSize() - 1;
+            if (last >= 0) {
+                ensureIndexIsVisible(last);
+            }
+        });
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        if (model.getSize() == 0) {
+            Graphics2D g2 = (Graphics2D) g;
+            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g2.setFont(WELCOME_FONT);
+            g2.setColor(HEADER_COLOR);
+            FontMetrics metrics = g2.getFontMetrics();
+            g2.drawString(WELCOME, (getWidth() - metrics.stringWidth(WELCOME)) / 2, ROW_GAP + metrics.getAscent());
+        }
+    }
+
+    private Layout measure(MessageCache.Message message) {
+        int width = getWidth();
+        if (width != layoutWidth) {
+            layouts.clear();
+            layoutWidth = width;
+        }
+        Layout layout = layouts.get(message);
+        if (layout == null) {
+            int maxTextWidth = Math.max(1, (int) ((Math.max(width, MIN_WIDTH) - 2 * SIDE_MARGIN) * BUBBLE_SHARE) - 2 * BUBBLE_PAD_X);
+            List<String> lines = wrap(message.content, textMetrics, maxTextWidth);
+            int textWidth = 0;
+            for (String line : lines) {
+                textWidth = Math.max(textWidth, textMetrics.stringWidth(line));
+            }
+            int height = ROW_GAP + headerMetrics.getHeight() + HEADER_GAP
+                    + lines.size() * textMetrics.getHeight() + 2 * BUBBLE_PAD_Y;
+            layout = new Layout(lines, textWidth, height);
+            layouts.put(message, layout);
+        }
+        return layout;
+    }
+
+    // Greedy word wrap; words wider than a line are broken between characters
+    static List<String> wrap(String text, FontMetrics metrics, int width) {
+        List<String> lines = new ArrayList<>();
+        int space = metrics.charWidth(' ');
+        for (String paragraph : text.split("\n", -1)) {
+            StringBuilder line = new StringBuilder();
+            int lineWidth = 0;
+            for (String word : paragraph.split(" ", -1)) {
+                int wordWidth = metrics.stringWidth(word);
+                if (line.length() > 0 && lineWidth + space + wordWidth <= width) {
+                    line.append(' ').append(word);
+                    lineWidth += space + wordWidth;
+                    continue;
+                }
+                if (line.length() > 0) {
+                    lines.add(line.toString());
+                    line.setLength(0);
+                }
+                while (wordWidth > width && word.length() > 1) {
+                    int cut = 0;
+                    int cutWidth = 0;
+                    while (cut < word.length() - 1 && cutWidth + metrics.charWidth(word.charAt(cut)) <= width) {
+                        cutWidth += metrics.charWidth(word.charAt(cut));
+                        cut++;
+                    }
+                    cut = Math.max(cut, 1);
+                    lines.add(word.substring(0, cut));
+                    word = word.substring(cut);
+                    wordWidth = metrics.stringWidth(word);
+                }
+                line.append(word);
+                lineWidth = wordWidth;
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    // One component paints every visible row in turn
+    @SuppressWarnings("serial")
+    private class BubbleRenderer extends JComponent implements ListCellRenderer<MessageCache.Message> {
+        private MessageCache.Message message;
+        private Layout layout;
+        private boolean selected;
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends MessageCache.Message> list,
+                                                      MessageCache.Message value, int index,
+                                                      boolean isSelected, boolean cellHasFocus) {
+            message = value;
+            layout = measure(value);
+            selected = isSelected;
+            return this;
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            return new Dimension(1, layout.height);
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            Graphics2D g2 = (Graphics2D) g;
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g2.setColor(selected ? SELECTED_BACKGROUND : BACKGROUND);
+            g2.fillRect(0, 0, getWidth(), getHeight());
+
+            boolean mine = message.sender.equals(me);
+            String header = (mine ? "You" : message.sender) + " • " + timeFormat.format(new Date(message.sentMillis));
+            int bubbleWidth = layout.textWidth + 2 * BUBBLE_PAD_X;
+            int y = ROW_GAP;
+
+            g2.setFont(HEADER_FONT);
+            g2.setColor(HEADER_COLOR);
+            int headerX = mine ? getWidth() - SIDE_MARGIN - headerMetrics.stringWidth(header) : SIDE_MARGIN;
+            g2.drawString(header, headerX, y + headerMetrics.getAscent());
+            y += headerMetrics.getHeight() + HEADER_GAP;
+
+            int bubbleX = mine ? getWidth() - SIDE_MARGIN - bubbleWidth : SIDE_MARGIN;
+            int bubbleHeight = layout.lines.size() * textMetrics.getHeight() + 2 * BUBBLE_PAD_Y;
+            g2.setColor(mine ? MY_BUBBLE : THEIR_BUBBLE);
+            g2.fillRoundRect(bubbleX, y, bubbleWidth, bubbleHeight, BUBBLE_ARC, BUBBLE_ARC);
+
+            g2.setFont(TEXT_FONT);
+            g2.setColor(mine ? Color.WHITE : Color.BLACK);
+            int baseline = y + BUBBLE_PAD_Y + textMetrics.getAscent();
+            for (String line : layout.lines) {
+                g2.drawString(line, bubbleX + BUBBLE_PAD_X, baseline);
+                baseline += textMetrics.getHeight();
+            }
+        }
+    }
+}
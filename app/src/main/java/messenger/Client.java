@@ -0,0 +1,831 @@
+// Client.java
+package messenger;
+
+import javax.swing.*;
+import javax.swing.border.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+public class Client {
+    private static String SERVER_IP = "localhost"; // Default, can be changed
+    private static final int SERVER_PORT = 12345;
+    
+    private JFrame frame;
+    private JPanel mainPanel;
+    private CardLayout cardLayout;
+    private JPanel loginPanel;
+    private JPanel chatPanel;
+    private ChatView chatView;
+    private JTextField messageField;
+    private JList<String> contactsList;
+    private DefaultListModel<String> contactsModel;
+    private Map<String, Boolean> contactStatus = new HashMap<>();
+    private volatile ServerConnection server;
+    private String username;
+    // Kept for logging in again when a session can't be resumed
+    private String password;
+    private String currentChatWith;
+    private static final int HISTORY_PAGE_SIZE = 50;
+    // Reconnect delays double from the first to the last
+    private static final long RECONNECT_MIN_DELAY_MS = 500;
+    private static final long RECONNECT_MAX_DELAY_MS = 30000;
+    private JScrollPane chatScroll;
+    private boolean loadingOlderMessages;
+    // Up to 50 conversations of 1000 messages each
+    private final MessageCache messageCache = new MessageCache(50, 1000);
+    // Messages not read yet, per contact; shown as badges in the contact list
+    // and as a count in the window title
+    private final Map<String, Integer> unread = new HashMap<>();
+    private int unreadTotal;
+    private boolean reconnecting;
+    // Network events reach the UI in one batch per frame
+    private static final int UI_FRAME_MS = 16;
+    private final EdtBatcher uiUpdates = new EdtBatcher(UI_FRAME_MS, this::afterUiBatch);
+    // Connecting, logging in and every request to the server run here, in
+    // the order they were made, so a slow or unreachable server never
+    // blocks the event dispatch thread
+    private final ExecutorService network = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "server-io");
+        t.setDaemon(true);
+        return t;
+    });
+    private boolean authenticating;
+
+    public static void main(String[] args) {
+        // Handle command line arguments for server IP
+        if (args.length > 0) {
+            SERVER_IP = args[0];
+        }
+        
+        SwingUtilities.invokeLater(() -> {
+            try {
+                UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+                new Client().initialize();
+            } catch (Exception e) {
+                JOptionPane.showMessageDialog(null, "Error: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+    }
+    
+    // Method to set server IP programmatically
+    public static void setServerIP(String ip) {
+        SERVER_IP = ip;
+    }
+    
+    private void changeServerIP() {
+        String newIP = JOptionPane.showInputDialog(frame, 
+            "Enter server IP address:", 
+            "Change Server", 
+            JOptionPane.QUESTION_MESSAGE);
+        
+        if (newIP != null && !newIP.trim().isEmpty()) {
+            SERVER_IP = newIP.trim();
+            // Update the server label
+            SwingUtilities.invokeLater(() -> {
+                Component[] components = loginPanel.getComponents();
+                for (Component comp : components) {
+                    if (comp instanceof JPanel) {
+                        JPanel panel = (JPanel) comp;
+                        Component[] subComps = panel.getComponents();
+                        for (Component subComp : subComps) {
+                            if (subComp instanceof JLabel && subComp.getName() == null) {
+                                JLabel label = (JLabel) subComp;
+                                if (label.getText().startsWith("Server:")) {
+                                    label.setText("Server: " + SERVER_IP + ":" + SERVER_PORT);
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void initialize() {
+        createLoginPanel();
+        createChatPanel();
+        
+        frame = new JFrame("Messenger App");
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        WindowAdapter windowListener = new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                // Otherwise the server keeps us online for the resume window;
+                // waits a moment for it to go out before the window exits
+                toServer(ServerConnection::logout);
+                network.shutdown();
+                try {
+                    network.awaitTermination(1, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void windowGainedFocus(WindowEvent e) {
+                // Whatever arrived in the open chat meanwhile has now been seen
+                if (currentChatWith != null) {
+                    markRead(currentChatWith);
+                }
+            }
+        };
+        frame.addWindowListener(windowListener);
+        frame.addWindowFocusListener(windowListener);
+        frame.setSize(800, 600);
+        frame.setMinimumSize(new Dimension(600, 400));
+        
+        mainPanel = new JPanel(new CardLayout());
+        mainPanel.add(loginPanel, "LOGIN");
+        mainPanel.add(chatPanel, "CHAT");
+        
+        frame.add(mainPanel);
+        frame.setLocationRelativeTo(null);
+        frame.setVisible(true);
+    }
+
+    private void createLoginPanel() {
+        loginPanel = new JPanel(new BorderLayout(10, 10));
+        loginPanel.setBorder(new EmptyBorder(20, 20, 20, 20));
+        loginPanel.setBackground(new Color(240, 242, 245));
+        
+        // Title
+        JLabel titleLabel = new JLabel("Messenger", SwingConstants.CENTER);
+        titleLabel.setFont(new Font("Segoe UI", Font.BOLD, 28));
+        titleLabel.setForeground(new Color(0, 132, 255));
+        
+        // Server IP display and change button
+        JPanel serverPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
+        serverPanel.setBackground(new Color(240, 242, 245));
+        
+        JLabel serverLabel = new JLabel("Server: " + SERVER_IP + ":" + SERVER_PORT);
+        serverLabel.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        serverLabel.setForeground(new Color(101, 103, 107));
+        
+        JButton changeServerButton = new JButton("Change");
+        changeServerButton.setFont(new Font("Segoe UI", Font.PLAIN, 10));
+        changeServerButton.setPreferredSize(new Dimension(60, 20));
+        changeServerButton.addActionListener(e -> changeServerIP());
+        
+        serverPanel.add(serverLabel);
+        serverPanel.add(changeServerButton);
+        
+        // Form panel
+        JPanel formPanel = new JPanel(new GridBagLayout());
+        formPanel.setBackground(new Color(240, 242, 245));
+        formPanel.setBorder(new EmptyBorder(30, 50, 30, 50));
+        
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        gbc.insets = new Insets(5, 0, 5, 0);
+        
+        JTextField usernameField = new JTextField();
+        JPasswordField passwordField = new JPasswordField();
+        
+        // Styled text fields
+        styleTextField(usernameField, "Username");
+        styleTextField(passwordField, "Password");
+        
+        // Buttons
+        JButton loginButton = createStyledButton("Log In", new Color(0, 132, 255));
+        JButton registerButton = createStyledButton("Register", new Color(66, 183, 42));
+        
+        // Add components to form
+        formPanel.add(usernameField, gbc);
+        formPanel.add(Box.createVerticalStrut(10), gbc);
+        formPanel.add(passwordField, gbc);
+        formPanel.add(Box.createVerticalStrut(20), gbc);
+        formPanel.add(loginButton, gbc);
+        formPanel.add(Box.createVerticalStrut(5), gbc);
+        formPanel.add(registerButton, gbc);
+        
+        // Add action listeners
+        loginButton.addActionListener(e -> authenticate("LOGIN", usernameField.getText(), new String(passwordField.getPassword())));
+        registerButton.addActionListener(e -> authenticate("REGISTER", usernameField.getText(), new String(passwordField.getPassword())));
+        
+        // Add enter key listener
+        passwordField.addActionListener(e -> authenticate("LOGIN", usernameField.getText(), new String(passwordField.getPassword())));
+        
+        loginPanel.add(titleLabel, BorderLayout.NORTH);
+        loginPanel.add(serverPanel, BorderLayout.CENTER);
+        loginPanel.add(formPanel, BorderLayout.SOUTH);
+    }
+
+    private void styleTextField(JTextField field, String placeholder) {
+        field.setPreferredSize(new Dimension(250, 40));
+        field.setBorder(BorderFactory.createCompoundBorder(
+            BorderFactory.createLineBorder(new Color(204, 208, 213)),
+            BorderFactory.createEmptyBorder(5, 10, 5, 10)
+        ));
+        field.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        
+        if (field instanceof JPasswordField) {
+            ((JPasswordField)field).setEchoChar('•');
+        }
+    }
+
+    private JButton createStyledButton(String text, Color bgColor) {
+        JButton button = new JButton(text);
+        button.setBackground(bgColor);
+        button.setForeground(Color.WHITE);
+        button.setFont(new Font("Segoe UI", Font.BOLD, 14));
+        button.setFocusPainted(false);
+        button.setBorderPainted(false);
+        button.setOpaque(true);
+        button.setPreferredSize(new Dimension(250, 40));
+        
+        // Hover effect
+        button.addMouseListener(new MouseAdapter() {
+            public void mouseEntered(MouseEvent evt) {
+                button.setBackground(bgColor.darker());
+            }
+            public void mouseExited(MouseEvent evt) {
+                button.setBackground(bgColor);
+            }
+        });
+        
+        return button;
+    }
+
+    private void createChatPanel() {
+        chatPanel = new JPanel(new BorderLayout());
+        chatPanel.setBackground(new Color(240, 242, 245));
+        
+        // Contacts panel
+        JPanel contactsPanel = new JPanel(new BorderLayout());
+        contactsPanel.setPreferredSize(new Dimension(200, 0));
+        contactsPanel.setBackground(Color.WHITE);
+        contactsPanel.setBorder(BorderFactory.createMatteBorder(0, 0, 0, 1, new Color(204, 208, 213)));
+        
+        JLabel contactsHeader = new JLabel(" Contacts", SwingConstants.LEADING);
+        contactsHeader.setFont(new Font("Segoe UI", Font.BOLD, 16));
+        contactsHeader.setBorder(new EmptyBorder(15, 15, 15, 15));
+        contactsHeader.setForeground(new Color(101, 103, 107));
+        
+        contactsModel = new DefaultListModel<>();
+        contactsList = new JList<>(contactsModel);
+        contactsList.setCellRenderer(new ContactListRenderer());
+        contactsList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        contactsList.addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting()) {
+                String selected = contactsList.getSelectedValue();
+                if (selected != null && !selected.equals(currentChatWith) && !selected.equals(username)) {
+                    MessageCache.Conversation previous = currentChatWith != null ? messageCache.get(currentChatWith) : null;
+                    if (previous != null) {
+                        messageCache.trim(previous);
+                    }
+                    currentChatWith = selected;
+                    markRead(selected);
+                    loadChatHistory();
+                    updateChatTitle();
+                }
+            }
+        });
+        
+        JScrollPane contactsScroll = new JScrollPane(contactsList);
+        contactsScroll.setBorder(null);
+        
+        contactsPanel.add(contactsHeader, BorderLayout.NORTH);
+        contactsPanel.add(contactsScroll, BorderLayout.CENTER);
+        
+        // Chat area
+        JPanel chatAreaPanel = new JPanel(new BorderLayout());
+        chatAreaPanel.setBackground(Color.WHITE);
+        
+        JPanel chatHeader = new JPanel(new BorderLayout());
+        chatHeader.setBorder(new EmptyBorder(10, 15, 10, 15));
+        chatHeader.setBackground(new Color(240, 242, 245));
+        
+        JLabel chatTitle = new JLabel();
+        chatTitle.setFont(new Font("Segoe UI", Font.BOLD, 16));
+        chatTitle.setForeground(new Color(101, 103, 107));
+        
+        chatHeader.add(chatTitle, BorderLayout.CENTER);
+        
+        // Paints only the visible messages; shows a welcome line while empty
+        chatView = new ChatView();
+        
+        chatScroll = new JScrollPane(chatView);
+        chatScroll.setBorder(null);
+        // Fetch the previous page when the user scrolls to the top
+        chatScroll.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (!e.getValueIsAdjusting() && e.getValue() == 0) {
+                loadOlderMessages();
+            }
+        });
+        
+        // Message input panel
+        JPanel inputPanel = new JPanel(new BorderLayout());
+        inputPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
+        inputPanel.setBackground(new Color(240, 242, 245));
+        
+        messageField = new JTextField();
+        messageField.setPreferredSize(new Dimension(0, 40));
+        messageField.setBorder(BorderFactory.createCompoundBorder(
+            BorderFactory.createLineBorder(new Color(204, 208, 213)),
+            BorderFactory.createEmptyBorder(5, 10, 5, 10)
+        ));
+        messageField.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        messageField.addActionListener(e -> sendMessage());
+        
+        JButton sendButton = new JButton("Send");
+        sendButton.setPreferredSize(new Dimension(80, 40));
+        sendButton.setBackground(new Color(0, 132, 255));
+        sendButton.setForeground(Color.WHITE);
+        sendButton.setFont(new Font("Segoe UI", Font.BOLD, 14));
+        sendButton.setFocusPainted(false);
+        sendButton.setBorderPainted(false);
+        sendButton.addActionListener(e -> sendMessage());
+        
+        inputPanel.add(messageField, BorderLayout.CENTER);
+        inputPanel.add(sendButton, BorderLayout.EAST);
+        
+        chatAreaPanel.add(chatHeader, BorderLayout.NORTH);
+        chatAreaPanel.add(chatScroll, BorderLayout.CENTER);
+        chatAreaPanel.add(inputPanel, BorderLayout.SOUTH);
+        
+        chatPanel.add(contactsPanel, BorderLayout.WEST);
+        chatPanel.add(chatAreaPanel, BorderLayout.CENTER);
+    }
+
+    private void authenticate(String action, String username, String password) {
+        if (username.isEmpty() || password.isEmpty()) {
+            JOptionPane.showMessageDialog(frame, "Please enter both username and password", 
+                                         "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (authenticating) {
+            return;
+        }
+        authenticating = true;
+        network.execute(() -> {
+            try {
+                ServerConnection connection = ServerConnection.open(SERVER_IP, SERVER_PORT, WireFormat.BINARY_DEFLATE);
+
+                // Send authentication request and get response
+                boolean success = "LOGIN".equals(action)
+                        ? connection.login(username, password)
+                        : connection.register(username, password);
+                if (!success) {
+                    connection.close();
+                    authenticationFailed("LOGIN".equals(action) ? "Invalid username or password" : "Username already exists",
+                                         "Error");
+                    return;
+                }
+                this.username = username;
+                this.password = password;
+                server = connection;
+                // Switch to chat panel; posted first, so it runs before
+                // anything the listener posts
+                uiUpdates.post(() -> {
+                    authenticating = false;
+                    chatView.setMe(username);
+                    cardLayout = (CardLayout) mainPanel.getLayout();
+                    cardLayout.show(mainPanel, "CHAT");
+                    updateFrameTitle();
+                });
+
+                // Start message listener thread
+                connection.start(listenerFor(connection));
+                if ("LOGIN".equals(action)) {
+                    connection.startSession();
+                }
+                connection.requestContacts();
+            } catch (IOException e) {
+                authenticationFailed("Cannot connect to server: " + e.getMessage(), "Connection Error");
+            }
+        });
+    }
+
+    private void authenticationFailed(String message, String title) {
+        uiUpdates.post(() -> {
+            authenticating = false;
+            JOptionPane.showMessageDialog(frame, message, title, JOptionPane.ERROR_MESSAGE);
+        });
+    }
+
+    // Queues a request for the network thread, which sends it on whatever
+    // connection is current by then
+    private void toServer(Consumer<ServerConnection> request) {
+        network.execute(() -> {
+            ServerConnection connection = server;
+            if (connection != null) {
+                request.accept(connection);
+            }
+        });
+    }
+
+    private ServerConnection.Listener listenerFor(ServerConnection connection) {
+        return new ServerConnection.Listener() {
+            @Override
+            public void onPrivateMessage(String sender, String content) {
+                receivePrivateMessage(sender, content);
+            }
+
+            @Override
+            public void onPendingMessages(List<MessageCache.Message> messages) {
+                receivePendingMessages(messages);
+            }
+
+            @Override
+            public void onContacts(Map<String, Boolean> statuses) {
+                updateContactList(statuses);
+            }
+
+            @Override
+            public void onOnlineUpdate(Map<String, Boolean> statuses) {
+                updateContactStatuses(statuses);
+            }
+
+            @Override
+            public void onHistory(boolean since, String contact, long cursor, boolean hasMore,
+                                  List<MessageCache.Message> messages) {
+                displayHistory(since, contact, cursor, hasMore, messages);
+            }
+
+            @Override
+            public void onThrottled(String command, long retryAfterMillis) {
+                uiUpdates.post(() -> retryThrottled(command, retryAfterMillis));
+            }
+
+            @Override
+            public void onClose(IOException cause) {
+                if (cause != null && connection == server) {
+                    SwingUtilities.invokeLater(() -> {
+                        reconnecting = true;
+                        updateFrameTitle();
+                    });
+                    Thread reconnect = new Thread(() -> reconnect(connection), "reconnect");
+                    reconnect.setDaemon(true);
+                    reconnect.start();
+                }
+            }
+        };
+    }
+
+    // Resumes the session when the server still has it, so only the missed
+    // pushes come back; otherwise logs in again and resyncs the open chat.
+    // Retries with exponential backoff until the server answers.
+    private void reconnect(ServerConnection lost) {
+        String token = lost.sessionToken();
+        long received = lost.pushesReceived();
+        long delay = RECONNECT_MIN_DELAY_MS;
+        Random random = new Random();
+        while (true) {
+            try {
+                // Jitter, so clients dropped together don't all come back at once
+                Thread.sleep(delay / 2 + (long) (random.nextDouble() * delay));
+            } catch (InterruptedException e) {
+                return;
+            }
+            ServerConnection connection;
+            try {
+                connection = ServerConnection.open(SERVER_IP, SERVER_PORT, WireFormat.BINARY_DEFLATE);
+            } catch (IOException e) {
+                delay = Math.min(delay * 2, RECONNECT_MAX_DELAY_MS);
+                continue;
+            }
+            try {
+                boolean resumed = token != null && connection.resume(token, received);
+                if (!resumed && !connection.login(username, password)) {
+                    connection.close();
+                    SwingUtilities.invokeLater(() -> {
+                        JOptionPane.showMessageDialog(frame, "Connection to server lost",
+                                                     "Error", JOptionPane.ERROR_MESSAGE);
+                        System.exit(0);
+                    });
+                    return;
+                }
+                server = connection;
+                connection.start(listenerFor(connection));
+                if (!resumed) {
+                    connection.startSession();
+                    connection.requestContacts();
+                }
+                SwingUtilities.invokeLater(() -> {
+                    reconnecting = false;
+                    updateFrameTitle();
+                });
+                return;
+            } catch (IOException e) {
+                connection.close();
+                delay = Math.min(delay * 2, RECONNECT_MAX_DELAY_MS);
+            }
+        }
+    }
+
+    private void receivePrivateMessage(String sender, String content) {
+        long receivedMillis = System.currentTimeMillis();
+        uiUpdates.post(() -> showIncoming(new MessageCache.Message(0, sender, content, receivedMillis)));
+    }
+
+    // What arrived while we were offline is shown like live messages
+    private void receivePendingMessages(List<MessageCache.Message> messages) {
+        uiUpdates.post(() -> {
+            for (MessageCache.Message msg : messages) {
+                showIncoming(msg);
+            }
+        });
+    }
+
+    // Adds an incoming message to its conversation. Unless it is the open
+    // chat of a focused window, the sender's unread count goes up instead of
+    // a dialog popping up; the contact list and title are repainted once per
+    // batch in afterUiBatch().
+    private void showIncoming(MessageCache.Message msg) {
+        MessageCache.Conversation conversation = messageCache.get(msg.sender);
+        if (conversation != null) {
+            conversation.unsynced.add(msg);
+        }
+        if (msg.sender.equals(currentChatWith)) {
+            chatView.append(msg);
+            if (frame.isFocused()) {
+                return;
+            }
+        }
+        if (!msg.sender.equals(username) && contactStatus.putIfAbsent(msg.sender, false) == null) {
+            // Someone we haven't had a presence update for yet
+            contactsModel.addElement(msg.sender);
+        }
+        unread.merge(msg.sender, 1, Integer::sum);
+        unreadTotal++;
+    }
+
+    private void markRead(String contact) {
+        Integer count = unread.remove(contact);
+        if (count != null) {
+            unreadTotal -= count;
+            contactsList.repaint();
+            updateFrameTitle();
+        }
+    }
+
+    private void afterUiBatch() {
+        contactsList.repaint();
+        updateFrameTitle();
+    }
+
+    private void updateFrameTitle() {
+        String title = "Messenger - " + username + (reconnecting ? " (reconnecting...)" : "");
+        frame.setTitle(unreadTotal > 0 ? "(" + unreadTotal + ") " + title : title);
+    }
+
+    private void updateContactList(Map<String, Boolean> statuses) {
+        uiUpdates.post(() -> {
+            String previousChat = currentChatWith;
+            contactsModel.clear();
+            contactStatus.clear();
+            
+            for (Map.Entry<String, Boolean> contact : statuses.entrySet()) {
+                String contactName = contact.getKey();
+                // Double-check: Don't add yourself to the contact list
+                if (!contactName.equals(username) && !contactName.trim().isEmpty()) {
+                    contactsModel.addElement(contactName);
+                    contactStatus.put(contactName, contact.getValue());
+                }
+            }
+            
+            if (previousChat != null && contactStatus.containsKey(previousChat)) {
+                // After logging in again: stay in the open chat and catch up on it
+                currentChatWith = previousChat;
+                contactsList.setSelectedValue(previousChat, true);
+                loadChatHistory();
+            } else if (!contactsModel.isEmpty()) {
+                contactsList.setSelectedIndex(0);
+                currentChatWith = contactsModel.getElementAt(0);
+                updateChatTitle();
+                loadChatHistory();
+            }
+        });
+    }
+
+    // Applies a presence delta: only the listed contacts changed
+    private void updateContactStatuses(Map<String, Boolean> statuses) {
+        uiUpdates.post(() -> {
+            for (Map.Entry<String, Boolean> contact : statuses.entrySet()) {
+                String contactName = contact.getKey();
+                // Don't add yourself to the contact list
+                if (!contactName.equals(username) && !contactName.trim().isEmpty()) {
+                    // Add new contacts to the list if they don't exist
+                    if (contactStatus.put(contactName, contact.getValue()) == null) {
+                        contactsModel.addElement(contactName);
+                    }
+                }
+            }
+        });
+    }
+
+    private void loadChatHistory() {
+        if (currentChatWith != null) {
+            loadingOlderMessages = false;
+            MessageCache.Conversation conversation = messageCache.get(currentChatWith);
+            if (conversation != null) {
+                // Show what we have right away, then fetch only what's new
+                renderConversation(conversation);
+                String contact = currentChatWith;
+                long newestId = conversation.newestId();
+                toServer(connection -> connection.requestHistorySince(contact, newestId, HISTORY_PAGE_SIZE));
+            } else {
+                chatView.clear();
+                String contact = currentChatWith;
+                toServer(connection -> connection.requestHistoryPage(contact, HISTORY_PAGE_SIZE, 0));
+            }
+        }
+    }
+
+    // The server turned a history request down for now; asks again once it
+    // said to. Other requests are repeated by the user anyway.
+    private void retryThrottled(String command, long retryAfterMillis) {
+        if (!command.startsWith("GET_HISTORY")) {
+            return;
+        }
+        javax.swing.Timer retry = new javax.swing.Timer((int) Math.min(retryAfterMillis, 10_000), e -> {
+            if (loadingOlderMessages) {
+                loadingOlderMessages = false;
+                loadOlderMessages();
+            } else {
+                loadChatHistory();
+            }
+        });
+        retry.setRepeats(false);
+        retry.start();
+    }
+
+    private void loadOlderMessages() {
+        MessageCache.Conversation conversation = currentChatWith != null ? messageCache.get(currentChatWith) : null;
+        if (conversation != null && conversation.hasOlder && !loadingOlderMessages) {
+            loadingOlderMessages = true;
+            String contact = currentChatWith;
+            long oldestId = conversation.oldestId();
+            toServer(connection -> connection.requestHistoryPage(contact, HISTORY_PAGE_SIZE, oldestId));
+        }
+    }
+
+    private void displayHistory(boolean since, String contact, long cursor, boolean hasMore, List<MessageCache.Message> messages) {
+        if (since) {
+            displayHistorySince(contact, cursor, hasMore, messages);
+        } else {
+            displayHistoryPage(contact, cursor, hasMore, messages);
+        }
+    }
+
+    // Newest page when cursor is 0, otherwise the page before message `cursor`
+    private void displayHistoryPage(String contact, long cursor, boolean hasMore, List<MessageCache.Message> page) {
+        uiUpdates.post(() -> {
+            if (cursor == 0) {
+                MessageCache.Conversation conversation = messageCache.reset(contact, page, hasMore);
+                if (contact.equals(currentChatWith)) {
+                    renderConversation(conversation);
+                }
+                return;
+            }
+            MessageCache.Conversation conversation = messageCache.get(contact);
+            if (!contact.equals(currentChatWith) || conversation == null || cursor != conversation.oldestId()) {
+                return; // Switched contacts or reloaded while the page was on its way
+            }
+            messageCache.prependOlder(conversation, page, hasMore);
+            loadingOlderMessages = false;
+
+            JScrollBar scrollBar = chatScroll.getVerticalScrollBar();
+            int oldMaximum = scrollBar.getMaximum();
+            int oldValue = scrollBar.getValue();
+            chatView.prepend(page);
+            // Keep the message the user was looking at in place
+            SwingUtilities.invokeLater(() ->
+                    scrollBar.setValue(oldValue + scrollBar.getMaximum() - oldMaximum));
+        });
+    }
+
+    private void displayHistorySince(String contact, long afterId, boolean hasMore, List<MessageCache.Message> newer) {
+        uiUpdates.post(() -> {
+            MessageCache.Conversation conversation = messageCache.get(contact);
+            if (conversation == null || afterId != conversation.newestId()) {
+                return; // Already caught up by another sync
+            }
+            if (hasMore) {
+                // Too far behind to catch up page by page; start again from the newest page
+                messageCache.remove(contact);
+                if (contact.equals(currentChatWith)) {
+                    loadChatHistory();
+                }
+                return;
+            }
+            // Usually these are exactly the messages already shown live
+            boolean alreadyShown = newer.size() == conversation.unsynced.size();
+            messageCache.appendSynced(conversation, newer);
+            if (contact.equals(currentChatWith) && !alreadyShown) {
+                renderConversation(conversation);
+            }
+        });
+    }
+
+    private void renderConversation(MessageCache.Conversation conversation) {
+        chatView.setMessages(conversation.messages, conversation.unsynced);
+    }
+
+    private void sendMessage() {
+        String message = messageField.getText().trim();
+        if (!message.isEmpty() && currentChatWith != null && !currentChatWith.equals(username)) {
+            String recipient = currentChatWith;
+            toServer(connection -> connection.sendPrivateMessage(recipient, message));
+            MessageCache.Message msg = new MessageCache.Message(0, username, message, System.currentTimeMillis());
+            MessageCache.Conversation conversation = messageCache.get(currentChatWith);
+            if (conversation != null) {
+                conversation.unsynced.add(msg);
+            }
+            chatView.append(msg);
+            messageField.setText("");
+        }
+    }
+
+    private void updateChatTitle() {
+        if (currentChatWith != null) {
+            Component[] components = chatPanel.getComponents();
+            for (Component comp : components) {
+                if (comp instanceof JPanel) {
+                    JPanel panel = (JPanel) comp;
+                    Component[] subComps = panel.getComponents();
+                    for (Component subComp : subComps) {
+                        if (subComp instanceof JLabel && subComp.getName() == null) {
+                            JLabel label = (JLabel) subComp;
+                            label.setText(currentChatWith);
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class ContactListRenderer extends DefaultListCellRenderer {
+        private final Color onlineColor = new Color(66, 183, 42);
+        private final Color offlineColor = new Color(101, 103, 107);
+        private final Color selectedColor = new Color(228, 230, 235);
+        private final Color badgeColor = new Color(0, 132, 255);
+        private final Font nameFont = new Font("Segoe UI", Font.PLAIN, 14);
+        private final Font unreadFont = nameFont.deriveFont(Font.BOLD);
+        private final Font badgeFont = new Font("Segoe UI", Font.BOLD, 11);
+        private final Border padding = new EmptyBorder(10, 15, 10, 15);
+        // Leaves room on the right for the badge
+        private final Border badgePadding = new EmptyBorder(10, 15, 10, 50);
+        private int badge;
+        
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, 
+                                                    boolean isSelected, boolean cellHasFocus) {
+            super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+            
+            String contact = (String) value;
+            badge = unread.getOrDefault(contact, 0);
+            setText(contact);
+            setFont(badge > 0 ? unreadFont : nameFont);
+            setBorder(badge > 0 ? badgePadding : padding);
+            
+            if (contactStatus.getOrDefault(contact, false)) {
+                setForeground(onlineColor);
+            } else {
+                setForeground(offlineColor);
+            }
+            
+            if (isSelected) {
+                setBackground(selectedColor);
+            } else {
+                setBackground(Color.WHITE);
+            }
+            
+            return this;
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            if (badge > 0) {
+                // Unread count in a pill on the right
+                Graphics2D g2 = (Graphics2D) g;
+                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+                String text = badge > 99 ? "99+" : String.valueOf(badge);
+                g2.setFont(badgeFont);
+                FontMetrics metrics = g2.getFontMetrics();
+                int height = metrics.getHeight() + 2;
+                int width = Math.max(height, metrics.stringWidth(text) + height / 2);
+                int x = getWidth() - 15 - width;
+                int y = (getHeight() - height) / 2;
+                g2.setColor(badgeColor);
+                g2.fillRoundRect(x, y, width, height, height, height);
+                g2.setColor(Color.WHITE);
+                g2.drawString(text, x + (width - metrics.stringWidth(text)) / 2, y + 1 + metrics.getAscent());
+            }
+        }
+    }
+}
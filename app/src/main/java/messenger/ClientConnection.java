@@ -0,0 +1,113 @@
+// ClientConnection.java
+package messenger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One client socket as seen by the protocol code. Engines deliver complete
+// lines (or, after useBinaryFraming(), complete frames) to the Listener, one
+// at a time and in order, and nothing sent ever blocks the calling thread on
+// the remote peer.
+//
+// Engines also look after heartbeats: a client that has sent nothing for
+// pingInterval is sent PING (it answers PONG), and one that has sent
+// nothing for idleTimeout is taken for dead and closed, which ends or
+// detaches its session like any other disconnect. Only connections known
+// to speak heartbeats get either: binary ones, and text ones once the client
+// has sent PING or PONG itself. Older text clients never answer PING, so an
+// idle one is left open as before.
+abstract class ClientConnection {
+    // How often engines call idle()
+    static final long IDLE_CHECK_MILLIS = 1000;
+    static final boolean HEARTBEATS = ServerConfig.PING_INTERVAL_SECONDS > 0 || ServerConfig.IDLE_TIMEOUT_SECONDS > 0;
+    private static final long PING_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(ServerConfig.PING_INTERVAL_SECONDS);
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(ServerConfig.IDLE_TIMEOUT_SECONDS);
+
+    private static final AtomicLong pingsSent = new AtomicLong();
+    private static final AtomicLong idleClosed = new AtomicLong();
+
+    interface Listener {
+        void onLine(String line);
+
+        // One binary frame body: the type byte followed by its fields
+        default void onFrame(ByteBuffer frame) {
+        }
+
+        // Called exactly once, after the last onLine/onFrame
+        void onClose();
+    }
+
+    private volatile WireFormat format = WireFormat.TEXT;
+    // System.nanoTime() of the last input, and of the last PING we sent
+    private volatile long lastReceived = System.nanoTime();
+    private volatile long lastPinged = lastReceived;
+    private volatile boolean heartbeats;
+
+    // Queues encoded bytes as they are. The buffer itself is left untouched,
+    // so one encoding can be sent to many connections.
+    abstract void sendFrame(ByteBuffer frame);
+
+    void send(String line) {
+        sendFrame(WireFormat.line(line));
+    }
+
+    // Closes the connection once everything already sent has been written
+    abstract void close();
+
+    abstract String remoteAddress();
+
+    // Engines call this whenever the client sent something
+    void received(long now) {
+        lastReceived = now;
+    }
+
+    // Pings a client that has gone quiet; true once it has been quiet for
+    // idleTimeout and should be closed
+    boolean idle(long now) {
+        if (!heartbeats) {
+            return false;
+        }
+        long quiet = now - lastReceived;
+        if (IDLE_TIMEOUT_NANOS > 0 && quiet >= IDLE_TIMEOUT_NANOS) {
+            idleClosed.incrementAndGet();
+            Server.log("Closing " + remoteAddress() + ": nothing received for " + ServerConfig.IDLE_TIMEOUT_SECONDS + " s");
+            return true;
+        }
+        if (PING_INTERVAL_NANOS > 0 && quiet >= PING_INTERVAL_NANOS && now - lastPinged >= PING_INTERVAL_NANOS) {
+            lastPinged = now;
+            pingsSent.incrementAndGet();
+            sendFrame(format.ping());
+        }
+        return false;
+    }
+
+    static long pingsSent() {
+        return pingsSent.get();
+    }
+
+    static long idleClosed() {
+        return idleClosed.get();
+    }
+
+    static String heartbeatStats() {
+        return String.format("Heartbeats: %d pings sent, %d idle connections closed", pingsSent.get(), idleClosed.get());
+    }
+
+    WireFormat format() {
+        return format;
+    }
+
+    // Everything received from now on is read as length-prefixed frames, and
+    // replies are encoded in the given binary format. Call before acknowledging
+    // the switch, so no frame is read as text.
+    void useBinaryFraming(WireFormat binaryFormat) {
+        format = binaryFormat;
+        heartbeats = true;
+    }
+
+    // The client has shown it answers PING; idle() may ping and close it
+    void useHeartbeats() {
+        heartbeats = true;
+    }
+}
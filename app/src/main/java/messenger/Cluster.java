@@ -0,0 +1,501 @@
+// Cluster.java
+package messenger;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Several server processes sharing one database, each holding the
+// connections of some of the users. Every node keeps a TCP link to every
+// other node and tells it which users are online here, so each node knows
+// where everyone is. A message for a user on another node is stored by the
+// sender's node and handed to the recipient's node over the link, which
+// pushes it like one of its own.
+//
+// Each link carries frames one way: a node writes to the peers it connected
+// to and reads from the peers that connected to it. Frames use the binary
+// protocol's framing with the link's own types below. Whenever an outgoing
+// link comes up it starts with HELLO and a snapshot of this node's online
+// users; when an incoming link drops, the users it reported go offline.
+//
+// A node with no peers configured runs alone and every method is a no-op.
+class Cluster {
+    static final byte HELLO = 1;          // int node
+    static final byte PRESENCE = 2;       // int count, then count x (name, boolean online)
+    static final byte PRIVATE = 3;        // long id, sender, recipient, content
+    static final byte GROUP = 4;          // group, sender, content
+    static final byte GROUP_CREATED = 5;  // group
+    static final byte FORGET = 6;         // long conversation
+
+    private static final int MAX_FRAME = 16 << 20;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    // What the server does with what the other nodes report
+    interface Handler {
+        // Everyone logged in to this node, for the snapshot a new link starts with
+        Collection<String> localUsers();
+
+        // A user came online or went offline on another node
+        void presence(String user, boolean online) throws Exception;
+
+        // A stored message for a user who is on this node
+        void privateMessage(long id, String sender, String recipient, String content) throws Exception;
+
+        void groupMessage(String group, String sender, String content) throws Exception;
+
+        void groupCreated(String group) throws Exception;
+
+        // Another node stored a message in the conversation
+        void forget(long conversation);
+
+        // A message handed to a link that dropped before it was sent
+        void undelivered(long id);
+
+        // A link to or from the node came up or went down; frames on it,
+        // FORGETs included, may have been lost
+        void linkChanged(int node);
+    }
+
+    private final int self;
+    private final List<InetSocketAddress> addresses;
+    private final Handler handler;
+    private final Peer[] peers;
+    // Where each user on another node is logged in
+    private final ConcurrentHashMap<String, Integer> locations = new ConcurrentHashMap<>();
+    // The current incoming link from each node
+    private final ConcurrentHashMap<Integer, Socket> incoming = new ConcurrentHashMap<>();
+
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong routedMessages = new AtomicLong();
+    private final AtomicLong linkFailures = new AtomicLong();
+
+    Cluster(int self, List<InetSocketAddress> addresses, Handler handler) {
+        if (!addresses.isEmpty() && (self < 0 || self >= addresses.size())) {
+            throw new IllegalArgumentException("Node " + self + " is not in the cluster list");
+        }
+        this.self = self;
+        this.addresses = addresses;
+        this.handler = handler;
+        this.peers = new Peer[addresses.size()];
+        for (int node = 0; node < addresses.size(); node++) {
+            if (node != self) {
+                peers[node] = new Peer(node, addresses.get(node));
+            }
+        }
+    }
+
+    // "host:port,host:port,..."; empty for a single server
+    static List<InetSocketAddress> parse(String nodes) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            node = node.trim();
+            if (node.isEmpty()) {
+                continue;
+            }
+            int colon = node.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Cluster node without a port: " + node);
+            }
+            addresses.add(new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    void start() throws IOException {
+        if (addresses.size() < 2) {
+            return;
+        }
+        ServerSocket listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(new InetSocketAddress(addresses.get(self).getPort()));
+        daemon("cluster-accept", () -> accept(listener)).start();
+        for (Peer peer : peers) {
+            if (peer != null) {
+                daemon("cluster-link-" + peer.node, peer::run).start();
+            }
+        }
+    }
+
+    boolean enabled() {
+        return addresses.size() > 1;
+    }
+
+    int size() {
+        return Math.max(1, addresses.size());
+    }
+
+    // The node the user is logged in to, or -1 if it isn't another node
+    int locate(String user) {
+        Integer node = locations.get(user);
+        return node != null ? node : -1;
+    }
+
+    int remoteUsers() {
+        return locations.size();
+    }
+
+    int linksUp() {
+        int up = 0;
+        for (Peer peer : peers) {
+            if (peer != null && peer.up) {
+                up++;
+            }
+        }
+        return up;
+    }
+
+    // A local login, logout or registration
+    void announce(String user, boolean online) {
+        if (enabled()) {
+            broadcast(new BinaryProtocol.FrameWriter(PRESENCE).putInt(1).putString(user).putBoolean(online).toBuffer());
+        }
+    }
+
+    // False if the node can't be reached, in which case the message is left
+    // for the recipient's next login
+    boolean sendPrivate(int node, long id, String sender, String recipient, String content) {
+        ByteBuffer frame = new BinaryProtocol.FrameWriter(PRIVATE)
+                .putLong(id).putString(sender).putString(recipient).putString(content).toBuffer();
+        boolean queued = peers[node] != null && peers[node].send(new Outgoing(frame, id));
+        if (queued) {
+            routedMessages.incrementAndGet();
+        }
+        return queued;
+    }
+
+    // To every other node with at least one member online
+    void sendGroup(GroupDirectory.Group group, String sender, String content) {
+        if (!enabled()) {
+            return;
+        }
+        Set<Integer> nodes = null;
+        for (UserDirectory.User member : group.members()) {
+            Integer node = locations.get(member.name);
+            if (node != null && !member.name.equals(sender)) {
+                if (nodes == null) {
+                    nodes = new HashSet<>();
+                }
+                nodes.add(node);
+            }
+        }
+        if (nodes == null) {
+            return;
+        }
+        ByteBuffer frame = new BinaryProtocol.FrameWriter(GROUP)
+                .putString(group.name).putString(sender).putString(content).toBuffer();
+        for (int node : nodes) {
+            if (peers[node] != null && peers[node].send(new Outgoing(frame, 0))) {
+                routedMessages.incrementAndGet();
+            }
+        }
+    }
+
+    void groupCreated(String group) {
+        if (enabled()) {
+            broadcast(new BinaryProtocol.FrameWriter(GROUP_CREATED).putString(group).toBuffer());
+        }
+    }
+
+    // Drops the conversation from the other nodes' recent-messages caches,
+    // which only see the messages committed by their own node
+    void forget(long conversation) {
+        if (enabled()) {
+            broadcast(new BinaryProtocol.FrameWriter(FORGET).putLong(conversation).toBuffer());
+        }
+    }
+
+    String stats() {
+        if (!enabled()) {
+            return "Cluster: single node";
+        }
+        return String.format("Cluster: node %d of %d, %d/%d links up, %d remote users, " +
+                        "%d frames sent, %d received, %d dropped, %d messages routed, %d link failures",
+                self, addresses.size(), linksUp(), addresses.size() - 1, locations.size(),
+                framesSent.get(), framesReceived.get(), framesDropped.get(), routedMessages.get(), linkFailures.get());
+    }
+
+    long framesSent() {
+        return framesSent.get();
+    }
+
+    long framesReceived() {
+        return framesReceived.get();
+    }
+
+    long framesDropped() {
+        return framesDropped.get();
+    }
+
+    private void broadcast(ByteBuffer frame) {
+        Outgoing outgoing = new Outgoing(frame, 0);
+        for (Peer peer : peers) {
+            if (peer != null) {
+                peer.send(outgoing);
+            }
+        }
+    }
+
+    private void accept(ServerSocket listener) {
+        while (true) {
+            try {
+                Socket socket = listener.accept();
+                socket.setTcpNoDelay(true);
+                daemon("cluster-in", () -> read(socket)).start();
+            } catch (IOException e) {
+                Server.log("Cluster listener failed: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    // Reads one incoming link until it drops
+    private void read(Socket socket) {
+        int node = -1;
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            while (true) {
+                int length = in.readInt();
+                if (length < 1 || length > MAX_FRAME) {
+                    throw new IOException("bad frame length " + length);
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                ByteBuffer frame = ByteBuffer.wrap(body);
+                byte type = frame.get();
+                framesReceived.incrementAndGet();
+                if (node < 0) {
+                    node = hello(type, frame, socket);
+                    continue;
+                }
+                try {
+                    dispatch(node, type, frame);
+                } catch (Exception e) {
+                    Server.log("Cluster frame " + type + " from node " + node + " failed: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            if (node >= 0) {
+                Server.log("Cluster link from node " + node + " closed: " + e.getMessage());
+            }
+        } finally {
+            if (node >= 0 && incoming.remove(node, socket)) {
+                dropUsers(node);
+                handler.linkChanged(node);
+            }
+        }
+    }
+
+    // A node that reconnects replaces its previous link, and its snapshot
+    // replaces what the previous link reported
+    private int hello(byte type, ByteBuffer frame, Socket socket) throws IOException {
+        int node = type == HELLO ? frame.getInt() : -1;
+        if (node < 0 || node >= addresses.size() || node == self) {
+            throw new IOException("expected HELLO, got frame type " + type);
+        }
+        Socket previous = incoming.put(node, socket);
+        if (previous != null) {
+            previous.close();
+            dropUsers(node);
+        }
+        handler.linkChanged(node);
+        Server.log("Cluster link from node " + node + " up");
+        return node;
+    }
+
+    private void dispatch(int node, byte type, ByteBuffer frame) throws Exception {
+        switch (type) {
+            case PRESENCE: {
+                int count = frame.getInt();
+                for (int i = 0; i < count; i++) {
+                    String user = BinaryProtocol.getString(frame);
+                    boolean online = BinaryProtocol.getBoolean(frame);
+                    if (online) {
+                        locations.put(user, node);
+                    } else {
+                        locations.remove(user, node);
+                        if (locations.containsKey(user)) {
+                            continue; // Logged in on yet another node since
+                        }
+                    }
+                    handler.presence(user, online);
+                }
+                break;
+            }
+            case PRIVATE:
+                handler.privateMessage(frame.getLong(), BinaryProtocol.getString(frame),
+                        BinaryProtocol.getString(frame), BinaryProtocol.getString(frame));
+                break;
+            case GROUP:
+                handler.groupMessage(BinaryProtocol.getString(frame), BinaryProtocol.getString(frame),
+                        BinaryProtocol.getString(frame));
+                break;
+            case GROUP_CREATED:
+                handler.groupCreated(BinaryProtocol.getString(frame));
+                break;
+            case FORGET:
+                handler.forget(frame.getLong());
+                break;
+            default:
+                Server.log("Unknown cluster frame type " + type + " from node " + node);
+        }
+    }
+
+    // Everyone the node reported goes offline
+    private void dropUsers(int node) {
+        List<String> dropped = new ArrayList<>();
+        for (Map.Entry<String, Integer> location : locations.entrySet()) {
+            if (location.getValue() == node && locations.remove(location.getKey(), node)) {
+                dropped.add(location.getKey());
+            }
+        }
+        for (String user : dropped) {
+            try {
+                handler.presence(user, false);
+            } catch (Exception e) {
+                Server.log("Cluster presence update for " + user + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // A frame on its way to a peer; id is set for a private message
+    private static class Outgoing {
+        final ByteBuffer frame;
+        final long id;
+
+        Outgoing(ByteBuffer frame, long id) {
+            this.frame = frame;
+            this.id = id;
+        }
+    }
+
+    // The outgoing link to one node: a queue and a thread that writes
+    // whatever has queued up with one flush, and reconnects with backoff.
+    // A frame that doesn't fit in the queue breaks the link, so the peer
+    // sees it go down and come back rather than silently missing a frame.
+    private class Peer {
+        final int node;
+        final InetSocketAddress address;
+        final BlockingQueue<Outgoing> queue = new ArrayBlockingQueue<>(Math.max(1, ServerConfig.CLUSTER_QUEUE));
+        volatile boolean up;
+        private volatile Socket socket;
+
+        Peer(int node, InetSocketAddress address) {
+            this.node = node;
+            this.address = address;
+        }
+
+        boolean send(Outgoing outgoing) {
+            if (up && queue.offer(outgoing)) {
+                return true;
+            }
+            framesDropped.incrementAndGet();
+            Socket current = socket;
+            if (up && current != null) {
+                Server.log("Cluster queue to node " + node + " is full, reconnecting");
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    // The writer notices either way
+                }
+            }
+            return false;
+        }
+
+        void run() {
+            long backoff = 100;
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                    abandonQueued();
+                    this.socket = socket;
+                    // Changes from here on are queued behind the snapshot
+                    up = true;
+                    handler.linkChanged(node);
+                    write(out, new BinaryProtocol.FrameWriter(HELLO).putInt(self).toBuffer());
+                    write(out, snapshot());
+                    out.flush();
+                    backoff = 100;
+                    Server.log("Cluster link to node " + node + " up");
+                    while (true) {
+                        Outgoing next = queue.take();
+                        do {
+                            write(out, next.frame);
+                        } while ((next = queue.poll()) != null);
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    if (up) {
+                        linkFailures.incrementAndGet();
+                        Server.log("Cluster link to node " + node + " down: " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                socket = null;
+                if (up) {
+                    up = false;
+                    handler.linkChanged(node);
+                }
+                abandonQueued();
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+
+        private ByteBuffer snapshot() {
+            Collection<String> users = handler.localUsers();
+            BinaryProtocol.FrameWriter frame = new BinaryProtocol.FrameWriter(PRESENCE);
+            List<String> names = new ArrayList<>(users);
+            frame.putInt(names.size());
+            for (String user : names) {
+                frame.putString(user).putBoolean(true);
+            }
+            return frame.toBuffer();
+        }
+
+        private void write(OutputStream out, ByteBuffer frame) throws IOException {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            framesSent.incrementAndGet();
+        }
+
+        // Presence is resent with the next snapshot; private messages go
+        // back to waiting for the recipient's next login
+        private void abandonQueued() {
+            List<Outgoing> abandoned = new ArrayList<>();
+            queue.drainTo(abandoned);
+            framesDropped.addAndGet(abandoned.size());
+            for (Outgoing outgoing : abandoned) {
+                if (outgoing.id != 0) {
+                    handler.undelivered(outgoing.id);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+// ConnectionEngine.java
+package messenger;
+
+import java.io.IOException;
+import java.util.function.Function;
+
+// Accepts client sockets and drives their I/O. serve() blocks for the lifetime of the server.
+interface ConnectionEngine {
+
+    void serve(int port, Function<ClientConnection, ClientConnection.Listener> handlerFactory) throws IOException;
+
+    static ConnectionEngine create(String name) {
+        switch (name) {
+            case "nio":
+                return new NioConnectionEngine(ServerConfig.WORKER_THREADS);
+            case "threads":
+                return new ThreadConnectionEngine();
+            default:
+                throw new IllegalArgumentException("Unknown connection engine: " + name);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+// Database.java
+package messenger;
+
+import java.sql.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// SQLite access for the server. The database runs in WAL mode so reads never
+// wait for the writer: read-only work borrows one of a small pool of reader
+// connections, and everything that writes goes through the single writer
+// connection, one caller at a time. Each connection keeps its prepared
+// statements, so hot queries are compiled once.
+class Database {
+    private static final int STATEMENT_CACHE_SIZE = 64;
+
+    // Schema upgrades, one entry per version. PRAGMA user_version records how
+    // many have been applied, so existing messenger.db files are migrated in place.
+    private static final String[][] MIGRATIONS = {
+        // 1: conversation key, so a conversation's history is one index range
+        {
+            "ALTER TABLE messages ADD COLUMN conversation_id INTEGER",
+            "UPDATE messages SET conversation_id = (MIN(sender_id, receiver_id) << 32) | MAX(sender_id, receiver_id)",
+            "CREATE INDEX IF NOT EXISTS idx_messages_conversation ON messages(conversation_id, id)"
+        },
+        // 2: delivery state; the partial index holds only each user's undelivered messages
+        {
+            "ALTER TABLE messages ADD COLUMN delivered BOOLEAN NOT NULL DEFAULT TRUE",
+            "CREATE INDEX IF NOT EXISTS idx_messages_undelivered ON messages(receiver_id, id) WHERE delivered = 0"
+        },
+        // 3: full-text index for SEARCH (see MessageSearch). It reads its text
+        // from messages through the view, indexes the participants as u<id>
+        // tokens, ranks on the text only, and triggers keep it in step.
+        {
+            "CREATE VIEW messages_search AS " +
+                "SELECT id, message, 'u' || sender_id || ' u' || receiver_id AS members FROM messages",
+            "CREATE VIRTUAL TABLE messages_fts USING fts5(message, members, content='messages_search', content_rowid='id')",
+            "INSERT INTO messages_fts(messages_fts, rank) VALUES ('rank', 'bm25(1.0, 0.0)')",
+            "INSERT INTO messages_fts(messages_fts) VALUES ('rebuild')",
+            "CREATE TRIGGER messages_fts_insert AFTER INSERT ON messages BEGIN " +
+                "INSERT INTO messages_fts(rowid, message, members) " +
+                "VALUES (new.id, new.message, 'u' || new.sender_id || ' u' || new.receiver_id); END",
+            "CREATE TRIGGER messages_fts_delete AFTER DELETE ON messages BEGIN " +
+                "INSERT INTO messages_fts(messages_fts, rowid, message, members) " +
+                "VALUES ('delete', old.id, old.message, 'u' || old.sender_id || ' u' || old.receiver_id); END"
+        },
+        // 4: group channels; a group message is stored once, whatever the member count
+        {
+            "CREATE TABLE chat_groups (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "name TEXT UNIQUE NOT NULL, " +
+                "owner_id INTEGER NOT NULL REFERENCES users(id), " +
+                "created DATETIME DEFAULT CURRENT_TIMESTAMP)",
+            "CREATE TABLE group_members (" +
+                "group_id INTEGER NOT NULL REFERENCES chat_groups(id), " +
+                "user_id INTEGER NOT NULL REFERENCES users(id), " +
+                "PRIMARY KEY (group_id, user_id)) WITHOUT ROWID",
+            "CREATE TABLE group_messages (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "group_id INTEGER NOT NULL REFERENCES chat_groups(id), " +
+                "sender_id INTEGER NOT NULL REFERENCES users(id), " +
+                "message TEXT NOT NULL, " +
+                "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP)",
+            "CREATE INDEX IF NOT EXISTS idx_group_messages_group ON group_messages(group_id, id)"
+        },
+    };
+    private static final long BORROW_TIMEOUT_SECONDS = 30;
+
+    private final BlockingQueue<PooledConnection> readers;
+    private final int readerCount;
+    private final PooledConnection writer;
+    private final ReentrantLock writerLock = new ReentrantLock();
+
+    Database(String url, int readerCount) throws SQLException {
+        writer = new PooledConnection(open(url, false));
+        initializeSchema(writer.connection());
+        this.readerCount = readerCount;
+        readers = new ArrayBlockingQueue<>(readerCount);
+        for (int i = 0; i < readerCount; i++) {
+            readers.add(new PooledConnection(open(url, true)));
+        }
+    }
+
+    // A connection for queries; close() hands it back to the pool. The query
+    // name labels the time it is held in the metrics.
+    PooledConnection reader(String query) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            PooledConnection connection = readers.poll(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (connection == null) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+            Metrics.poolWait("reader", System.nanoTime() - start);
+            connection.lease(query);
+            return connection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", e);
+        }
+    }
+
+    // The writer connection; the calling thread holds it exclusively until close()
+    PooledConnection writer(String query) {
+        long start = System.nanoTime();
+        writerLock.lock();
+        Metrics.poolWait("writer", System.nanoTime() - start);
+        writer.lease(query);
+        return writer;
+    }
+
+    int busyReaders() {
+        return readerCount - readers.size();
+    }
+
+    // Threads waiting for the writer connection
+    int writerQueueLength() {
+        return writerLock.getQueueLength();
+    }
+
+    // Closes every connection; callers must have returned them first
+    void close() throws SQLException {
+        for (PooledConnection reader : readers) {
+            reader.connection.close();
+        }
+        writer.connection.close();
+    }
+
+    private Connection open(String url, boolean readOnly) throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("PRAGMA busy_timeout = 5000");
+            stmt.executeUpdate("PRAGMA foreign_keys = ON");
+            if (readOnly) {
+                stmt.executeUpdate("PRAGMA query_only = ON");
+            } else {
+                stmt.execute("PRAGMA journal_mode = WAL");
+                stmt.executeUpdate("PRAGMA synchronous = " + ServerConfig.DB_SYNCHRONOUS);
+            }
+        }
+        return connection;
+    }
+
+    private static void initializeSchema(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            // Create tables if they don't exist
+            stmt.executeUpdate(
+                "CREATE TABLE IF NOT EXISTS users (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "username TEXT UNIQUE NOT NULL," +
+                "password TEXT NOT NULL," +
+                "online BOOLEAN DEFAULT FALSE" +
+                ")"
+            );
+
+            stmt.executeUpdate(
+                "CREATE TABLE IF NOT EXISTS messages (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "sender_id INTEGER NOT NULL," +
+                "receiver_id INTEGER NOT NULL," +
+                "message TEXT NOT NULL," +
+                "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP," +
+                "FOREIGN KEY (sender_id) REFERENCES users(id)," +
+                "FOREIGN KEY (receiver_id) REFERENCES users(id)" +
+                ")"
+            );
+        }
+        migrate(connection);
+        try (Statement stmt = connection.createStatement()) {
+            // Nobody is connected yet, whatever the last run left behind
+            stmt.executeUpdate("UPDATE users SET online = FALSE WHERE online");
+        }
+    }
+
+    private static void migrate(Connection connection) throws SQLException {
+        int version;
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            version = rs.next() ? rs.getInt(1) : 0;
+        }
+        for (; version < MIGRATIONS.length; version++) {
+            connection.setAutoCommit(false);
+            try (Statement stmt = connection.createStatement()) {
+                for (String sql : MIGRATIONS[version]) {
+                    stmt.executeUpdate(sql);
+                }
+                stmt.executeUpdate("PRAGMA user_version = " + (version + 1));
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw new SQLException("Schema migration to version " + (version + 1) + " failed: " + e.getMessage(), e);
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    // Same for both directions of a one-to-one chat: smaller user id in the high half
+    static long conversationId(long userA, long userB) {
+        return (Math.min(userA, userB) << 32) | Math.max(userA, userB);
+    }
+
+    // Key of a group's messages in the recent-messages cache; negative, so
+    // it never collides with a one-to-one conversation
+    static long groupConversationId(long groupId) {
+        return -groupId;
+    }
+
+    class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements =
+                new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                        if (size() > STATEMENT_CACHE_SIZE) {
+                            closeQuietly(eldest.getValue());
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+        private boolean leased;
+        private String query;
+        private long leasedAt;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        // Cached statement with its parameters cleared. Don't close it; close
+        // the ResultSets it returns.
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null) {
+                stmt = connection.prepareStatement(sql);
+                statements.put(sql, stmt);
+            } else {
+                stmt.clearParameters();
+            }
+            return stmt;
+        }
+
+        // Row id of the last INSERT on this connection
+        long lastInsertId() throws SQLException {
+            try (ResultSet rs = prepare("SELECT last_insert_rowid()").executeQuery()) {
+                return rs.next() ? rs.getLong(1) : -1;
+            }
+        }
+
+        Connection connection() {
+            return connection;
+        }
+
+        private void lease(String query) {
+            this.leased = true;
+            this.query = query;
+            this.leasedAt = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            if (this == writer) {
+                Metrics.query(query, System.nanoTime() - leasedAt);
+                writerLock.unlock();
+            } else if (leased) {
+                Metrics.query(query, System.nanoTime() - leasedAt);
+                leased = false;
+                readers.add(this);
+            }
+        }
+    }
+
+    private static void closeQuietly(Statement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            // Evicted statement; nothing else holds it
+        }
+    }
+}
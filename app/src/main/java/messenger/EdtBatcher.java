@@ -0,0 +1,44 @@
+// EdtBatcher.java
+package messenger;
+
+import javax.swing.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Hands UI updates from network threads to the event dispatch thread in
+// batches. Updates posted from any thread are queued, and everything that
+// arrives within one frame interval runs in a single EDT event, in the order
+// it was posted, followed by afterBatch. A burst of a few hundred messages
+// then costs a few EDT events and repaints rather than one of each per
+// message.
+class EdtBatcher {
+    private final ConcurrentLinkedQueue<Runnable> updates = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Timer timer;
+    private final Runnable afterBatch;
+
+    // afterBatch runs once on the EDT after each batch, e.g. to repaint
+    EdtBatcher(int intervalMillis, Runnable afterBatch) {
+        this.afterBatch = afterBatch;
+        timer = new Timer(intervalMillis, e -> drain());
+        timer.setRepeats(false);
+    }
+
+    void post(Runnable update) {
+        updates.add(update);
+        // The first update of a batch starts the timer; the rest just queue
+        if (scheduled.compareAndSet(false, true)) {
+            timer.start();
+        }
+    }
+
+    private void drain() {
+        // Anything posted from here on schedules the next batch
+        scheduled.set(false);
+        Runnable update;
+        while ((update = updates.poll()) != null) {
+            update.run();
+        }
+        afterBatch.run();
+    }
+}
@@ -0,0 +1,95 @@
+// FrameCompression.java
+package messenger;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+// Deflates binary frames for connections that negotiated compression. Only
+// frames of at least ServerConfig.COMPRESSION_THRESHOLD bytes are tried, and
+// a frame goes out compressed only if that made it smaller.
+//
+// Each frame is compressed on its own, so a dropped frame never corrupts the
+// next one. That means a compressor carries no state between frames, so
+// senders borrow one from a shared pool instead of every connection holding
+// its own (a Deflater keeps a few hundred KB of native memory). The pool
+// only grows to the number of threads compressing at the same time.
+final class FrameCompression {
+    private static final Queue<Compressor> pool = new ConcurrentLinkedQueue<>();
+
+    private static final AtomicLong compressedFrames = new AtomicLong();
+    private static final AtomicLong skippedFrames = new AtomicLong();
+    private static final AtomicLong bytesIn = new AtomicLong();
+    private static final AtomicLong bytesOut = new AtomicLong();
+    private static final AtomicLong compressNanos = new AtomicLong();
+
+    private FrameCompression() {
+    }
+
+    // A COMPRESSED frame carrying the given frame's body, or the frame itself
+    static ByteBuffer compress(ByteBuffer frame) {
+        if (frame.remaining() < ServerConfig.COMPRESSION_THRESHOLD) {
+            return frame;
+        }
+        int bodyLength = frame.remaining() - 4;
+        long start = System.nanoTime();
+        Compressor compressor = pool.poll();
+        if (compressor == null) {
+            compressor = new Compressor();
+        }
+        ByteBuffer compressed;
+        try {
+            compressed = compressor.deflate(frame.array(), frame.arrayOffset() + frame.position() + 4, bodyLength);
+        } finally {
+            pool.add(compressor);
+            compressNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        if (compressed.remaining() >= frame.remaining()) {
+            skippedFrames.incrementAndGet();
+            return frame;
+        }
+        compressedFrames.incrementAndGet();
+        bytesIn.addAndGet(frame.remaining());
+        bytesOut.addAndGet(compressed.remaining());
+        return compressed;
+    }
+
+    static String stats() {
+        long in = bytesIn.get();
+        long out = bytesOut.get();
+        return String.format("Compression: %d frames, %d KB -> %d KB (%d KB saved, %.1f%%), %d not smaller, %.1f ms CPU",
+                compressedFrames.get(), in / 1024, out / 1024, (in - out) / 1024,
+                in == 0 ? 0.0 : 100.0 * (in - out) / in, skippedFrames.get(), compressNanos.get() / 1e6);
+    }
+
+    private static class Compressor {
+        private final Deflater deflater = new Deflater(ServerConfig.COMPRESSION_LEVEL);
+        private byte[] output = new byte[16 * 1024];
+
+        // The complete COMPRESSED frame for one body
+        ByteBuffer deflate(byte[] body, int offset, int length) {
+            deflater.reset();
+            deflater.setInput(body, offset, length);
+            deflater.finish();
+            // Header: frame length, type, uncompressed body length
+            int size = 9;
+            while (!deflater.finished()) {
+                if (size == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                size += deflater.deflate(output, size, output.length - size);
+            }
+            ByteBuffer frame = ByteBuffer.allocate(size);
+            frame.putInt(size - 4)
+                 .put(BinaryProtocol.COMPRESSED)
+                 .putInt(length)
+                 .put(output, 9, size - 9)
+                 .flip();
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+// GroupDirectory.java
+package messenger;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Group channels and their members, loaded once at startup and kept in
+// memory like the user directory, so sending to a group needs no query to
+// find its recipients. New groups are written through to the chat_groups
+// and group_members tables before they become visible.
+class GroupDirectory {
+
+    static class Group {
+        final long id;
+        final String name;
+        // Unmodifiable, in the order they were added
+        private final List<UserDirectory.User> members;
+
+        Group(long id, String name, List<UserDirectory.User> members) {
+            this.id = id;
+            this.name = name;
+            this.members = Collections.unmodifiableList(members);
+        }
+
+        List<UserDirectory.User> members() {
+            return members;
+        }
+
+        boolean hasMember(UserDirectory.User user) {
+            return members.contains(user);
+        }
+    }
+
+    private final Database database;
+    private final UserDirectory users;
+    private final ConcurrentHashMap<String, Group> byName = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Set<Group>> byMember = new ConcurrentHashMap<>();
+
+    GroupDirectory(Database database, UserDirectory users) {
+        this.database = database;
+        this.users = users;
+    }
+
+    // After the user directory, which it takes the members from
+    void load() throws SQLException {
+        try (Database.PooledConnection db = database.reader("load_groups")) {
+            Map<Long, List<UserDirectory.User>> members = new HashMap<>();
+            PreparedStatement stmt = db.prepare("SELECT group_id, user_id FROM group_members");
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    UserDirectory.User user = users.find(rs.getLong("user_id"));
+                    if (user != null) {
+                        members.computeIfAbsent(rs.getLong("group_id"), id -> new ArrayList<>()).add(user);
+                    }
+                }
+            }
+            stmt = db.prepare("SELECT id, name FROM chat_groups");
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    long id = rs.getLong("id");
+                    index(new Group(id, rs.getString("name"), members.getOrDefault(id, new ArrayList<>())));
+                }
+            }
+        }
+    }
+
+    // A group another node of the cluster created; its members may be new
+    // to this node's user directory too
+    void load(String name) throws SQLException {
+        if (byName.containsKey(name)) {
+            return;
+        }
+        try (Database.PooledConnection db = database.reader("load_group")) {
+            PreparedStatement stmt = db.prepare("SELECT id FROM chat_groups WHERE name = ?");
+            stmt.setString(1, name);
+            long id;
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return;
+                }
+                id = rs.getLong("id");
+            }
+            List<UserDirectory.User> members = new ArrayList<>();
+            stmt = db.prepare("SELECT u.id, u.username FROM group_members m JOIN users u ON u.id = m.user_id " +
+                              "WHERE m.group_id = ? ORDER BY u.id");
+            stmt.setLong(1, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    members.add(users.add(rs.getLong("id"), rs.getString("username")));
+                }
+            }
+            synchronized (this) {
+                if (!byName.containsKey(name)) {
+                    index(new Group(id, name, members));
+                }
+            }
+        }
+    }
+
+    // null if there is no such group
+    Group find(String name) {
+        return byName.get(name);
+    }
+
+    // Null if the name is taken. The owner is always a member.
+    Group create(String name, UserDirectory.User owner, Collection<UserDirectory.User> members) throws SQLException {
+        List<UserDirectory.User> all = new ArrayList<>();
+        all.add(owner);
+        for (UserDirectory.User member : members) {
+            if (!all.contains(member)) {
+                all.add(member);
+            }
+        }
+        Group group;
+        synchronized (this) {
+            if (byName.containsKey(name)) {
+                return null;
+            }
+            group = new Group(insert(name, owner, all), name, all);
+            index(group);
+        }
+        return group;
+    }
+
+    // The groups the user belongs to
+    Collection<Group> of(UserDirectory.User user) {
+        Set<Group> groups = byMember.get(user.id);
+        return groups != null ? groups : Collections.emptySet();
+    }
+
+    int size() {
+        return byName.size();
+    }
+
+    private long insert(String name, UserDirectory.User owner, List<UserDirectory.User> members) throws SQLException {
+        try (Database.PooledConnection db = database.writer("create_group")) {
+            db.connection().setAutoCommit(false);
+            try {
+                PreparedStatement stmt = db.prepare("INSERT INTO chat_groups(name, owner_id) VALUES(?, ?)");
+                stmt.setString(1, name);
+                stmt.setLong(2, owner.id);
+                stmt.executeUpdate();
+                long id = db.lastInsertId();
+                stmt = db.prepare("INSERT INTO group_members(group_id, user_id) VALUES(?, ?)");
+                for (UserDirectory.User member : members) {
+                    stmt.setLong(1, id);
+                    stmt.setLong(2, member.id);
+                    stmt.executeUpdate();
+                }
+                db.connection().commit();
+                return id;
+            } catch (SQLException e) {
+                db.connection().rollback();
+                throw e;
+            } finally {
+                db.connection().setAutoCommit(true);
+            }
+        }
+    }
+
+    private void index(Group group) {
+        byName.put(group.name, group);
+        for (UserDirectory.User member : group.members()) {
+            byMember.computeIfAbsent(member.id, id -> ConcurrentHashMap.newKeySet()).add(group);
+        }
+    }
+}
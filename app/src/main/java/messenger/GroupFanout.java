@@ -0,0 +1,61 @@
+// GroupFanout.java
+package messenger;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Pushes a stored group message to the members who are online. The frame is
+// encoded once per wire format in use rather than once per member, and that
+// one buffer is handed to every connection, which each queue only a
+// duplicate of, as presence broadcasts do. Members who are offline read
+// the message from the group history later.
+class GroupFanout {
+    private final Map<String, ? extends ClientConnection> onlineUsers;
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicLong encodings = new AtomicLong();
+    private final AtomicLong maxDeliveries = new AtomicLong();
+
+    GroupFanout(Map<String, ? extends ClientConnection> onlineUsers) {
+        this.onlineUsers = onlineUsers;
+    }
+
+    // Returns how many members it was pushed to; the sender is skipped
+    int send(GroupDirectory.Group group, String sender, String content) {
+        ByteBuffer[] encoded = new ByteBuffer[WireFormat.values().length];
+        int sent = 0;
+        for (UserDirectory.User member : group.members()) {
+            if (member.name.equals(sender)) {
+                continue;
+            }
+            ClientConnection client = onlineUsers.get(member.name);
+            if (client == null) {
+                continue;
+            }
+            WireFormat format = client.format();
+            ByteBuffer frame = encoded[format.ordinal()];
+            if (frame == null) {
+                frame = format.groupMessage(group.name, sender, content);
+                encoded[format.ordinal()] = frame;
+                encodings.incrementAndGet();
+            }
+            client.sendFrame(frame);
+            sent++;
+        }
+        messages.incrementAndGet();
+        deliveries.addAndGet(sent);
+        maxDeliveries.accumulateAndGet(sent, Math::max);
+        return sent;
+    }
+
+    long deliveries() {
+        return deliveries.get();
+    }
+
+    String stats() {
+        return String.format("Group fan-out: %d messages pushed %d times (max %d at once) from %d encodings",
+                messages.get(), deliveries.get(), maxDeliveries.get(), encodings.get());
+    }
+}
@@ -0,0 +1,128 @@
+// LatencyHistogram.java
+package messenger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free histogram of durations in nanoseconds. Buckets are powers of two
+// split into 8 linear steps, so any recorded value is reported within 12.5%
+// in a few KB, however many values are recorded.
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long previous;
+        while (nanos > (previous = max.get()) && !max.compareAndSet(previous, nanos)) {
+            // Lost a race with a larger value; retry
+        }
+    }
+
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    long count() {
+        return count.get();
+    }
+
+    long sumNanos() {
+        return sum.get();
+    }
+
+    long maxNanos() {
+        return max.get();
+    }
+
+    double meanNanos() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    // Upper bound of the bucket holding the given percentile, 0 when empty
+    long percentileNanos(double percent) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // For each ascending bound, how many values fell in buckets lying wholly
+    // at or below it; the extra last element is the total. Values sharing a
+    // bucket with a bound are counted above it.
+    long[] cumulativeCounts(long[] boundsNanos) {
+        long[] result = new long[boundsNanos.length + 1];
+        long seen = 0;
+        int bound = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = counts.get(i);
+            if (n == 0) {
+                continue;
+            }
+            long upper = upperBound(i);
+            while (bound < boundsNanos.length && upper > boundsNanos[bound]) {
+                result[bound++] = seen;
+            }
+            seen += n;
+        }
+        while (bound < boundsNanos.length) {
+            result[bound++] = seen;
+        }
+        result[boundsNanos.length] = seen;
+        return result;
+    }
+
+    // "p50 1.20 ms, p90 2.10 ms, p99 4.80 ms, p99.9 9.10 ms, max 12.00 ms"
+    String summary() {
+        return String.format("p50 %s, p90 %s, p99 %s, p99.9 %s, max %s",
+                format(percentileNanos(50)), format(percentileNanos(90)), format(percentileNanos(99)),
+                format(percentileNanos(99.9)), format(max.get()));
+    }
+
+    static String format(long nanos) {
+        if (nanos < TimeUnit.MILLISECONDS.toNanos(1)) {
+            return String.format("%.0f us", nanos / 1e3);
+        }
+        return String.format("%.2f ms", nanos / 1e6);
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long step = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (bucket % SUB_BUCKETS) * step + step - 1;
+    }
+}
@@ -0,0 +1,372 @@
+// LoadTest.java
+package messenger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Simulates many chat users against a running server, all through
+// ServerConnection. Each session logs in (registering on first use), picks a
+// contact and loads its history, chats at a steady rate, switches contacts
+// now and then and may log off and back on. Messages carry their send time,
+// so the receiving session measures end-to-end delivery latency.
+//
+//   java -cp messenger.jar messenger.LoadTest [host] [port] [sessions] [seconds]
+//
+// Settings (-D):
+//   load.rate            messages per second per session (0.2)
+//   load.switchSeconds   mean time on one contact before switching (30)
+//   load.sessionSeconds  mean time logged in before logging off and back on, 0 = stay (0)
+//   load.protocol        text, binary or deflate (binary)
+//   load.messageBytes    message size (64)
+//   load.concurrency     logins in flight while ramping up (32)
+//   load.nodes           cluster nodes listening on port, port+1, ...; session i
+//                        uses node i % nodes (1)
+//
+// Users are named load0..loadN-1 with password "load". Every session needs a
+// socket and a reader thread, so raise ulimit -n on both sides for large runs.
+public class LoadTest {
+    private static final String PASSWORD = "load";
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private static final int REPORT_SECONDS = 5;
+    private static final long RELOGIN_DELAY_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    private final int seconds;
+    private final double rate = Double.parseDouble(System.getProperty("load.rate", "0.2"));
+    private final double switchSeconds = Double.parseDouble(System.getProperty("load.switchSeconds", "30"));
+    private final double sessionSeconds = Double.parseDouble(System.getProperty("load.sessionSeconds", "0"));
+    private final WireFormat protocol = protocol(System.getProperty("load.protocol", "binary"));
+    private final int messageBytes = Integer.getInteger("load.messageBytes", 64);
+    private final int concurrency = Integer.getInteger("load.concurrency", 32);
+    private final int nodes = Math.max(1, Integer.getInteger("load.nodes", 1));
+
+    private final Session[] sessions;
+    private final ScheduledExecutorService scheduler =
+            Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), daemonThreads("load-driver", 0));
+    private final ExecutorService loginPool = Executors.newFixedThreadPool(concurrency, daemonThreads("load-login", 0));
+    private final ThreadFactory readerThreads = daemonThreads("load-reader", 256 * 1024);
+    private volatile boolean running;
+
+    private final LatencyHistogram loginLatency = new LatencyHistogram();
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private final LatencyHistogram historyLatency = new LatencyHistogram();
+    private volatile LatencyHistogram intervalLatency = new LatencyHistogram();
+    private final AtomicLong logins = new AtomicLong();
+    private final AtomicLong loginFailures = new AtomicLong();
+    private final AtomicLong logoffs = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong switches = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong sentToOnline = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicInteger online = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 12345;
+        int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 60;
+        new LoadTest(host, port, sessions, seconds).run();
+    }
+
+    LoadTest(String host, int port, int sessionCount, int seconds) {
+        this.host = host;
+        this.port = port;
+        this.seconds = seconds;
+        this.sessions = new Session[sessionCount];
+        for (int i = 0; i < sessionCount; i++) {
+            sessions[i] = new Session(i);
+        }
+    }
+
+    void run() throws Exception {
+        if (sessions.length < 2) {
+            System.out.println("Need at least two sessions");
+            return;
+        }
+        System.out.printf("Logging in %d sessions to %s:%d%s over %s (%d at a time)%n",
+                sessions.length, host, port, nodes > 1 ? "-" + (port + nodes - 1) : "",
+                protocol.name().toLowerCase(), concurrency);
+        long rampStart = System.nanoTime();
+        List<Future<?>> rampUp = new ArrayList<>(sessions.length);
+        for (Session session : sessions) {
+            rampUp.add(loginPool.submit(session::logIn));
+        }
+        for (Future<?> login : rampUp) {
+            login.get();
+        }
+        double rampSeconds = (System.nanoTime() - rampStart) / 1e9;
+        System.out.printf("%d/%d sessions online after %.1f s (%.0f logins/s), %d failed%n",
+                online.get(), sessions.length, rampSeconds, logins.get() / rampSeconds, loginFailures.get());
+        if (online.get() < 2) {
+            System.out.println("Not enough sessions to chat, is the server running?");
+            return;
+        }
+
+        System.out.printf("Chatting for %d s: %.2f msg/s per session (%.0f msg/s total), %d-byte messages%n",
+                seconds, rate, rate * online.get(), messageBytes);
+        running = true;
+        long start = System.nanoTime();
+        for (Session session : sessions) {
+            session.startActivity();
+        }
+        ScheduledFuture<?> reporter = scheduler.scheduleAtFixedRate(new Reporter(start),
+                REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running = false;
+        reporter.cancel(false);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        // Messages still in flight get a moment to arrive
+        long sentTotal = sent.get();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (delivered.get() < sentToOnline.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        report(elapsed, sentTotal);
+
+        scheduler.shutdownNow();
+        loginPool.shutdownNow();
+        for (Session session : sessions) {
+            session.close();
+        }
+    }
+
+    private void report(double elapsed, long sentTotal) {
+        System.out.println();
+        System.out.printf("Sessions: %d, logins %d (%d failed), logoffs %d, unexpected disconnects %d%n",
+                sessions.length, logins.get(), loginFailures.get(), logoffs.get(), disconnects.get());
+        System.out.println("Login latency:    " + loginLatency.summary());
+        System.out.printf("Messages: %d sent (%.0f msg/s), %d to online recipients, %d delivered (%.2f%%, %.0f msg/s)%n",
+                sentTotal, sentTotal / elapsed, sentToOnline.get(), delivered.get(),
+                sentToOnline.get() == 0 ? 0.0 : 100.0 * delivered.get() / sentToOnline.get(), delivered.get() / elapsed);
+        System.out.println("Delivery latency: " + deliveryLatency.summary());
+        System.out.printf("Contact switches: %d, history page latency: %s%n", switches.get(), historyLatency.summary());
+        if (throttled.get() > 0) {
+            System.out.printf("Requests throttled by the server: %d%n", throttled.get());
+        }
+    }
+
+    // One interval line every few seconds while chatting
+    private class Reporter implements Runnable {
+        private final long start;
+        private long lastSent;
+        private long lastDelivered;
+
+        Reporter(long start) {
+            this.start = start;
+        }
+
+        @Override
+        public void run() {
+            LatencyHistogram interval = intervalLatency;
+            intervalLatency = new LatencyHistogram();
+            long sentNow = sent.get();
+            long deliveredNow = delivered.get();
+            System.out.printf("[%4ds] online %d, sent %d/s, delivered %d/s, delivery p50 %s, p99 %s, max %s%n",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), online.get(),
+                    (sentNow - lastSent) / REPORT_SECONDS, (deliveredNow - lastDelivered) / REPORT_SECONDS,
+                    LatencyHistogram.format(interval.percentileNanos(50)),
+                    LatencyHistogram.format(interval.percentileNanos(99)),
+                    LatencyHistogram.format(interval.maxNanos()));
+            lastSent = sentNow;
+            lastDelivered = deliveredNow;
+        }
+    }
+
+    private class Session implements ServerConnection.Listener {
+        private final String name;
+        // The node this user logs in to
+        private final int port;
+        private final String padding;
+        private volatile ServerConnection connection;
+        private volatile Session contact;
+        private volatile long historyRequestedAt;
+
+        Session(int index) {
+            this.name = "load" + index;
+            this.port = LoadTest.this.port + index % nodes;
+            StringBuilder text = new StringBuilder();
+            while (text.length() < messageBytes - 21) {
+                text.append('x');
+            }
+            this.padding = text.toString();
+        }
+
+        // Blocking LOGIN, registering the user first if it does not exist yet
+        void logIn() {
+            long start = System.nanoTime();
+            try {
+                ServerConnection connection = ServerConnection.open(host, port, protocol);
+                if (!connection.login(name, PASSWORD)) {
+                    connection.close();
+                    try (ServerConnection registration = ServerConnection.open(host, port, protocol)) {
+                        registration.register(name, PASSWORD);
+                    }
+                    connection = ServerConnection.open(host, port, protocol);
+                    if (!connection.login(name, PASSWORD)) {
+                        connection.close();
+                        loginFailures.incrementAndGet();
+                        return;
+                    }
+                }
+                loginLatency.recordSince(start);
+                logins.incrementAndGet();
+                this.connection = connection;
+                online.incrementAndGet();
+                connection.start(this, readerThreads);
+            } catch (IOException e) {
+                loginFailures.incrementAndGet();
+            }
+        }
+
+        void startActivity() {
+            if (connection == null) {
+                return;
+            }
+            switchContact();
+            if (rate > 0) {
+                schedule(this::sendMessage, 1 / rate);
+            }
+            if (switchSeconds > 0) {
+                schedule(this::switchContact, switchSeconds);
+            }
+            if (sessionSeconds > 0) {
+                schedule(this::logOff, sessionSeconds);
+            }
+        }
+
+        // Like opening a chat in the client: pick someone and load the latest page
+        private void switchContact() {
+            ServerConnection current = connection;
+            if (current == null) {
+                return;
+            }
+            Session next;
+            do {
+                next = sessions[ThreadLocalRandom.current().nextInt(sessions.length)];
+            } while (next == this);
+            contact = next;
+            historyRequestedAt = System.nanoTime();
+            current.requestHistoryPage(next.name, HISTORY_PAGE_SIZE, 0);
+            switches.incrementAndGet();
+        }
+
+        private void sendMessage() {
+            ServerConnection current = connection;
+            Session recipient = contact;
+            if (current == null || recipient == null) {
+                return;
+            }
+            if (recipient.connection != null) {
+                sentToOnline.incrementAndGet();
+            }
+            current.sendPrivateMessage(recipient.name, "t" + System.nanoTime() + " " + padding);
+            sent.incrementAndGet();
+        }
+
+        private void logOff() {
+            ServerConnection current = connection;
+            if (current == null) {
+                return;
+            }
+            connection = null;
+            online.decrementAndGet();
+            current.close();
+            logoffs.incrementAndGet();
+            scheduler.schedule(() -> loginPool.execute(() -> {
+                if (running) {
+                    logIn();
+                    startActivity();
+                }
+            }), RELOGIN_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        // Runs the action at random intervals averaging meanSeconds, as long
+        // as this login lasts
+        private void schedule(Runnable action, double meanSeconds) {
+            ServerConnection current = connection;
+            long delayMicros = (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * meanSeconds * 1e6);
+            scheduler.schedule(() -> {
+                if (running && connection == current) {
+                    action.run();
+                    if (connection == current) {
+                        schedule(action, meanSeconds);
+                    }
+                }
+            }, delayMicros, TimeUnit.MICROSECONDS);
+        }
+
+        void close() {
+            ServerConnection current = connection;
+            connection = null;
+            if (current != null) {
+                current.close();
+            }
+        }
+
+        @Override
+        public void onPrivateMessage(String sender, String content) {
+            int space = content.indexOf(' ');
+            if (content.startsWith("t") && space > 1) {
+                long latency = System.nanoTime() - Long.parseLong(content.substring(1, space));
+                deliveryLatency.record(latency);
+                intervalLatency.record(latency);
+                delivered.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onHistory(boolean since, String contactName, long cursor, boolean hasMore,
+                              List<MessageCache.Message> messages) {
+            long requestedAt = historyRequestedAt;
+            Session current = contact;
+            if (requestedAt != 0 && current != null && current.name.equals(contactName)) {
+                historyLatency.recordSince(requestedAt);
+                historyRequestedAt = 0;
+            }
+        }
+
+        @Override
+        public void onThrottled(String command, long retryAfterMillis) {
+            throttled.incrementAndGet();
+        }
+
+        @Override
+        public void onClose(IOException cause) {
+            if (cause != null && running) {
+                disconnects.incrementAndGet();
+                if (connection != null) {
+                    connection = null;
+                    online.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static WireFormat protocol(String name) {
+        switch (name) {
+            case "text":
+                return WireFormat.TEXT;
+            case "deflate":
+                return WireFormat.BINARY_DEFLATE;
+            default:
+                return WireFormat.BINARY;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix, long stackSize) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(null, r, prefix + "-" + threadCount.incrementAndGet(), stackSize);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
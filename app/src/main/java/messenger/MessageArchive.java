@@ -0,0 +1,432 @@
+// MessageArchive.java
+package messenger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Old one-to-one messages, moved out of the live messages table into one
+// SQLite file per month (archive/messages-2024-05.db), so the live table and
+// its indexes only hold the retention window.
+//
+// A background job moves delivered messages older than retentionDays in
+// small batches. Each batch is a writer task queued behind the messages
+// already waiting, so storing messages pauses for one batch at most, never
+// for a whole run. A batch first copies its rows into the month's file and
+// only then deletes them from the live table; if the server stops in
+// between, the next run copies them again harmlessly. Whole months older
+// than archiveMonths are deleted.
+//
+// History pages read the live table first and go on into the archive, newest
+// month first, only when the live table runs out. Archived messages are no
+// longer in the search index, and the legacy GET_HISTORY lists live ones only.
+//
+// Deleting rows leaves free pages that SQLite reuses, so the live file
+// stops growing but doesn't shrink. With the server stopped, run
+//   java -cp messenger.jar messenger.MessageArchive vacuum
+// to compact it and every archive file.
+class MessageArchive {
+    private static final Pattern FILE_NAME = Pattern.compile("messages-(\\d{4}-\\d{2})\\.db");
+
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS archive.messages (" +
+            "id INTEGER PRIMARY KEY, " +
+            "sender_id INTEGER NOT NULL, " +
+            "receiver_id INTEGER NOT NULL, " +
+            "message TEXT NOT NULL, " +
+            "timestamp DATETIME, " +
+            "conversation_id INTEGER NOT NULL)",
+        "CREATE INDEX IF NOT EXISTS archive.idx_messages_conversation ON messages(conversation_id, id)"
+    };
+
+    private final Database database;
+    private final Path directory;
+    private final int retentionDays;
+    private final int keepMonths;
+    private final int batchSize;
+    // Open read-only connections by month
+    private final Map<String, Connection> readers = new ConcurrentHashMap<>();
+    // {min id, max id, data_version} of each month's file except the newest,
+    // valid while the file's data_version is unchanged
+    private final Map<String, long[]> idRanges = new ConcurrentHashMap<>();
+
+    private final AtomicLong archived = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong maxBatchNanos = new AtomicLong();
+    private final AtomicLong droppedMonths = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+
+    MessageArchive(Database database, Path directory, int retentionDays, int keepMonths, int batchSize) {
+        this.database = database;
+        this.directory = directory;
+        this.retentionDays = retentionDays;
+        this.keepMonths = keepMonths;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    // Archives every intervalMinutes on a thread of its own, which only
+    // waits for the writer
+    void start(MessageWriter writer, int intervalMinutes) {
+        if (retentionDays <= 0) {
+            return;
+        }
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "message-archiver");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> run(writer), 1, Math.max(1, intervalMinutes), TimeUnit.MINUTES);
+    }
+
+    // One pass: batches until nothing older than the retention window is
+    // left, then whole months past keepMonths are deleted
+    void run(MessageWriter writer) {
+        long[] cursor = {0};
+        long moved = 0;
+        try {
+            Files.createDirectories(directory);
+            while (true) {
+                AtomicLong batch = new AtomicLong();
+                writer.execute("archive_messages", db -> batch.set(archiveBatch(db, cursor))).get();
+                if (batch.get() < 0) {
+                    break;
+                }
+                moved += batch.get();
+            }
+            dropExpired();
+        } catch (IOException | ExecutionException e) {
+            Server.log("Archiving failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (moved > 0) {
+            Server.log("Archived " + moved + " messages");
+        }
+    }
+
+    // Moves the delivered messages after the cursor that are past the
+    // window, up to one batch and within one month, and advances the cursor.
+    // Messages still waiting for delivery are passed over. -1 when there is
+    // nothing left to move.
+    private long archiveBatch(Database.PooledConnection db, long[] cursor) throws SQLException {
+        long start = System.nanoTime();
+        PreparedStatement stmt = db.prepare(
+                "SELECT id, delivered, strftime('%Y-%m', timestamp) AS month, timestamp < datetime('now', ?) AS expired " +
+                "FROM messages WHERE id > ? ORDER BY id LIMIT ?");
+        stmt.setString(1, "-" + retentionDays + " days");
+        stmt.setLong(2, cursor[0]);
+        stmt.setInt(3, batchSize);
+        String month = null;
+        long last = cursor[0];
+        long count = 0;
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next() && rs.getBoolean("expired")) {
+                if (month == null) {
+                    month = rs.getString("month");
+                } else if (!month.equals(rs.getString("month"))) {
+                    break;
+                }
+                last = rs.getLong("id");
+                if (rs.getBoolean("delivered")) {
+                    count++;
+                }
+            }
+        }
+        if (month == null) {
+            return -1;
+        }
+        if (count > 0) {
+            move(db.connection(), month, cursor[0], last);
+        }
+        cursor[0] = last;
+        long elapsed = System.nanoTime() - start;
+        archived.addAndGet(count);
+        batches.incrementAndGet();
+        maxBatchNanos.accumulateAndGet(elapsed, Math::max);
+        return count;
+    }
+
+    // Copies (after, last] into the month's file, then deletes it from the
+    // live table, as two transactions; a copy left behind by a crash is
+    // skipped next time
+    private void move(Connection connection, String month, long after, long last) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("ATTACH DATABASE '" + file(month).toString().replace("'", "''") + "' AS archive");
+            try {
+                stmt.execute("PRAGMA archive.journal_mode = WAL");
+                for (String sql : SCHEMA) {
+                    stmt.executeUpdate(sql);
+                }
+                try (PreparedStatement copy = connection.prepareStatement(
+                        "INSERT OR IGNORE INTO archive.messages(id, sender_id, receiver_id, message, timestamp, conversation_id) " +
+                        "SELECT id, sender_id, receiver_id, message, timestamp, conversation_id FROM main.messages " +
+                        "WHERE id > ? AND id <= ? AND delivered")) {
+                    copy.setLong(1, after);
+                    copy.setLong(2, last);
+                    copy.executeUpdate();
+                }
+                try (PreparedStatement delete = connection.prepareStatement(
+                        "DELETE FROM main.messages WHERE id > ? AND id <= ? AND delivered")) {
+                    delete.setLong(1, after);
+                    delete.setLong(2, last);
+                    delete.executeUpdate();
+                }
+            } finally {
+                stmt.execute("DETACH DATABASE archive");
+            }
+        }
+    }
+
+    // Whole months older than keepMonths
+    private void dropExpired() throws IOException {
+        if (keepMonths <= 0) {
+            return;
+        }
+        String oldestKept = YearMonth.now(ZoneOffset.UTC).minusMonths(keepMonths).toString();
+        for (String month : months()) {
+            if (month.compareTo(oldestKept) < 0) {
+                close(month);
+                Files.deleteIfExists(file(month));
+                Files.deleteIfExists(Paths.get(file(month) + "-wal"));
+                Files.deleteIfExists(Paths.get(file(month) + "-shm"));
+                droppedMonths.incrementAndGet();
+                Server.log("Deleted archived messages of " + month);
+            }
+        }
+    }
+
+    // The newest archived messages of the conversation older than beforeId
+    // (0 = all), oldest first, as if the live table went on. With limit 0
+    // it only tells whether there are any.
+    RecentMessages.Page before(long conversation, long beforeId, int limit) throws SQLException {
+        List<String> months = months();
+        if (months.isEmpty()) {
+            return new RecentMessages.Page(new ArrayList<>(), false);
+        }
+        reads.incrementAndGet();
+        long cursor = beforeId > 0 ? beforeId : Long.MAX_VALUE;
+        List<RecentMessages.Message> newestFirst = new ArrayList<>();
+        for (int i = months.size() - 1; i >= 0 && newestFirst.size() <= limit; i--) {
+            long[] range = range(months.get(i), i == months.size() - 1);
+            if (range != null && range[0] >= cursor) {
+                continue;
+            }
+            query(months.get(i), "SELECT id, sender_id, message, strftime('%s', timestamp) AS sent FROM messages " +
+                    "WHERE conversation_id = ? AND id < ? ORDER BY id DESC LIMIT ?",
+                    conversation, cursor, limit + 1 - newestFirst.size(), newestFirst);
+        }
+        boolean hasMore = newestFirst.size() > limit;
+        List<RecentMessages.Message> page = new ArrayList<>(newestFirst.subList(0, Math.min(limit, newestFirst.size())));
+        Collections.reverse(page);
+        return new RecentMessages.Page(page, hasMore);
+    }
+
+    // The first `limit` archived messages of the conversation newer than afterId
+    RecentMessages.Page after(long conversation, long afterId, int limit) throws SQLException {
+        List<String> months = months();
+        List<RecentMessages.Message> page = new ArrayList<>();
+        if (months.isEmpty()) {
+            return new RecentMessages.Page(page, false);
+        }
+        reads.incrementAndGet();
+        for (int i = 0; i < months.size() && page.size() <= limit; i++) {
+            long[] range = range(months.get(i), i == months.size() - 1);
+            if (range != null && range[1] <= afterId) {
+                continue;
+            }
+            long cursor = page.isEmpty() ? afterId : page.get(page.size() - 1).id;
+            query(months.get(i), "SELECT id, sender_id, message, strftime('%s', timestamp) AS sent FROM messages " +
+                    "WHERE conversation_id = ? AND id > ? ORDER BY id LIMIT ?",
+                    conversation, cursor, limit + 1 - page.size(), page);
+        }
+        boolean hasMore = page.size() > limit;
+        return new RecentMessages.Page(hasMore ? new ArrayList<>(page.subList(0, limit)) : page, hasMore);
+    }
+
+    // Every archived message of the conversation, oldest first, for the
+    // legacy GET_HISTORY, which has no paging
+    List<RecentMessages.Message> all(long conversation) throws SQLException {
+        List<RecentMessages.Message> messages = new ArrayList<>();
+        List<String> months = months();
+        if (!months.isEmpty()) {
+            reads.incrementAndGet();
+        }
+        for (String month : months) {
+            // LIMIT -1 is no limit
+            query(month, "SELECT id, sender_id, message, strftime('%s', timestamp) AS sent FROM messages " +
+                    "WHERE conversation_id = ? AND id > ? ORDER BY id LIMIT ?",
+                    conversation, 0, -1, messages);
+        }
+        return messages;
+    }
+
+    long archivedMessages() {
+        return archived.get();
+    }
+
+    String stats() {
+        return String.format("Archive: %d messages moved in %d batches (max %.1f ms), %d months deleted, %d reads",
+                archived.get(), batches.get(), maxBatchNanos.get() / 1e6, droppedMonths.get(), reads.get());
+    }
+
+    private void query(String month, String sql, long conversation, long cursor, int limit,
+                       List<RecentMessages.Message> into) throws SQLException {
+        Connection connection = reader(month);
+        synchronized (connection) {
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setLong(1, conversation);
+                stmt.setLong(2, cursor);
+                stmt.setInt(3, limit);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        into.add(new RecentMessages.Message(rs.getLong("id"), rs.getLong("sender_id"),
+                                rs.getLong("sent"), rs.getString("message")));
+                    }
+                }
+            }
+        }
+    }
+
+    // {min id, max id} of a finished month's file, or null for the newest
+    // month or an empty file. Undelivered messages can still be archived
+    // into a finished month later, by this node or node 0, so a cached
+    // range only stands while PRAGMA data_version says no other connection
+    // has written to the file since.
+    private long[] range(String month, boolean newest) throws SQLException {
+        if (newest) {
+            return null;
+        }
+        Connection connection = reader(month);
+        synchronized (connection) {
+            try (Statement stmt = connection.createStatement()) {
+                long version;
+                try (ResultSet rs = stmt.executeQuery("PRAGMA data_version")) {
+                    version = rs.next() ? rs.getLong(1) : -1;
+                }
+                long[] range = idRanges.get(month);
+                if (range != null && range[2] == version) {
+                    return range;
+                }
+                try (ResultSet rs = stmt.executeQuery("SELECT min(id), max(id), count(*) FROM messages")) {
+                    if (!rs.next() || rs.getLong(3) == 0) {
+                        idRanges.remove(month);
+                        return null;
+                    }
+                    range = new long[] {rs.getLong(1), rs.getLong(2), version};
+                }
+                idRanges.put(month, range);
+                return range;
+            }
+        }
+    }
+
+    private Connection reader(String month) throws SQLException {
+        Connection connection = readers.get(month);
+        if (connection == null) {
+            synchronized (readers) {
+                connection = readers.get(month);
+                if (connection == null) {
+                    connection = DriverManager.getConnection("jdbc:sqlite:" + file(month));
+                    try (Statement stmt = connection.createStatement()) {
+                        stmt.executeUpdate("PRAGMA busy_timeout = 5000");
+                        stmt.executeUpdate("PRAGMA query_only = ON");
+                    }
+                    readers.put(month, connection);
+                }
+            }
+        }
+        return connection;
+    }
+
+    private void close(String month) {
+        idRanges.remove(month);
+        Connection connection = readers.remove(month);
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // Its file is being deleted anyway
+            }
+        }
+    }
+
+    // Months with an archive file, oldest first; connections to files that
+    // are gone (deleted by another node) are closed
+    private List<String> months() {
+        List<String> months = new ArrayList<>();
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "messages-*.db")) {
+                for (Path file : files) {
+                    Matcher name = FILE_NAME.matcher(file.getFileName().toString());
+                    if (name.matches()) {
+                        months.add(name.group(1));
+                    }
+                }
+            } catch (IOException e) {
+                Server.log("Could not list " + directory + ": " + e.getMessage());
+            }
+        }
+        Collections.sort(months);
+        for (String open : new ArrayList<>(readers.keySet())) {
+            if (!months.contains(open)) {
+                close(open);
+            }
+        }
+        return months;
+    }
+
+    private Path file(String month) {
+        return directory.resolve("messages-" + month + ".db");
+    }
+
+    // Offline maintenance, with the server stopped:
+    //   java -cp messenger.jar messenger.MessageArchive vacuum
+    // rewrites the database and every archive file without their free pages.
+    // The same -Dmessenger.db and -Dmessenger.archiveDir as the server apply.
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1 || !args[0].equals("vacuum")) {
+            System.out.println("Usage: java -cp messenger.jar messenger.MessageArchive vacuum");
+            return;
+        }
+        vacuum(ServerConfig.DB_URL);
+        MessageArchive archive = new MessageArchive(null, Paths.get(ServerConfig.ARCHIVE_DIR), 0, 0, 1);
+        for (String month : archive.months()) {
+            vacuum("jdbc:sqlite:" + archive.file(month));
+        }
+    }
+
+    private static void vacuum(String url) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection connection = DriverManager.getConnection(url);
+             Statement stmt = connection.createStatement()) {
+            long before = pages(stmt);
+            stmt.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+            stmt.execute("VACUUM");
+            stmt.execute("PRAGMA optimize");
+            System.out.printf("%s: %d -> %d pages in %.1f s%n", url, before, pages(stmt), (System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    private static long pages(Statement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("PRAGMA page_count")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+// MessageCache.java
+package messenger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The client's copy of recent conversations, so switching contacts renders
+// straight from memory and only messages newer than the last known id are
+// fetched. Bounded by the number of conversations (least recently opened
+// goes first) and by the messages kept per conversation (oldest go first).
+// Only touched on the event dispatch thread.
+class MessageCache {
+
+    static class Message {
+        final long id;          // 0 until the server has confirmed it
+        final String sender;
+        final String content;
+        final long sentMillis;
+
+        Message(long id, String sender, String content, long sentMillis) {
+            this.id = id;
+            this.sender = sender;
+            this.content = content;
+            this.sentMillis = sentMillis;
+        }
+
+        // What copying a message from the chat view puts on the clipboard
+        @Override
+        public String toString() {
+            return content;
+        }
+    }
+
+    static class Conversation {
+        // Confirmed messages in id order
+        final List<Message> messages = new ArrayList<>();
+        // Sent or received live since the last sync, in display order
+        final List<Message> unsynced = new ArrayList<>();
+        boolean hasOlder;
+
+        long oldestId() {
+            return messages.isEmpty() ? 0 : messages.get(0).id;
+        }
+
+        long newestId() {
+            return messages.isEmpty() ? 0 : messages.get(messages.size() - 1).id;
+        }
+    }
+
+    private final int maxMessages;
+    private final Map<String, Conversation> conversations;
+
+    MessageCache(int maxConversations, int maxMessages) {
+        this.maxMessages = maxMessages;
+        this.conversations = new LinkedHashMap<String, Conversation>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Conversation> eldest) {
+                return size() > maxConversations;
+            }
+        };
+    }
+
+    // null if the conversation isn't cached
+    Conversation get(String contact) {
+        return conversations.get(contact);
+    }
+
+    // Starts the conversation over from its newest page
+    Conversation reset(String contact, List<Message> newestPage, boolean hasOlder) {
+        Conversation conversation = new Conversation();
+        conversation.messages.addAll(newestPage);
+        conversation.hasOlder = hasOlder;
+        conversations.put(contact, conversation);
+        return conversation;
+    }
+
+    void remove(String contact) {
+        conversations.remove(contact);
+    }
+
+    void prependOlder(Conversation conversation, List<Message> page, boolean hasOlder) {
+        conversation.messages.addAll(0, page);
+        conversation.hasOlder = hasOlder;
+    }
+
+    // Confirmed messages replace whatever was shown live in the meantime
+    void appendSynced(Conversation conversation, List<Message> newer) {
+        conversation.messages.addAll(newer);
+        conversation.unsynced.clear();
+        trim(conversation);
+    }
+
+    // Drops the oldest messages beyond the bound, e.g. after scrolling far back
+    void trim(Conversation conversation) {
+        int excess = conversation.messages.size() - maxMessages;
+        if (excess > 0) {
+            conversation.messages.subList(0, excess).clear();
+            conversation.hasOlder = true;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+// MessageSearch.java
+package messenger;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Full-text search over the messages a user sent or received. Schema
+// migration 3 keeps an FTS5 index beside the messages table, filled by
+// triggers: a message is indexed in the same transaction that stores it and
+// dropped when it is deleted, so the index never lags behind. Besides the
+// text it indexes both participants as tokens (u<id>), which makes "only my
+// conversations" part of the index lookup rather than a filter over every
+// match. Results are ranked by bm25 on the text, best first, and carry a
+// snippet with the matching terms in brackets.
+class MessageSearch {
+    static final String HIGHLIGHT_START = "[";
+    static final String HIGHLIGHT_END = "]";
+    // Terms after this many are ignored
+    private static final int MAX_TERMS = 16;
+    // Tokens of context in a snippet
+    private static final int SNIPPET_TOKENS = 12;
+
+    private static final String SQL =
+            "SELECT f.rowid AS id, f.snippet, m.sender_id, m.receiver_id, strftime('%s', m.timestamp) AS sent " +
+            "FROM (SELECT rowid, rank, snippet(messages_fts, 0, '" + HIGHLIGHT_START + "', '" + HIGHLIGHT_END +
+            "', '...', " + SNIPPET_TOKENS + ") AS snippet " +
+            "      FROM messages_fts WHERE messages_fts MATCH ? ORDER BY rank LIMIT ? OFFSET ?) f " +
+            "JOIN messages m ON m.id = f.rowid ORDER BY f.rank";
+
+    private final Database database;
+    private final UserDirectory users;
+
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong emptySearches = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+
+    static class Page {
+        final List<WireFormat.SearchHit> hits;
+        final boolean hasMore;
+
+        Page(List<WireFormat.SearchHit> hits, boolean hasMore) {
+            this.hits = hits;
+            this.hasMore = hasMore;
+        }
+    }
+
+    MessageSearch(Database database, UserDirectory users) {
+        this.database = database;
+        this.users = users;
+    }
+
+    // Messages of `user` matching every term of the query, or only those in
+    // the conversation with `contact` when it isn't null. A term ending in *
+    // matches as a prefix.
+    Page search(UserDirectory.User user, UserDirectory.User contact, String query, int limit, int offset) throws SQLException {
+        searches.incrementAndGet();
+        String match = matchExpression(user.id, contact != null ? contact.id : 0, query);
+        List<WireFormat.SearchHit> page = new ArrayList<>(limit);
+        if (match == null) {
+            emptySearches.incrementAndGet();
+            return new Page(page, false);
+        }
+        try (Database.PooledConnection db = database.reader("search")) {
+            PreparedStatement stmt = db.prepare(SQL);
+            stmt.setString(1, match);
+            stmt.setInt(2, limit + 1);
+            stmt.setInt(3, Math.max(0, offset));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    if (page.size() == limit) {
+                        hits.addAndGet(page.size());
+                        return new Page(page, true);
+                    }
+                    long senderId = rs.getLong("sender_id");
+                    long otherId = senderId == user.id ? rs.getLong("receiver_id") : senderId;
+                    page.add(new WireFormat.SearchHit(rs.getLong("id"), name(otherId), name(senderId),
+                            rs.getLong("sent"), rs.getString("snippet")));
+                }
+            }
+        }
+        hits.addAndGet(page.size());
+        return new Page(page, false);
+    }
+
+    // Each term is quoted, so nothing the user types is FTS5 query syntax.
+    // Null when the query has no terms.
+    static String matchExpression(long userId, long contactId, String query) {
+        StringBuilder terms = new StringBuilder();
+        int count = 0;
+        for (String term : query.trim().split("\\s+")) {
+            boolean prefix = term.endsWith("*");
+            if (prefix) {
+                term = term.substring(0, term.length() - 1);
+            }
+            if (term.isEmpty() || count == MAX_TERMS) {
+                continue;
+            }
+            if (count++ > 0) {
+                terms.append(' ');
+            }
+            terms.append('"').append(term.replace("\"", "\"\"")).append('"');
+            if (prefix) {
+                terms.append('*');
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder("members:u").append(userId);
+        if (contactId > 0) {
+            match.append(" AND members:u").append(contactId);
+        }
+        return match.append(" AND message:(").append(terms).append(')').toString();
+    }
+
+    private String name(long id) {
+        UserDirectory.User user = users.find(id);
+        return user != null ? user.name : "?";
+    }
+
+    long searches() {
+        return searches.get();
+    }
+
+    String stats() {
+        return String.format("Search: %d queries (%d without terms), %d results",
+                searches.get(), emptySearches.get(), hits.get());
+    }
+}
@@ -0,0 +1,281 @@
+// MessageWriter.java
+package messenger;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Write-behind persistence for chat messages. Handlers queue messages and get
+// a future back; one background thread groups whatever is pending into a
+// single transaction on the writer connection, so one fsync covers many
+// messages. Committed messages are also added to the recent-messages cache.
+// Other writer work can be queued behind the messages with execute().
+class MessageWriter {
+
+    // Work for the writer thread, on the writer connection
+    interface Task {
+        void run(Database.PooledConnection db) throws SQLException;
+    }
+
+    static class PendingMessage {
+        final long senderId;
+        final long recipientId;
+        // Set instead of recipientId for a group message
+        final long groupId;
+        final String content;
+        // Stored as already delivered, i.e. not queued for the recipient's next login
+        final boolean delivered;
+        final CompletableFuture<Long> stored = new CompletableFuture<>();
+        final long queuedAt = System.nanoTime();
+        // Set instead of the message fields for execute()
+        final String taskName;
+        final Task task;
+
+        PendingMessage(long senderId, long recipientId, long groupId, String content, boolean delivered) {
+            this.senderId = senderId;
+            this.recipientId = recipientId;
+            this.groupId = groupId;
+            this.content = content;
+            this.delivered = delivered;
+            this.taskName = null;
+            this.task = null;
+        }
+
+        PendingMessage(String taskName, Task task) {
+            this.senderId = 0;
+            this.recipientId = 0;
+            this.groupId = 0;
+            this.content = null;
+            this.delivered = false;
+            this.taskName = taskName;
+            this.task = task;
+        }
+    }
+
+    private static final PendingMessage SHUTDOWN = new PendingMessage(0, 0, 0, null, false);
+
+    private final Database database;
+    private final RecentMessages recentMessages;
+    private final BlockingQueue<PendingMessage> queue;
+    private final int queueCapacity;
+    private final int batchSize;
+    private final long batchDelayNanos;
+    private final Thread thread;
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong maxBatch = new AtomicLong();
+    private final AtomicLong failedMessages = new AtomicLong();
+    private final AtomicLong commitNanos = new AtomicLong();
+    private final AtomicLong maxCommitNanos = new AtomicLong();
+
+    MessageWriter(Database database, RecentMessages recentMessages, int batchSize, int batchDelayMillis, int queueCapacity) {
+        this.database = database;
+        this.recentMessages = recentMessages;
+        this.batchSize = batchSize;
+        this.batchDelayNanos = TimeUnit.MILLISECONDS.toNanos(batchDelayMillis);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.queueCapacity = queueCapacity;
+        this.thread = new Thread(this::run, "message-writer");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // Blocks only if the queue is full, which pushes back on the senders.
+    // The future yields the new message id.
+    CompletableFuture<Long> submit(long senderId, long recipientId, String content, boolean delivered) {
+        return enqueue(new PendingMessage(senderId, recipientId, 0, content, delivered));
+    }
+
+    // One row however many members the group has; batched with the rest
+    CompletableFuture<Long> submitGroup(long senderId, long groupId, String content) {
+        return enqueue(new PendingMessage(senderId, 0, groupId, content, true));
+    }
+
+    // Runs the task once every message submitted before it is committed.
+    // The future completes when the task has run.
+    CompletableFuture<Long> execute(String name, Task task) {
+        return enqueue(new PendingMessage(name, task));
+    }
+
+    private CompletableFuture<Long> enqueue(PendingMessage message) {
+        try {
+            queue.put(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            message.stored.completeExceptionally(e);
+        }
+        return message.stored;
+    }
+
+    // Commits everything queued so far and stops the writer thread
+    void close() {
+        try {
+            queue.put(SHUTDOWN);
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int queueLength() {
+        return queue.size();
+    }
+
+    int queueCapacity() {
+        return queueCapacity;
+    }
+
+    long storedMessages() {
+        return messages.get();
+    }
+
+    long failedMessages() {
+        return failedMessages.get();
+    }
+
+    String stats() {
+        long batchCount = batches.get();
+        return String.format("Message writer: %d messages in %d batches (avg %.1f, max %d per batch), " +
+                        "commit avg %.2f ms, max %.2f ms, %d failed, %d queued",
+                messages.get(), batchCount,
+                batchCount == 0 ? 0.0 : (double) messages.get() / batchCount, maxBatch.get(),
+                batchCount == 0 ? 0.0 : commitNanos.get() / 1e6 / batchCount, maxCommitNanos.get() / 1e6,
+                failedMessages.get(), queue.size());
+    }
+
+    private void run() {
+        List<PendingMessage> batch = new ArrayList<>(batchSize);
+        boolean running = true;
+        while (running) {
+            // A task ends the batch; it runs once the messages before it are committed
+            PendingMessage task = null;
+            try {
+                PendingMessage first = queue.take();
+                if (first == SHUTDOWN) {
+                    break;
+                }
+                if (first.task != null) {
+                    task = first;
+                } else {
+                    batch.add(first);
+                }
+                // Give the batch a few milliseconds to fill up
+                long deadline = System.nanoTime() + batchDelayNanos;
+                while (task == null && batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingMessage next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == SHUTDOWN) {
+                        running = false;
+                        break;
+                    }
+                    if (next.task != null) {
+                        task = next;
+                    } else {
+                        batch.add(next);
+                    }
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+            if (task != null) {
+                runTask(task);
+            }
+        }
+    }
+
+    private void runTask(PendingMessage task) {
+        try (Database.PooledConnection db = database.writer(task.taskName)) {
+            task.task.run(db);
+            task.stored.complete(0L);
+        } catch (SQLException | RuntimeException e) {
+            Server.log("Writer task " + task.taskName + " failed: " + e.getMessage());
+            task.stored.completeExceptionally(e);
+        }
+    }
+
+    private void commit(List<PendingMessage> batch) {
+        String sql = "INSERT INTO messages(sender_id, receiver_id, message, conversation_id, delivered) VALUES(?, ?, ?, ?, ?)";
+        String groupSql = "INSERT INTO group_messages(group_id, sender_id, message) VALUES(?, ?, ?)";
+        long start = System.nanoTime();
+        long[] ids = new long[batch.size()];
+        try (Database.PooledConnection db = database.writer("store_messages")) {
+            Connection connection = db.connection();
+            try {
+                connection.setAutoCommit(false);
+                PreparedStatement stmt = db.prepare(sql);
+                for (int i = 0; i < batch.size(); i++) {
+                    PendingMessage message = batch.get(i);
+                    if (message.groupId != 0) {
+                        PreparedStatement groupStmt = db.prepare(groupSql);
+                        groupStmt.setLong(1, message.groupId);
+                        groupStmt.setLong(2, message.senderId);
+                        groupStmt.setString(3, message.content);
+                        groupStmt.executeUpdate();
+                        ids[i] = db.lastInsertId();
+                        continue;
+                    }
+                    stmt.setLong(1, message.senderId);
+                    stmt.setLong(2, message.recipientId);
+                    stmt.setString(3, message.content);
+                    stmt.setLong(4, Database.conversationId(message.senderId, message.recipientId));
+                    stmt.setBoolean(5, message.delivered);
+                    stmt.executeUpdate();
+                    ids[i] = db.lastInsertId();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                try {
+                    connection.rollback();
+                } catch (SQLException rollbackError) {
+                    e.addSuppressed(rollbackError);
+                }
+                Server.log("Storing " + batch.size() + " messages failed: " + e.getMessage());
+                failedMessages.addAndGet(batch.size());
+                for (PendingMessage message : batch) {
+                    message.stored.completeExceptionally(e);
+                }
+                return;
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    Server.log("Could not restore autocommit: " + e.getMessage());
+                }
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        // Cached before anyone hears of the messages, so a history request sees them
+        long sentSeconds = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < batch.size(); i++) {
+            PendingMessage message = batch.get(i);
+            long conversation = message.groupId != 0 ? Database.groupConversationId(message.groupId)
+                    : Database.conversationId(message.senderId, message.recipientId);
+            recentMessages.append(conversation,
+                    new RecentMessages.Message(ids[i], message.senderId, sentSeconds, message.content));
+        }
+        messages.addAndGet(batch.size());
+        batches.incrementAndGet();
+        maxBatch.accumulateAndGet(batch.size(), Math::max);
+        commitNanos.addAndGet(elapsed);
+        maxCommitNanos.accumulateAndGet(elapsed, Math::max);
+        for (int i = 0; i < batch.size(); i++) {
+            PendingMessage message = batch.get(i);
+            Metrics.messageStore.recordSince(message.queuedAt);
+            message.stored.complete(ids[i]);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+// Metrics.java
+package messenger;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Server instrumentation in the Prometheus text format, served on
+// http://<metricsAddress>:<metricsPort>/metrics. Hot paths only bump
+// counters and lock-free histograms; everything is formatted at scrape time.
+// Histogram buckets come from LatencyHistogram, so each `le` count is exact
+// to within its 12.5% bucket width.
+final class Metrics {
+
+    // What a client asked for, as seen by ClientHandler
+    enum Command {
+        LOGIN("LOGIN:", BinaryProtocol.LOGIN),
+        REGISTER("REGISTER:", BinaryProtocol.REGISTER),
+        PROTOCOL(BinaryProtocol.HANDSHAKE, -1),
+        PRIVATE("PRIVATE:", BinaryProtocol.PRIVATE),
+        GET_CONTACTS("GET_CONTACTS", BinaryProtocol.GET_CONTACTS),
+        GET_HISTORY("GET_HISTORY:", -1),
+        GET_HISTORY_PAGE("GET_HISTORY_PAGE:", BinaryProtocol.GET_HISTORY_PAGE),
+        GET_HISTORY_SINCE("GET_HISTORY_SINCE:", BinaryProtocol.GET_HISTORY_SINCE),
+        START_SESSION("START_SESSION", BinaryProtocol.START_SESSION),
+        RESUME("RESUME:", BinaryProtocol.RESUME),
+        LOGOUT("LOGOUT", BinaryProtocol.LOGOUT),
+        SEARCH("SEARCH:", BinaryProtocol.SEARCH),
+        CREATE_GROUP("CREATE_GROUP:", BinaryProtocol.CREATE_GROUP),
+        GROUP("GROUP:", BinaryProtocol.GROUP),
+        GET_GROUPS("GET_GROUPS", BinaryProtocol.GET_GROUPS),
+        GET_GROUP_HISTORY("GET_GROUP_HISTORY:", BinaryProtocol.GET_GROUP_HISTORY),
+        UNKNOWN(null, -1);
+
+        private final String prefix;
+        private final int frameType;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder throttled = new LongAdder();
+
+        Command(String prefix, int frameType) {
+            this.prefix = prefix;
+            this.frameType = frameType;
+        }
+
+        static Command ofLine(String line) {
+            for (Command command : values()) {
+                if (command.prefix != null && line.startsWith(command.prefix)) {
+                    return command;
+                }
+            }
+            return UNKNOWN;
+        }
+
+        static Command ofFrame(byte type) {
+            for (Command command : values()) {
+                if (command.frameType == type) {
+                    return command;
+                }
+            }
+            return UNKNOWN;
+        }
+    }
+
+    // 100 us .. 10 s
+    private static final double[] BUCKET_SECONDS = {
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+    static {
+        for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKET_SECONDS[i] * 1e9);
+        }
+    }
+
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    static final LongAdder connectionsOpened = new LongAdder();
+    static final LongAdder connectionsClosed = new LongAdder();
+    // From MessageWriter.submit() until the message's batch is committed
+    static final LatencyHistogram messageStore = new LatencyHistogram();
+
+    // Keyed by query name and by pool, sorted so scrapes are stable
+    private static final Map<String, LatencyHistogram> queries = new ConcurrentSkipListMap<>();
+    private static final Map<String, LatencyHistogram> poolWaits = new ConcurrentSkipListMap<>();
+    private static final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+
+    private static class Gauge {
+        final String help;
+        final String type;
+        final LongSupplier value;
+
+        Gauge(String help, String type, LongSupplier value) {
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private Metrics() {
+    }
+
+    static void handled(Command command, long startNanos) {
+        command.latency.recordSince(startNanos);
+    }
+
+    static void failed(Command command) {
+        command.errors.increment();
+    }
+
+    static void throttled(Command command) {
+        command.throttled.increment();
+    }
+
+    // Time a query held its connection, by the name the caller borrowed it under
+    static void query(String name, long nanos) {
+        queries.computeIfAbsent(name, n -> new LatencyHistogram()).record(nanos);
+    }
+
+    // Time spent waiting to borrow a connection from the named pool
+    static void poolWait(String pool, long nanos) {
+        poolWaits.computeIfAbsent(pool, p -> new LatencyHistogram()).record(nanos);
+    }
+
+    // A value read at scrape time; registering a name again replaces it
+    static void gauge(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, "gauge", value));
+    }
+
+    // Like gauge(), for a count that only goes up
+    static void counter(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, "counter", value));
+    }
+
+    static void startEndpoint(String address, int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(address, port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics");
+            t.setDaemon(true);
+            return t;
+        }));
+        http.start();
+    }
+
+    static String scrape() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+
+        header(out, "messenger_command_duration_seconds", "histogram",
+                "Time to handle one client command on the connection's worker");
+        for (Command command : Command.values()) {
+            histogram(out, "messenger_command_duration_seconds", "command", command.name(), command.latency);
+        }
+        header(out, "messenger_command_errors_total", "counter", "Commands that failed with an error");
+        for (Command command : Command.values()) {
+            sample(out, "messenger_command_errors_total", "command", command.name(), command.errors.sum());
+        }
+        header(out, "messenger_command_throttled_total", "counter", "Commands turned down by a rate limit");
+        for (Command command : Command.values()) {
+            sample(out, "messenger_command_throttled_total", "command", command.name(), command.throttled.sum());
+        }
+
+        header(out, "messenger_db_query_duration_seconds", "histogram",
+                "Time a database connection was held, by query");
+        for (Map.Entry<String, LatencyHistogram> query : queries.entrySet()) {
+            histogram(out, "messenger_db_query_duration_seconds", "query", query.getKey(), query.getValue());
+        }
+        header(out, "messenger_db_pool_wait_seconds", "histogram",
+                "Time spent waiting for a database connection, by pool");
+        for (Map.Entry<String, LatencyHistogram> pool : poolWaits.entrySet()) {
+            histogram(out, "messenger_db_pool_wait_seconds", "pool", pool.getKey(), pool.getValue());
+        }
+        header(out, "messenger_message_store_seconds", "histogram",
+                "Time from queuing a message for storage until its batch committed");
+        histogram(out, "messenger_message_store_seconds", null, null, messageStore);
+
+        header(out, "messenger_received_bytes_total", "counter", "Bytes read from client sockets");
+        sample(out, "messenger_received_bytes_total", null, null, bytesIn.sum());
+        header(out, "messenger_sent_bytes_total", "counter", "Bytes written to client sockets");
+        sample(out, "messenger_sent_bytes_total", null, null, bytesOut.sum());
+        header(out, "messenger_connections_opened_total", "counter", "Client connections accepted");
+        sample(out, "messenger_connections_opened_total", null, null, connectionsOpened.sum());
+        header(out, "messenger_connections_open", "gauge", "Client connections currently open");
+        sample(out, "messenger_connections_open", null, null, connectionsOpened.sum() - connectionsClosed.sum());
+
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            header(out, gauge.getKey(), gauge.getValue().type, gauge.getValue().help);
+            sample(out, gauge.getKey(), null, null, gauge.getValue().value.getAsLong());
+        }
+
+        header(out, "messenger_jvm_threads", "gauge", "Live JVM threads");
+        sample(out, "messenger_jvm_threads", null, null, ManagementFactory.getThreadMXBean().getThreadCount());
+        header(out, "messenger_jvm_heap_used_bytes", "gauge", "Heap in use");
+        sample(out, "messenger_jvm_heap_used_bytes", null, null,
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+           .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String label, String value, long sample) {
+        out.append(name);
+        labels(out, label, value, null);
+        out.append(' ').append(sample).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, String label, String value, LatencyHistogram histogram) {
+        long[] cumulative = histogram.cumulativeCounts(BUCKET_NANOS);
+        for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+            out.append(name).append("_bucket");
+            labels(out, label, value, seconds(BUCKET_SECONDS[i]));
+            out.append(' ').append(cumulative[i]).append('\n');
+        }
+        out.append(name).append("_bucket");
+        labels(out, label, value, "+Inf");
+        out.append(' ').append(cumulative[BUCKET_SECONDS.length]).append('\n');
+        out.append(name).append("_sum");
+        labels(out, label, value, null);
+        out.append(' ').append(seconds(histogram.sumNanos() / 1e9)).append('\n');
+        out.append(name).append("_count");
+        labels(out, label, value, null);
+        out.append(' ').append(cumulative[BUCKET_SECONDS.length]).append('\n');
+    }
+
+    private static void labels(StringBuilder out, String label, String value, String le) {
+        if (label == null && le == null) {
+            return;
+        }
+        out.append('{');
+        if (label != null) {
+            out.append(label).append("=\"").append(escape(value)).append('"');
+        }
+        if (le != null) {
+            out.append(label != null ? "," : "").append("le=\"").append(le).append('"');
+        }
+        out.append('}');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String seconds(double value) {
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+}
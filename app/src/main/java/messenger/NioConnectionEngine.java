@@ -0,0 +1,410 @@
+// NioConnectionEngine.java
+package messenger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// Single selector thread doing all socket I/O. Complete lines or frames are handed to a
+// small worker pool, serialised per connection, so an idle session costs a
+// few buffers instead of a blocked thread.
+class NioConnectionEngine implements ConnectionEngine {
+    // Lines or frames handled per worker turn before yielding to other connections
+    private static final int DRAIN_BATCH = 64;
+    // Frames and bytes handed to one gathering write
+    private static final int WRITE_BATCH = 64;
+    private static final int WRITE_BATCH_BYTES = 256 * 1024;
+    private static final Object CLOSED = new Object();
+
+    private final ThreadPoolExecutor workers;
+    private final Queue<NioConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> pendingResumes = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+
+    NioConnectionEngine(int workerThreads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = (ThreadPoolExecutor) Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread t = new Thread(r, "worker-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        Metrics.gauge("messenger_worker_threads", "Worker threads handling client commands", () -> workerThreads);
+        Metrics.gauge("messenger_worker_threads_busy", "Worker threads currently handling a connection",
+                workers::getActiveCount);
+        Metrics.gauge("messenger_worker_queue_length", "Connections with input waiting for a worker",
+                () -> workers.getQueue().size());
+    }
+
+    @Override
+    public void serve(int port, Function<ClientConnection, ClientConnection.Listener> handlerFactory) throws IOException {
+        selector = Selector.open();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.configureBlocking(false);
+            server.bind(new InetSocketAddress(port), ServerConfig.ACCEPT_BACKLOG);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+
+            long lastIdleCheck = System.nanoTime();
+            while (true) {
+                if (ClientConnection.HEARTBEATS) {
+                    selector.select(ClientConnection.IDLE_CHECK_MILLIS);
+                    long now = System.nanoTime();
+                    if (now - lastIdleCheck >= TimeUnit.MILLISECONDS.toNanos(ClientConnection.IDLE_CHECK_MILLIS)) {
+                        lastIdleCheck = now;
+                        checkIdle(now);
+                    }
+                } else {
+                    selector.select();
+                }
+                processPending();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(server, handlerFactory);
+                            continue;
+                        }
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (CancelledKeyException e) {
+                        // Closed by another thread while we were looking at it
+                    }
+                }
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private void accept(ServerSocketChannel server, Function<ClientConnection, ClientConnection.Listener> handlerFactory) {
+        SocketChannel channel;
+        while (true) {
+            try {
+                channel = server.accept();
+                if (channel == null) {
+                    return;
+                }
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                NioConnection connection = new NioConnection(channel);
+                connection.listener = handlerFactory.apply(connection);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                // Typically out of file descriptors; keep serving the sessions we have
+                Server.log("Accept failed: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    // Selector thread only
+    private void checkIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection) {
+                ((NioConnection) key.attachment()).checkIdle(now);
+            }
+        }
+    }
+
+    private void processPending() {
+        NioConnection connection;
+        while ((connection = pendingResumes.poll()) != null) {
+            connection.resumeReading();
+        }
+        while ((connection = pendingFlushes.poll()) != null) {
+            connection.flush();
+        }
+    }
+
+    private class NioConnection extends ClientConnection {
+        private final SocketChannel channel;
+        private final String remoteAddress;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        private byte[] lineBuffer = new byte[256];
+        private int lineLength;
+        // Binary framing: the length prefix read so far, then the body being filled
+        private int frameHeader;
+        private int headerBytes;
+        private ByteBuffer frame;
+
+        private final Queue<Object> inbound = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inboundCount = new AtomicInteger();
+        private final AtomicBoolean dispatching = new AtomicBoolean();
+        private volatile boolean readPaused;
+
+        private final OutboundQueue outbound = new OutboundQueue(ServerConfig.OUTBOUND_LIMIT, ServerConfig.SLOW_CONSUMER_POLICY);
+        // Frames taken from the queue but not fully written yet; selector thread only
+        private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH];
+        private int writeIndex;
+        private int writeCount;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean closeRequested;
+
+        private ClientConnection.Listener listener;
+        private SelectionKey key;
+
+        NioConnection(SocketChannel channel) {
+            this.channel = channel;
+            String address;
+            try {
+                address = String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                address = "unknown";
+            }
+            this.remoteAddress = address;
+        }
+
+        @Override
+        String remoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        void sendFrame(ByteBuffer frame) {
+            if (closeRequested || closed.get()) {
+                return;
+            }
+            if (!outbound.offer(frame.duplicate())) {
+                Server.log("Disconnecting slow client " + remoteAddress);
+                closeRequested = true;
+                outbound.close();
+            }
+            scheduleFlush();
+        }
+
+        @Override
+        void close() {
+            closeRequested = true;
+            scheduleFlush();
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                pendingFlushes.add(this);
+                selector.wakeup();
+            }
+        }
+
+        // Selector thread only
+        void read() {
+            int n;
+            try {
+                n = channel.read(readBuffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                closeNow();
+                return;
+            }
+            Metrics.bytesIn.add(n);
+            if (n > 0) {
+                received(System.nanoTime());
+            }
+
+            readBuffer.flip();
+            boolean valid = format() != WireFormat.TEXT ? readFrames() : readLines();
+            readBuffer.clear();
+            if (!valid) {
+                closeNow();
+                return;
+            }
+
+            if (inboundCount.get() >= ServerConfig.MAX_PENDING_LINES && key.isValid()) {
+                // The client is sending faster than we can handle; let TCP push back on it
+                readPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            dispatch();
+        }
+
+        // Returns false if the client broke the protocol
+        private boolean readLines() {
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    int length = lineLength;
+                    if (length > 0 && lineBuffer[length - 1] == '\r') {
+                        length--;
+                    }
+                    inbound.add(new String(lineBuffer, 0, length, StandardCharsets.UTF_8));
+                    inboundCount.incrementAndGet();
+                    lineLength = 0;
+                } else {
+                    if (lineLength == ServerConfig.MAX_LINE_LENGTH) {
+                        Server.log("Closing " + remoteAddress + ": line longer than " + ServerConfig.MAX_LINE_LENGTH + " bytes");
+                        return false;
+                    }
+                    if (lineLength == lineBuffer.length) {
+                        lineBuffer = Arrays.copyOf(lineBuffer, Math.min(lineBuffer.length * 2, ServerConfig.MAX_LINE_LENGTH));
+                    }
+                    lineBuffer[lineLength++] = b;
+                }
+            }
+            return true;
+        }
+
+        // Returns false if the client broke the protocol
+        private boolean readFrames() {
+            while (readBuffer.hasRemaining()) {
+                if (frame == null) {
+                    frameHeader = (frameHeader << 8) | (readBuffer.get() & 0xff);
+                    if (++headerBytes < 4) {
+                        continue;
+                    }
+                    if (frameHeader <= 0 || frameHeader > ServerConfig.MAX_LINE_LENGTH) {
+                        Server.log("Closing " + remoteAddress + ": bad frame length " + frameHeader);
+                        return false;
+                    }
+                    frame = ByteBuffer.allocate(frameHeader);
+                    frameHeader = 0;
+                    headerBytes = 0;
+                    continue;
+                }
+                int chunk = Math.min(readBuffer.remaining(), frame.remaining());
+                frame.put(readBuffer.array(), readBuffer.position(), chunk);
+                readBuffer.position(readBuffer.position() + chunk);
+                if (!frame.hasRemaining()) {
+                    frame.flip();
+                    inbound.add(frame);
+                    inboundCount.incrementAndGet();
+                    frame = null;
+                }
+            }
+            return true;
+        }
+
+        // Selector thread only. A connection whose input is still waiting
+        // for a worker, or that we stopped reading, isn't idle.
+        void checkIdle(long now) {
+            if (closed.get()) {
+                return;
+            }
+            if (readPaused || inboundCount.get() > 0) {
+                received(now);
+            } else if (idle(now)) {
+                closeNow();
+            }
+        }
+
+        // Selector thread only
+        void resumeReading() {
+            if (readPaused && key.isValid()) {
+                readPaused = false;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        // Selector thread only. Writes everything queued, as many frames per
+        // syscall as the batch holds, and waits for OP_WRITE if the socket fills up.
+        void flush() {
+            flushScheduled.set(false);
+            if (closed.get()) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (writeIndex == writeCount) {
+                        Arrays.fill(writeBatch, 0, writeCount, null);
+                        writeIndex = 0;
+                        writeCount = outbound.poll(writeBatch, WRITE_BATCH_BYTES);
+                        if (writeCount == 0) {
+                            break;
+                        }
+                    }
+                    Metrics.bytesOut.add(channel.write(writeBatch, writeIndex, writeCount - writeIndex));
+                    while (writeIndex < writeCount && !writeBatch[writeIndex].hasRemaining()) {
+                        writeIndex++;
+                    }
+                    if (writeIndex < writeCount) {
+                        // Socket buffer is full; wait until the peer reads
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+                if (closeRequested) {
+                    closeNow();
+                }
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+
+        private void closeNow() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+            outbound.close();
+            inbound.add(CLOSED);
+            dispatch();
+        }
+
+        private void dispatch() {
+            if (dispatching.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        // Worker thread; at most one per connection at a time
+        private void drain() {
+            for (int handled = 0; handled < DRAIN_BATCH; handled++) {
+                Object item = inbound.poll();
+                if (item == null) {
+                    break;
+                }
+                if (item == CLOSED) {
+                    listener.onClose();
+                    // Leave dispatching set so nothing runs after onClose
+                    return;
+                }
+                int remaining = inboundCount.decrementAndGet();
+                try {
+                    if (item instanceof ByteBuffer) {
+                        listener.onFrame((ByteBuffer) item);
+                    } else {
+                        listener.onLine((String) item);
+                    }
+                } catch (RuntimeException e) {
+                    Server.log("Error handling line from " + remoteAddress + ": " + e);
+                }
+                if (readPaused && remaining < ServerConfig.MAX_PENDING_LINES / 2) {
+                    pendingResumes.add(this);
+                    selector.wakeup();
+                }
+            }
+            dispatching.set(false);
+            if (!inbound.isEmpty()) {
+                dispatch();
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+// OfflineDelivery.java
+package messenger;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Messages stored while their recipient had no connection are marked
+// undelivered, which puts them in a partial index keyed by recipient. When
+// the recipient logs in or resumes, deliver() runs on the message writer
+// thread, after every message sent before it is committed: it reads the
+// recipient's pending messages from that index, pushes them in a few
+// PENDING_MESSAGES frames and marks them delivered with one UPDATE. Its
+// cost depends on how much is pending, not on how long the history is.
+// Only frames handed to a connected session count. If the session detaches
+// meanwhile, the rest stays pending rather than sitting in a resume buffer
+// that expiry would drop; a resume runs deliver() again.
+// Most logins have nothing pending; hasPending() lets a reader find that out
+// first, so they don't end the writer's current batch.
+class OfflineDelivery {
+    private final UserDirectory users;
+    private final int frameSize;
+
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicLong nothingPending = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong maxPending = new AtomicLong();
+
+    // frameSize: messages per PENDING_MESSAGES frame
+    OfflineDelivery(UserDirectory users, int frameSize) {
+        this.users = users;
+        this.frameSize = Math.max(1, frameSize);
+    }
+
+    void deliver(Session session, Database.PooledConnection db) throws SQLException {
+        long recipientId = session.user.id;
+        List<WireFormat.HistoryEntry> frame = new ArrayList<>();
+        long lastId = 0;
+        // Last id of a frame that reached a connected session
+        long deliveredId = 0;
+        long count = 0;
+        boolean detached = false;
+        PreparedStatement stmt = db.prepare(
+                "SELECT id, sender_id, message, strftime('%s', timestamp) AS sent FROM messages " +
+                "WHERE receiver_id = ? AND delivered = 0 ORDER BY id");
+        stmt.setLong(1, recipientId);
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                UserDirectory.User sender = users.find(rs.getLong("sender_id"));
+                lastId = rs.getLong("id");
+                frame.add(new WireFormat.HistoryEntry(lastId, sender != null ? sender.name : "?",
+                        rs.getLong("sent"), rs.getString("message")));
+                if (frame.size() == frameSize) {
+                    if (!send(session, frame)) {
+                        detached = true;
+                        break;
+                    }
+                    count += frameSize;
+                    deliveredId = lastId;
+                    frame.clear();
+                }
+            }
+        }
+        if (!detached && !frame.isEmpty() && send(session, frame)) {
+            count += frame.size();
+            deliveredId = lastId;
+        }
+        if (count == 0) {
+            return;
+        }
+
+        PreparedStatement update = db.prepare(
+                "UPDATE messages SET delivered = 1 WHERE receiver_id = ? AND delivered = 0 AND id <= ?");
+        update.setLong(1, recipientId);
+        update.setLong(2, deliveredId);
+        update.executeUpdate();
+        deliveries.incrementAndGet();
+        messages.addAndGet(count);
+        maxPending.accumulateAndGet(count, Math::max);
+    }
+
+    // One probe of the partial index
+    boolean hasPending(Database.PooledConnection db, long recipientId) throws SQLException {
+        PreparedStatement stmt = db.prepare("SELECT 1 FROM messages WHERE receiver_id = ? AND delivered = 0 LIMIT 1");
+        stmt.setLong(1, recipientId);
+        try (ResultSet rs = stmt.executeQuery()) {
+            if (rs.next()) {
+                return true;
+            }
+        }
+        nothingPending.incrementAndGet();
+        return false;
+    }
+
+    long deliveredMessages() {
+        return messages.get();
+    }
+
+    String stats() {
+        return String.format("Offline delivery: %d messages in %d logins (max %d at once), " +
+                        "%d logins with nothing pending",
+                messages.get(), deliveries.get(), maxPending.get(), nothingPending.get());
+    }
+
+    // False, sending nothing, if the session has no connection right now
+    private static boolean send(Session session, List<WireFormat.HistoryEntry> frame) {
+        return session.sendIfConnected(session.format().pendingMessages(frame));
+    }
+}
@@ -0,0 +1,324 @@
+// OutboundQueue.java
+package messenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Encoded frames waiting to be written to one connection. Any thread may
+// offer; a single writer per connection takes frames out in batches so many
+// frames go out in one write. When the queue is over its byte limit the
+// slow-consumer policy decides what happens to the new frame.
+//
+// Locks rather than synchronized/wait(): writers may be virtual threads, and
+// waiting on a monitor pins their carrier thread on JDK 21 to 23.
+class OutboundQueue {
+
+    enum Policy {
+        DROP,       // discard the frame; persisted messages can be refetched
+        DISCONNECT, // close the connection
+        SPILL;      // append to a temp file and replay it in order once the client catches up
+
+        static Policy parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    static final AtomicLong droppedFrames = new AtomicLong();
+    static final AtomicLong disconnectedConsumers = new AtomicLong();
+    static final AtomicLong spilledBytes = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+    private final long limitBytes;
+    private final Policy policy;
+    private long queuedBytes;
+    // While set, new frames go to the file, behind the ones already there
+    private SpillFile spill;
+    private boolean closed;
+    private boolean finishing;
+
+    OutboundQueue(long limitBytes, Policy policy) {
+        this.limitBytes = limitBytes;
+        this.policy = policy;
+    }
+
+    // Returns false when the connection should be closed
+    boolean offer(ByteBuffer frame) {
+        int size = frame.remaining();
+        while (true) {
+            SpillFile target;
+            lock.lock();
+            try {
+                if (closed) {
+                    return true;
+                }
+                if (spill == null && (queuedBytes + size <= limitBytes || frames.isEmpty())) {
+                    frames.add(frame);
+                    queuedBytes += size;
+                    changed.signal();
+                    return true;
+                }
+                if (policy == Policy.DROP) {
+                    droppedFrames.incrementAndGet();
+                    return true;
+                }
+                if (policy != Policy.SPILL) {
+                    disconnectedConsumers.incrementAndGet();
+                    return false;
+                }
+                if (spill == null) {
+                    spill = new SpillFile();
+                }
+                target = spill;
+            } finally {
+                lock.unlock();
+            }
+
+            // Written outside the queue lock, so neither the writer nor other
+            // senders wait on the disk
+            try {
+                SpillFile.Append result = target.append(frame);
+                if (result == SpillFile.Append.DONE) {
+                    spilledBytes.addAndGet(size);
+                    wakeWriter();
+                    return true;
+                }
+                if (result == SpillFile.Append.FULL) {
+                    disconnectedConsumers.incrementAndGet();
+                    return false;
+                }
+                // The writer drained and deleted the file meanwhile; try the queue again
+            } catch (IOException e) {
+                Server.log("Spill to disk failed: " + e.getMessage());
+                disconnectedConsumers.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    // Moves up to batch.length frames (and roughly maxBytes) into batch.
+    // Returns how many were moved, 0 if there is nothing to write.
+    // Only the connection's writer calls it.
+    int poll(ByteBuffer[] batch, int maxBytes) {
+        SpillFile source;
+        long room;
+        lock.lock();
+        try {
+            if (!frames.isEmpty() || spill == null) {
+                return drain(batch, maxBytes);
+            }
+            source = spill;
+            room = limitBytes / 2;
+        } finally {
+            lock.unlock();
+        }
+
+        // Senders spill while the file is set, so frames stays empty until
+        // this refill is back
+        List<ByteBuffer> refill;
+        try {
+            refill = source.read(room);
+        } catch (IOException e) {
+            Server.log("Reading spilled frames failed, dropping them: " + e.getMessage());
+            source.delete();
+            refill = new ArrayList<>();
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                return 0;
+            }
+            for (ByteBuffer frame : refill) {
+                frames.add(frame);
+                queuedBytes += frame.remaining();
+            }
+            if (source.isDeleted() && spill == source) {
+                spill = null;
+            }
+            return drain(batch, maxBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocking variant of poll for writer threads; returns 0 once the queue
+    // is closed, or finished and fully drained
+    int take(ByteBuffer[] batch, int maxBytes) throws InterruptedException {
+        while (true) {
+            lock.lockInterruptibly();
+            try {
+                while (frames.isEmpty() && spill == null && !closed && !finishing) {
+                    changed.await();
+                }
+                if (frames.isEmpty() && spill == null) {
+                    return 0;
+                }
+            } finally {
+                lock.unlock();
+            }
+            // 0 only if a spill file was set but its first frame not yet written
+            int count = poll(batch, maxBytes);
+            if (count > 0) {
+                return count;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty() && spill == null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // No more frames will be offered; take() returns 0 once the rest are written
+    void finish() {
+        lock.lock();
+        try {
+            finishing = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Wakes the writer and releases any spill file; pending frames are discarded
+    void close() {
+        SpillFile spilled;
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            queuedBytes = 0;
+            spilled = spill;
+            spill = null;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (spilled != null) {
+            spilled.delete();
+        }
+    }
+
+    private void wakeWriter() {
+        lock.lock();
+        try {
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Queue lock held
+    private int drain(ByteBuffer[] batch, int maxBytes) {
+        int count = 0;
+        int bytes = 0;
+        while (count < batch.length && bytes < maxBytes) {
+            ByteBuffer frame = frames.poll();
+            if (frame == null) {
+                break;
+            }
+            queuedBytes -= frame.remaining();
+            bytes += frame.remaining();
+            batch[count++] = frame;
+        }
+        return count;
+    }
+
+    // Append-only file of length-prefixed frames, read back from the front.
+    // It has its own lock, so disk I/O never holds the queue's. The file is
+    // created on the first append and deleted once read to the end.
+    private static class SpillFile {
+        enum Append { DONE, FULL, DELETED }
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private File file;
+        private RandomAccessFile data;
+        private long readPosition;
+        private long writePosition;
+        private volatile boolean deleted;
+
+        Append append(ByteBuffer frame) throws IOException {
+            lock.lock();
+            try {
+                if (deleted) {
+                    return Append.DELETED;
+                }
+                if (writePosition - readPosition + frame.remaining() > ServerConfig.SPILL_LIMIT) {
+                    return Append.FULL;
+                }
+                if (data == null) {
+                    file = File.createTempFile("messenger-spill", ".bin");
+                    file.deleteOnExit();
+                    data = new RandomAccessFile(file, "rw");
+                }
+                data.seek(writePosition);
+                data.writeInt(frame.remaining());
+                data.getChannel().write(frame.duplicate());
+                writePosition = data.getFilePointer();
+                return Append.DONE;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Frames from the front, up to about maxBytes; deletes the file
+        // once everything in it has been read
+        List<ByteBuffer> read(long maxBytes) throws IOException {
+            List<ByteBuffer> frames = new ArrayList<>();
+            lock.lock();
+            try {
+                long bytes = 0;
+                while (!deleted && bytes < maxBytes) {
+                    if (readPosition == writePosition) {
+                        delete();
+                        break;
+                    }
+                    data.seek(readPosition);
+                    byte[] frame = new byte[data.readInt()];
+                    data.readFully(frame);
+                    readPosition = data.getFilePointer();
+                    frames.add(ByteBuffer.wrap(frame));
+                    bytes += frame.length;
+                }
+                return frames;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isDeleted() {
+            return deleted;
+        }
+
+        void delete() {
+            lock.lock();
+            try {
+                deleted = true;
+                if (data != null) {
+                    try {
+                        data.close();
+                    } catch (IOException e) {
+                        // Deleting it anyway
+                    }
+                    file.delete();
+                    data = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+// PresenceBroadcaster.java
+package messenger;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sends presence changes as small deltas instead of the whole user table.
+// Changes arriving within one window are merged (the last state per user
+// wins) and go out as a single ONLINE_UPDATE frame. Old clients already treat
+// ONLINE_UPDATE entries one by one, so they understand the partial list.
+class PresenceBroadcaster {
+    private final Map<String, ? extends ClientConnection> onlineUsers;
+    private final ScheduledExecutorService scheduler;
+    private final long windowMillis;
+
+    private final Map<String, Boolean> pending = new LinkedHashMap<>();
+    private boolean flushScheduled;
+
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong entries = new AtomicLong();
+
+    PresenceBroadcaster(Map<String, ? extends ClientConnection> onlineUsers, ScheduledExecutorService scheduler, long windowMillis) {
+        this.onlineUsers = onlineUsers;
+        this.scheduler = scheduler;
+        this.windowMillis = windowMillis;
+    }
+
+    void publish(String username, boolean online) {
+        changes.incrementAndGet();
+        synchronized (this) {
+            pending.put(username, online);
+            if (!flushScheduled) {
+                flushScheduled = true;
+                scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    String stats() {
+        return String.format("Presence: %d changes sent as %d frames (%d entries)",
+                changes.get(), frames.get(), entries.get());
+    }
+
+    // Sends an ONLINE_UPDATE to every online user, encoded once per wire format
+    void broadcast(Map<String, Boolean> statuses) {
+        ByteBuffer[] encoded = new ByteBuffer[WireFormat.values().length];
+        for (ClientConnection client : onlineUsers.values()) {
+            WireFormat format = client.format();
+            ByteBuffer frame = encoded[format.ordinal()];
+            if (frame == null) {
+                frame = format.presence(false, statuses);
+                encoded[format.ordinal()] = frame;
+            }
+            client.sendFrame(frame);
+        }
+    }
+
+    private void flush() {
+        Map<String, Boolean> batch;
+        synchronized (this) {
+            batch = new LinkedHashMap<>(pending);
+            pending.clear();
+            flushScheduled = false;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        broadcast(batch);
+        frames.incrementAndGet();
+        entries.addAndGet(batch.size());
+    }
+}
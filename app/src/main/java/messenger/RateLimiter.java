@@ -0,0 +1,236 @@
+// RateLimiter.java
+package messenger;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps one client from taking the server's capacity from everyone else.
+// Every logged-in user has a token bucket for all their commands together
+// and one per command that has its own limit; the buckets are per user, so
+// opening more connections doesn't buy more. On top of that, only so many
+// expensive commands (history and search, which may go to the database)
+// run at once across the whole server. A command over any of these limits
+// isn't queued: the client gets a THROTTLED answer at once, with a hint how
+// long to wait, and none of its tokens are spent. Users whose buckets have
+// been idle long enough to be full again are dropped, so the map only
+// holds recently active users.
+class RateLimiter {
+    static final Set<Metrics.Command> EXPENSIVE = EnumSet.of(Metrics.Command.GET_HISTORY,
+            Metrics.Command.GET_HISTORY_PAGE, Metrics.Command.GET_HISTORY_SINCE,
+            Metrics.Command.GET_GROUP_HISTORY, Metrics.Command.SEARCH);
+    // Retry hint when the server is at its limit of expensive commands
+    private static final long BUSY_RETRY_MILLIS = 100;
+    // How often idle users are looked for
+    private static final long PRUNE_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    // A bucket's refill rate per second and capacity
+    static class Limit {
+        final double rate;
+        final double burst;
+
+        Limit(double rate, double burst) {
+            this.rate = Math.max(0.001, rate);
+            this.burst = Math.max(1, burst);
+        }
+
+        // Time an empty bucket takes to fill up
+        long fillNanos() {
+            return (long) Math.ceil(burst / rate * 1e9);
+        }
+    }
+
+    // Guarded by its UserBuckets
+    private static class Bucket {
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        Bucket(Limit limit) {
+            tokens = limit.burst;
+        }
+
+        // Refills up to now; 0 if there is a token to take, otherwise the
+        // milliseconds until there is one
+        long check(Limit limit, long now) {
+            if (now > refilledAt) {
+                tokens = Math.min(limit.burst, tokens + (now - refilledAt) / 1e9 * limit.rate);
+                refilledAt = now;
+            }
+            return tokens >= 1 ? 0 : Math.max(1, (long) Math.ceil((1 - tokens) / limit.rate * 1000));
+        }
+
+        void take() {
+            tokens--;
+        }
+    }
+
+    // One user's buckets, checked and taken from together under its lock
+    private static class UserBuckets {
+        final Bucket all;
+        final Map<Metrics.Command, Bucket> commands = new EnumMap<>(Metrics.Command.class);
+        long usedAt = System.nanoTime();
+        // Set when pruned; a caller still holding it looks the user up again
+        boolean pruned;
+
+        UserBuckets(Limit userLimit) {
+            all = userLimit != null ? new Bucket(userLimit) : null;
+        }
+
+        Bucket command(Metrics.Command command, Limit limit) {
+            return commands.computeIfAbsent(command, c -> new Bucket(limit));
+        }
+    }
+
+    private final Limit userLimit;
+    private final Map<Metrics.Command, Limit> commandLimits;
+    private final int maxExpensive;
+    private final ConcurrentHashMap<String, UserBuckets> users = new ConcurrentHashMap<>();
+    private final AtomicInteger expensiveRunning = new AtomicInteger();
+    // Idle time after which every bucket of a user is full again
+    private final long fillNanos;
+    private final AtomicLong prunedAt = new AtomicLong(System.nanoTime());
+
+    private final AtomicLong userRejections = new AtomicLong();
+    private final AtomicLong commandRejections = new AtomicLong();
+    private final AtomicLong busyRejections = new AtomicLong();
+
+    // userLimit: all of one user's commands, null for none; commandLimits:
+    // per command (others only count against the user's limit);
+    // maxExpensive: EXPENSIVE commands running at once, 0 for no limit
+    RateLimiter(Limit userLimit, Map<Metrics.Command, Limit> commandLimits, int maxExpensive) {
+        this.userLimit = userLimit;
+        this.commandLimits = commandLimits;
+        this.maxExpensive = maxExpensive;
+        long fill = userLimit != null ? userLimit.fillNanos() : 0;
+        for (Limit limit : commandLimits.values()) {
+            fill = Math.max(fill, limit.fillNanos());
+        }
+        this.fillNanos = fill;
+    }
+
+    // "rate/burst", or null for an empty string
+    static Limit parseLimit(String limit) {
+        if (limit.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            String[] parts = limit.trim().split("/");
+            return new Limit(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Ignoring invalid rate limit: " + limit);
+            return null;
+        }
+    }
+
+    // "COMMAND=rate/burst,..." e.g. "SEARCH=1/5,GET_HISTORY=0.2/2"
+    static Map<Metrics.Command, Limit> parse(String limits) {
+        Map<Metrics.Command, Limit> parsed = new EnumMap<>(Metrics.Command.class);
+        for (String entry : limits.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            try {
+                String[] parts = entry.split("[=/]");
+                parsed.put(Metrics.Command.valueOf(parts[0].trim()),
+                        new Limit(Double.parseDouble(parts[1]), Double.parseDouble(parts[2])));
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                System.err.println("Ignoring invalid rate limit: " + entry);
+            }
+        }
+        return parsed;
+    }
+
+    // 0 if the user's command may run now, in which case release() must
+    // follow it; otherwise the milliseconds to wait before trying again.
+    // Tokens are only taken when every limit lets the command through.
+    long acquire(String user, Metrics.Command command) {
+        long now = System.nanoTime();
+        pruneIdle(now);
+        boolean expensive = maxExpensive > 0 && EXPENSIVE.contains(command);
+        if (expensive && expensiveRunning.incrementAndGet() > maxExpensive) {
+            expensiveRunning.decrementAndGet();
+            busyRejections.incrementAndGet();
+            return BUSY_RETRY_MILLIS;
+        }
+        Limit limit = commandLimits.get(command);
+        while (true) {
+            UserBuckets buckets = users.computeIfAbsent(user, u -> new UserBuckets(userLimit));
+            synchronized (buckets) {
+                if (buckets.pruned) {
+                    continue;
+                }
+                buckets.usedAt = now;
+                Bucket commandBucket = limit != null ? buckets.command(command, limit) : null;
+                long wait = commandBucket != null ? commandBucket.check(limit, now) : 0;
+                if (wait > 0) {
+                    commandRejections.incrementAndGet();
+                } else if (userLimit != null && (wait = buckets.all.check(userLimit, now)) > 0) {
+                    userRejections.incrementAndGet();
+                }
+                if (wait > 0) {
+                    if (expensive) {
+                        expensiveRunning.decrementAndGet();
+                    }
+                    return wait;
+                }
+                if (commandBucket != null) {
+                    commandBucket.take();
+                }
+                if (userLimit != null) {
+                    buckets.all.take();
+                }
+                return 0;
+            }
+        }
+    }
+
+    // At most once per PRUNE_INTERVAL_NANOS, on whichever thread gets there
+    // first: forgets the users that have been idle long enough to be full
+    // again, as a new entry would be
+    void pruneIdle(long now) {
+        long last = prunedAt.get();
+        if (now - last < PRUNE_INTERVAL_NANOS || !prunedAt.compareAndSet(last, now)) {
+            return;
+        }
+        for (Map.Entry<String, UserBuckets> entry : users.entrySet()) {
+            UserBuckets buckets = entry.getValue();
+            synchronized (buckets) {
+                if (now - buckets.usedAt >= fillNanos) {
+                    buckets.pruned = true;
+                    users.remove(entry.getKey(), buckets);
+                }
+            }
+        }
+    }
+
+    void release(Metrics.Command command) {
+        if (maxExpensive > 0 && EXPENSIVE.contains(command)) {
+            expensiveRunning.decrementAndGet();
+        }
+    }
+
+    int expensiveRunning() {
+        return expensiveRunning.get();
+    }
+
+    int trackedUsers() {
+        return users.size();
+    }
+
+    long rejections() {
+        return userRejections.get() + commandRejections.get() + busyRejections.get();
+    }
+
+    String stats() {
+        return String.format("Rate limits: %d rejected (%d over a command limit, %d over the user limit, " +
+                        "%d with the server busy), %d expensive commands running, %d users tracked",
+                rejections(), commandRejections.get(), userRejections.get(), busyRejections.get(),
+                expensiveRunning.get(), trackedUsers());
+    }
+}
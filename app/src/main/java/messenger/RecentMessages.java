@@ -0,0 +1,260 @@
+// RecentMessages.java
+package messenger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The newest messages of recently active conversations, so the usual history
+// request (the tail of a conversation) is answered without touching SQLite.
+//
+// Each cached conversation holds an unbroken run of its newest messages:
+// the message writer appends every committed message in id order, and a
+// history query that missed seeds the messages before that. A conversation
+// is "complete" when the run reaches back to its first message. Conversations
+// are evicted least recently used first once the estimated size is over budget.
+//
+// In a cluster the writer only appends what its own node commits, so another
+// node storing a message in a conversation makes it forget that conversation.
+// A conversation whose users are on different nodes is therefore forgotten
+// with nearly every message and is in effect served from the database. When
+// a link between nodes goes up or down, forgets may have been lost on it, so
+// the whole cache is cleared.
+class RecentMessages {
+    // Rough per-message cost besides the text: object, deque slot, boxed fields
+    private static final int MESSAGE_OVERHEAD_BYTES = 80;
+    private static final int FORGET_STRIPES = 1024;
+
+    static class Message {
+        final long id;
+        final long senderId;
+        final long sentSeconds;
+        final String text;
+
+        Message(long id, long senderId, long sentSeconds, String text) {
+            this.id = id;
+            this.senderId = senderId;
+            this.sentSeconds = sentSeconds;
+            this.text = text;
+        }
+
+        long estimatedBytes() {
+            return MESSAGE_OVERHEAD_BYTES + 2L * text.length();
+        }
+    }
+
+    // Messages oldest first, and whether more match beyond them
+    static class Page {
+        final List<Message> messages;
+        final boolean hasMore;
+
+        Page(List<Message> messages, boolean hasMore) {
+            this.messages = messages;
+            this.hasMore = hasMore;
+        }
+    }
+
+    private static class Conversation {
+        final ArrayDeque<Message> messages = new ArrayDeque<>();
+        boolean complete;
+        long bytes;
+    }
+
+    private final int maxMessages;
+    private final long budgetBytes;
+    private final Map<Long, Conversation> conversations = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private long totalMessages;
+    // forget() calls per stripe of conversation ids, so a page read from the
+    // database before a forget isn't seeded after it
+    private final long[] forgets = new long[FORGET_STRIPES];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong forgotten = new AtomicLong();
+
+    RecentMessages(int maxMessagesPerConversation, long budgetBytes) {
+        this.maxMessages = maxMessagesPerConversation;
+        this.budgetBytes = budgetBytes;
+    }
+
+    // A newly committed message; called in id order
+    synchronized void append(long conversationId, Message message) {
+        Conversation conversation = conversations.get(conversationId);
+        if (conversation == null) {
+            conversation = new Conversation();
+            conversations.put(conversationId, conversation);
+        } else if (!conversation.messages.isEmpty() && conversation.messages.peekLast().id >= message.id) {
+            return; // Already seeded from the database
+        }
+        add(conversation, message, false);
+        trim(conversation);
+        evictOverBudget();
+    }
+
+    // Taken before the query whose result is seeded
+    synchronized long seedToken(long conversationId) {
+        return forgets[stripe(conversationId)];
+    }
+
+    // The newest messages of a conversation as read from the database, oldest
+    // first; complete when there are no older ones
+    synchronized void seed(long conversationId, List<Message> newest, boolean complete, long token) {
+        if (forgets[stripe(conversationId)] != token) {
+            return;
+        }
+        Conversation conversation = conversations.get(conversationId);
+        if (conversation == null) {
+            conversation = new Conversation();
+            conversations.put(conversationId, conversation);
+        } else if (conversation.complete) {
+            return;
+        }
+        // Messages committed since the query are already here; put the older ones in front
+        long firstCached = conversation.messages.isEmpty() ? Long.MAX_VALUE : conversation.messages.peekFirst().id;
+        for (int i = newest.size() - 1; i >= 0; i--) {
+            if (newest.get(i).id < firstCached) {
+                add(conversation, newest.get(i), true);
+            }
+        }
+        conversation.complete = complete;
+        trim(conversation);
+        evictOverBudget();
+    }
+
+    // The newest `limit` messages older than beforeId (0 = latest), or null
+    // if the cache can't tell
+    synchronized Page before(long conversationId, long beforeId, int limit) {
+        Conversation conversation = conversations.get(conversationId);
+        if (conversation != null) {
+            List<Message> page = new ArrayList<>(limit);
+            boolean hasMore = false;
+            Iterator<Message> newestFirst = conversation.messages.descendingIterator();
+            while (newestFirst.hasNext()) {
+                Message message = newestFirst.next();
+                if (beforeId > 0 && message.id >= beforeId) {
+                    continue;
+                }
+                if (page.size() == limit) {
+                    hasMore = true;
+                    break;
+                }
+                page.add(message);
+            }
+            if (hasMore || conversation.complete) {
+                hits.incrementAndGet();
+                Collections.reverse(page);
+                return new Page(page, hasMore);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    // The first `limit` messages newer than afterId, or null if the cache can't tell
+    synchronized Page after(long conversationId, long afterId, int limit) {
+        Conversation conversation = conversations.get(conversationId);
+        if (conversation != null && (conversation.complete
+                || (!conversation.messages.isEmpty() && conversation.messages.peekFirst().id <= afterId))) {
+            List<Message> page = new ArrayList<>(limit);
+            boolean hasMore = false;
+            for (Message message : conversation.messages) {
+                if (message.id <= afterId) {
+                    continue;
+                }
+                if (page.size() == limit) {
+                    hasMore = true;
+                    break;
+                }
+                page.add(message);
+            }
+            hits.incrementAndGet();
+            return new Page(page, hasMore);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    // The conversation has messages this cache never saw
+    synchronized void forget(long conversationId) {
+        forgets[stripe(conversationId)]++;
+        Conversation conversation = conversations.remove(conversationId);
+        if (conversation != null) {
+            totalBytes -= conversation.bytes;
+            totalMessages -= conversation.messages.size();
+            forgotten.incrementAndGet();
+        }
+    }
+
+    // Forgets every conversation, for when forget() calls may have been missed
+    synchronized void clear() {
+        for (int i = 0; i < forgets.length; i++) {
+            forgets[i]++;
+        }
+        forgotten.addAndGet(conversations.size());
+        conversations.clear();
+        totalBytes = 0;
+        totalMessages = 0;
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    String stats() {
+        long total = hits.get() + misses.get();
+        synchronized (this) {
+            return String.format("Recent messages: %d conversations, %d messages, ~%d KB of %d KB, " +
+                            "%d hits, %d misses (%.1f%% hit ratio), %d evictions, %d forgotten",
+                    conversations.size(), totalMessages, totalBytes / 1024, budgetBytes / 1024,
+                    hits.get(), misses.get(), total == 0 ? 0.0 : 100.0 * hits.get() / total, evictions.get(),
+                    forgotten.get());
+        }
+    }
+
+    private void add(Conversation conversation, Message message, boolean front) {
+        if (front) {
+            conversation.messages.addFirst(message);
+        } else {
+            conversation.messages.addLast(message);
+        }
+        conversation.bytes += message.estimatedBytes();
+        totalBytes += message.estimatedBytes();
+        totalMessages++;
+    }
+
+    private void trim(Conversation conversation) {
+        while (conversation.messages.size() > maxMessages) {
+            Message oldest = conversation.messages.removeFirst();
+            conversation.bytes -= oldest.estimatedBytes();
+            totalBytes -= oldest.estimatedBytes();
+            totalMessages--;
+            conversation.complete = false;
+        }
+    }
+
+    private static int stripe(long conversationId) {
+        return Math.floorMod(conversationId, FORGET_STRIPES);
+    }
+
+    private void evictOverBudget() {
+        Iterator<Conversation> leastRecent = conversations.values().iterator();
+        while (totalBytes > budgetBytes && leastRecent.hasNext()) {
+            Conversation conversation = leastRecent.next();
+            leastRecent.remove();
+            totalBytes -= conversation.bytes;
+            totalMessages -= conversation.messages.size();
+            evictions.incrementAndGet();
+        }
+    }
+}
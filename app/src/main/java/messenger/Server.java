@@ -0,0 +1,1171 @@
+// Server.java
+package messenger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class Server {
+    private static Database database;
+    private static UserDirectory users;
+    private static RecentMessages recentMessages;
+    private static MessageWriter messageWriter;
+    private static PresenceBroadcaster presence;
+    private static OfflineDelivery offlineDelivery;
+    private static MessageSearch messageSearch;
+    private static MessageArchive messageArchive;
+    private static GroupDirectory groups;
+    private static GroupFanout groupFanout;
+    private static Cluster cluster;
+    private static final RateLimiter rateLimiter = new RateLimiter(RateLimiter.parseLimit(ServerConfig.USER_RATE_LIMIT),
+            RateLimiter.parse(ServerConfig.COMMAND_RATE_LIMITS), ServerConfig.MAX_EXPENSIVE_COMMANDS);
+    private static final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "maintenance");
+        t.setDaemon(true);
+        return t;
+    });
+    // Runs what follows a commit and takes a user's lock, in commit order.
+    // Never on the writer thread: a handler may block on a full writer
+    // queue while holding that lock, and only the writer can drain it.
+    private static final ExecutorService delivery = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "delivery");
+        t.setDaemon(true);
+        return t;
+    });
+    // Everything sent through these sessions is a push
+    private static Map<String, Session> onlineUsers = new ConcurrentHashMap<>();
+    // Resumable sessions by token, including ones waiting for their client to reconnect
+    private static Map<String, Session> sessions = new ConcurrentHashMap<>();
+    
+    public static void main(String[] args) {
+        startLog(ServerConfig.HEADLESS || Arrays.asList(args).contains("--headless"));
+        initializeDatabase();
+        log("Database initialized successfully");
+        startMessageWriter();
+        startPresence();
+        startCluster();
+        // In a cluster, the first node archives for all of them
+        if (ServerConfig.NODE == 0) {
+            messageArchive.start(messageWriter, ServerConfig.ARCHIVE_INTERVAL_MINUTES);
+        }
+        maintenance.scheduleAtFixedRate(Server::logStatistics,
+                ServerConfig.STATS_INTERVAL_SECONDS, ServerConfig.STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        startMetrics();
+        startServer();
+    }
+
+    private static void initializeDatabase() {
+        try {
+            database = new Database(ServerConfig.DB_URL, ServerConfig.DB_READERS);
+            users = new UserDirectory(database);
+            users.load();
+            groups = new GroupDirectory(database, users);
+            groups.load();
+            // log("Database initialized successfully"); // Moved to after GUI creation
+        } catch (SQLException e) {
+            System.err.println("Database initialization failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Headless servers log to stdout; otherwise the window shows the tail
+    private static void startLog(boolean headless) {
+        String file = ServerConfig.LOG_FILE.trim();
+        ServerLog.start(file.isEmpty() ? null : Paths.get(file), headless);
+        if (!headless) {
+            ServerWindow.open(ServerConfig.WINDOW_LOG_LINES);
+        }
+        log("Server starting" + (headless ? " (headless)" : ""));
+    }
+
+    private static void startMessageWriter() {
+        recentMessages = new RecentMessages(ServerConfig.RECENT_MESSAGES, ServerConfig.RECENT_MESSAGES_MB * 1024L * 1024L);
+        messageWriter = new MessageWriter(database, recentMessages, ServerConfig.WRITE_BATCH_SIZE,
+                ServerConfig.WRITE_BATCH_DELAY_MS, ServerConfig.WRITE_QUEUE_CAPACITY);
+        offlineDelivery = new OfflineDelivery(users, ServerConfig.HISTORY_PAGE_MAX);
+        messageSearch = new MessageSearch(database, users);
+        messageArchive = new MessageArchive(database, Paths.get(ServerConfig.ARCHIVE_DIR), ServerConfig.RETENTION_DAYS,
+                ServerConfig.ARCHIVE_MONTHS, ServerConfig.ARCHIVE_BATCH);
+        messageWriter.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(messageWriter::close, "message-writer-shutdown"));
+        log("Message writer started (" + ServerConfig.DURABILITY + " durability)");
+    }
+
+    private static void startPresence() {
+        presence = new PresenceBroadcaster(onlineUsers, maintenance, ServerConfig.PRESENCE_WINDOW_MS);
+        groupFanout = new GroupFanout(onlineUsers);
+        if (ServerConfig.PRESENCE_SNAPSHOT_SECONDS > 0) {
+            maintenance.scheduleAtFixedRate(Server::broadcastPresenceSnapshot, ServerConfig.PRESENCE_SNAPSHOT_SECONDS,
+                    ServerConfig.PRESENCE_SNAPSHOT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    // Links up with the other nodes, if there are any; they share this
+    // node's database
+    private static void startCluster() {
+        try {
+            cluster = new Cluster(ServerConfig.NODE, Cluster.parse(ServerConfig.CLUSTER), new ClusterHandler());
+            cluster.start();
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Cluster failed to start: " + e.getMessage());
+            System.exit(1);
+        }
+        if (cluster.enabled()) {
+            log("Cluster node " + ServerConfig.NODE + " of " + cluster.size());
+        }
+    }
+
+    // Full status list to everyone, for clients that missed a delta
+    private static void broadcastPresenceSnapshot() {
+        if (!onlineUsers.isEmpty()) {
+            presence.broadcast(contactStatuses(null));
+        }
+    }
+
+    // Online flag of every user except the excluded one, in registration order
+    private static Map<String, Boolean> contactStatuses(String excludedUser) {
+        Map<String, Boolean> statuses = new LinkedHashMap<>();
+        for (UserDirectory.User user : users.all()) {
+            if (!user.name.equals(excludedUser)) {
+                statuses.put(user.name, user.online);
+            }
+        }
+        return statuses;
+    }
+
+    private static void startMetrics() {
+        Metrics.gauge("messenger_online_sessions", "Logged-in users", onlineUsers::size);
+        Metrics.gauge("messenger_registered_users", "Users in the directory", users::size);
+        Metrics.gauge("messenger_groups", "Group channels", groups::size);
+        Metrics.gauge("messenger_db_readers_busy", "Reader connections lent out", database::busyReaders);
+        Metrics.gauge("messenger_db_readers", "Reader connections in the pool", () -> ServerConfig.DB_READERS);
+        Metrics.gauge("messenger_db_writer_waiting", "Threads waiting for the writer connection", database::writerQueueLength);
+        Metrics.gauge("messenger_write_queue_length", "Messages waiting to be stored", messageWriter::queueLength);
+        Metrics.gauge("messenger_write_queue_capacity", "Messages the write queue holds", messageWriter::queueCapacity);
+        Metrics.counter("messenger_messages_stored_total", "Messages committed to the database", messageWriter::storedMessages);
+        Metrics.counter("messenger_messages_failed_total", "Messages whose batch failed to commit", messageWriter::failedMessages);
+        Metrics.counter("messenger_offline_messages_delivered_total", "Messages delivered at login after arriving offline", offlineDelivery::deliveredMessages);
+        Metrics.counter("messenger_group_deliveries_total", "Group messages pushed to online members", groupFanout::deliveries);
+        Metrics.counter("messenger_messages_archived_total", "Messages moved to the monthly archive files", messageArchive::archivedMessages);
+        Metrics.counter("messenger_rate_limit_rejections_total", "Commands turned down by a rate limit", rateLimiter::rejections);
+        Metrics.gauge("messenger_expensive_commands_running", "History and search requests running now", rateLimiter::expensiveRunning);
+        Metrics.counter("messenger_pings_sent_total", "PINGs sent to clients that went quiet", ClientConnection::pingsSent);
+        Metrics.counter("messenger_idle_connections_closed_total", "Connections closed after idleTimeout without input",
+                ClientConnection::idleClosed);
+        Metrics.counter("messenger_searches_total", "SEARCH requests answered", messageSearch::searches);
+        Metrics.counter("messenger_recent_messages_hits_total", "History requests served from memory", recentMessages::hits);
+        Metrics.counter("messenger_recent_messages_misses_total", "History requests that went to the database", recentMessages::misses);
+        Metrics.counter("messenger_outbound_dropped_frames_total", "Frames dropped for slow consumers", OutboundQueue.droppedFrames::get);
+        Metrics.counter("messenger_outbound_disconnects_total", "Slow consumers disconnected", OutboundQueue.disconnectedConsumers::get);
+        Metrics.gauge("messenger_resumable_sessions", "Resumable sessions, connected or waiting to be resumed", sessions::size);
+        Metrics.counter("messenger_sessions_resumed_total", "Sessions resumed on a new connection", Session.resumed::get);
+        Metrics.counter("messenger_session_resume_failures_total", "Resume attempts that fell back to a full login", Session.failedResumes::get);
+        Metrics.counter("messenger_session_replayed_frames_total", "Push frames replayed to resumed sessions", Session.replayedFrames::get);
+        Metrics.gauge("messenger_cluster_links_up", "Links to other nodes that are connected", cluster::linksUp);
+        Metrics.gauge("messenger_cluster_remote_users", "Users online on other nodes", cluster::remoteUsers);
+        Metrics.counter("messenger_cluster_frames_sent_total", "Frames sent to other nodes", cluster::framesSent);
+        Metrics.counter("messenger_cluster_frames_received_total", "Frames received from other nodes", cluster::framesReceived);
+        Metrics.counter("messenger_cluster_frames_dropped_total", "Frames for other nodes dropped while their link was down", cluster::framesDropped);
+        Metrics.counter("messenger_log_dropped_total", "Log lines dropped because the log buffer was full", ServerLog::dropped);
+        if (ServerConfig.METRICS_PORT > 0) {
+            try {
+                Metrics.startEndpoint(ServerConfig.METRICS_ADDRESS, ServerConfig.METRICS_PORT);
+                log("Metrics at http://" + ServerConfig.METRICS_ADDRESS + ":" + ServerConfig.METRICS_PORT + "/metrics");
+            } catch (IOException e) {
+                log("Metrics endpoint failed to start: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void logStatistics() {
+        log(messageWriter.stats());
+        log(presence.stats());
+        log(users.stats());
+        log(recentMessages.stats());
+        log(offlineDelivery.stats());
+        log(messageSearch.stats());
+        log(messageArchive.stats());
+        log(groupFanout.stats());
+        log(rateLimiter.stats());
+        log(cluster.stats());
+        log(FrameCompression.stats());
+        log(ClientConnection.heartbeatStats());
+    }
+
+    private static void startServer() {
+        log("Listening on port " + ServerConfig.PORT + " using the " + ServerConfig.ENGINE + " connection engine");
+        try {
+            ConnectionEngine.create(ServerConfig.ENGINE).serve(ServerConfig.PORT, ClientHandler::new);
+        } catch (IOException | IllegalArgumentException e) {
+            log("Server exception: " + e.getMessage());
+        }
+    }
+
+    static void log(String message) {
+        ServerLog.log(message);
+    }
+
+    // Ends a resumable session whose client didn't come back in time
+    private static void expireSession(Session session, int detach) {
+        if (session.expire(detach)) {
+            sessions.remove(session.token, session);
+            takeOffline(session);
+            log(session.user.name + "'s session expired");
+        }
+    }
+
+    // Queues the user's undelivered messages behind everything already sent
+    // to them. Called once the session is in onlineUsers, after which no new
+    // message is left undelivered for them (see isConnected()). When none is
+    // still on its way to the database, a reader checks for pending ones
+    // first, so a login with nothing pending costs the writer nothing.
+    private static void deliverPending(Session session) {
+        if (session.user.undeliveredWrites.get() == 0) {
+            try (Database.PooledConnection db = database.reader("pending_check")) {
+                if (!offlineDelivery.hasPending(db, session.user.id)) {
+                    return;
+                }
+            } catch (SQLException e) {
+                log("Error checking pending messages: " + e.getMessage());
+            }
+        }
+        messageWriter.execute("deliver_pending", db -> offlineDelivery.deliver(session, db));
+    }
+
+    // Whether a message for the user can be pushed now rather than left for
+    // their next login. Callers hold the user's lock, which login and resume
+    // also take to connect the session, so a message is either pushed or
+    // picked up by deliverPending. One left undelivered counts in the user's
+    // undeliveredWrites until its write commits.
+    private static boolean isConnected(UserDirectory.User user) {
+        Session session = onlineUsers.get(user.name);
+        return session != null && session.isConnected();
+    }
+
+    // Only the current session of a user takes them offline, and only if
+    // they aren't logged in on another node as well
+    private static void takeOffline(Session session) {
+        if (onlineUsers.remove(session.user.name, session)) {
+            cluster.announce(session.user.name, false);
+            if (cluster.locate(session.user.name) >= 0) {
+                return;
+            }
+            try {
+                updateUserStatus(session.user, false);
+            } catch (SQLException e) {
+                log("Error updating user status: " + e.getMessage());
+            }
+            presence.publish(session.user.name, false);
+        }
+    }
+
+    // A message stored as delivered that didn't reach its recipient after
+    // all; it goes out with their next login
+    private static void markUndelivered(long id) {
+        try (Database.PooledConnection db = database.writer("mark_undelivered")) {
+            markUndelivered(db, id);
+        } catch (SQLException e) {
+            log("Error marking message " + id + " undelivered: " + e.getMessage());
+        }
+    }
+
+    private static void markUndelivered(Database.PooledConnection db, long id) throws SQLException {
+        PreparedStatement stmt = db.prepare("UPDATE messages SET delivered = 0 WHERE id = ?");
+        stmt.setLong(1, id);
+        stmt.executeUpdate();
+    }
+
+    // What the other nodes of the cluster report
+    private static class ClusterHandler implements Cluster.Handler {
+        @Override
+        public Collection<String> localUsers() {
+            return new ArrayList<>(onlineUsers.keySet());
+        }
+
+        // Shown to this node's clients unless the user is still online here
+        // or on yet another node. A user who registered on another node is
+        // looked up in the database and becomes a contact here too.
+        @Override
+        public void presence(String name, boolean online) throws SQLException {
+            UserDirectory.User user = users.find(name);
+            if (user == null || (!online && (onlineUsers.containsKey(name) || cluster.locate(name) >= 0))) {
+                return;
+            }
+            user.online = online;
+            presence.publish(name, online);
+        }
+
+        // Pushed under the user's lock like a local message; if they left in
+        // the meantime it waits for their next login instead. Queueing the
+        // mark under the lock may wait for the writer, which is safe because
+        // nothing on the writer thread takes a user's lock (see delivery).
+        @Override
+        public void privateMessage(long id, String sender, String recipient, String content) throws SQLException {
+            UserDirectory.User user = users.find(recipient);
+            if (user == null) {
+                return;
+            }
+            synchronized (user) {
+                if (isConnected(user)) {
+                    Session session = onlineUsers.get(recipient);
+                    session.sendFrame(session.format().privateMessage(sender, content));
+                } else {
+                    user.undeliveredWrites.incrementAndGet();
+                    messageWriter.execute("mark_undelivered", db -> markUndelivered(db, id))
+                            .whenComplete((done, error) -> user.undeliveredWrites.decrementAndGet());
+                }
+            }
+        }
+
+        // Already stored by the sender's node; only the members here get it
+        @Override
+        public void groupMessage(String groupName, String sender, String content) throws SQLException {
+            GroupDirectory.Group group = groups.find(groupName);
+            if (group == null) {
+                groups.load(groupName);
+                group = groups.find(groupName);
+            }
+            if (group != null) {
+                groupFanout.send(group, sender, content);
+            }
+        }
+
+        @Override
+        public void groupCreated(String groupName) throws SQLException {
+            groups.load(groupName);
+        }
+
+        @Override
+        public void forget(long conversation) {
+            recentMessages.forget(conversation);
+        }
+
+        @Override
+        public void undelivered(long id) {
+            markUndelivered(id);
+        }
+
+        @Override
+        public void linkChanged(int node) {
+            recentMessages.clear();
+        }
+    }
+
+    private static void updateUserStatus(UserDirectory.User user, boolean online) throws SQLException {
+        user.online = online;
+        String sql = "UPDATE users SET online = ? WHERE id = ?";
+        try (Database.PooledConnection db = database.writer("update_status")) {
+            PreparedStatement stmt = db.prepare(sql);
+            stmt.setBoolean(1, online);
+            stmt.setLong(2, user.id);
+            stmt.executeUpdate();
+        }
+    }
+
+    private static class ClientHandler implements ClientConnection.Listener {
+        // As SQLite's CURRENT_TIMESTAMP writes it, which GET_HISTORY has always sent
+        private static final DateTimeFormatter LEGACY_TIMESTAMP =
+                DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+        private static final RecentMessages.Page NO_MESSAGES = new RecentMessages.Page(Collections.emptyList(), false);
+
+        private final ClientConnection connection;
+        private String username;
+        private UserDirectory.User user;
+        private Session session;
+        private int throttledInARow;
+        // The newest legacy GET_HISTORY waiting for its limit; guarded by this
+        private String deferredHistory;
+
+        public ClientHandler(ClientConnection connection) {
+            this.connection = connection;
+            Metrics.connectionsOpened.increment();
+        }
+
+        @Override
+        public void onLine(String message) {
+            if (message.equals("PING")) {
+                connection.useHeartbeats();
+                connection.sendFrame(connection.format().pong());
+                return;
+            }
+            if (message.equals("PONG")) {
+                // The engine has already noted that the client is alive
+                connection.useHeartbeats();
+                return;
+            }
+            Metrics.Command command = Metrics.Command.ofLine(message);
+            boolean limited = username != null;
+            if (limited && command == Metrics.Command.GET_HISTORY) {
+                if (!admitHistory(message)) {
+                    return;
+                }
+            } else if (limited && !admit(command)) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                if (username == null) {
+                    handleAuthentication(message);
+                } else if (message.startsWith("PRIVATE:")) {
+                    String[] parts = message.split(":", 3);
+                    handlePrivateMessage(parts[1], parts[2]);
+                } else if (message.equals("GET_CONTACTS")) {
+                    sendContactList();
+                } else if (message.equals("START_SESSION")) {
+                    startSession();
+                } else if (message.equals("LOGOUT")) {
+                    logout();
+                } else if (message.startsWith("GET_HISTORY:")) {
+                    sendMessageHistory(message);
+                } else if (message.startsWith("GET_HISTORY_PAGE:")) {
+                    // GET_HISTORY_PAGE:user:limit:beforeId
+                    String[] parts = message.split(":", 4);
+                    sendHistoryPage(parts[1], parts.length > 2 ? Integer.parseInt(parts[2]) : 50,
+                            parts.length > 3 ? Long.parseLong(parts[3]) : 0);
+                } else if (message.startsWith("GET_HISTORY_SINCE:")) {
+                    // GET_HISTORY_SINCE:user:afterId:limit
+                    String[] parts = message.split(":", 4);
+                    sendHistorySince(parts[1], parts.length > 2 ? Long.parseLong(parts[2]) : 0,
+                            parts.length > 3 ? Integer.parseInt(parts[3]) : 50);
+                } else if (message.startsWith("GROUP:")) {
+                    String[] parts = message.split(":", 3);
+                    handleGroupMessage(parts[1], parts[2]);
+                } else if (message.startsWith("CREATE_GROUP:")) {
+                    // CREATE_GROUP:name:member,member,...
+                    String[] parts = message.split(":", 3);
+                    createGroup(parts[1], parts.length > 2 ? Arrays.asList(parts[2].split(",")) : Collections.emptyList());
+                } else if (message.equals("GET_GROUPS")) {
+                    sendGroups();
+                } else if (message.startsWith("GET_GROUP_HISTORY:")) {
+                    // GET_GROUP_HISTORY:group:limit:beforeId
+                    String[] parts = message.split(":", 4);
+                    sendGroupHistory(parts[1], parts.length > 2 ? Integer.parseInt(parts[2]) : 50,
+                            parts.length > 3 ? Long.parseLong(parts[3]) : 0);
+                } else if (message.startsWith("SEARCH:")) {
+                    // SEARCH:limit:offset:contact:query (empty contact = all conversations)
+                    String[] parts = message.split(":", 5);
+                    if (parts.length == 5) {
+                        search(parts[4], parts[3], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                Metrics.failed(command);
+                log("Error handling message: " + e.getMessage());
+            } finally {
+                Metrics.handled(command, start);
+                if (limited) {
+                    rateLimiter.release(command);
+                }
+            }
+        }
+
+        // Field layouts are listed in BinaryProtocol
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            byte type = frame.get();
+            if (type == BinaryProtocol.PING) {
+                connection.sendFrame(connection.format().pong());
+                return;
+            }
+            if (type == BinaryProtocol.PONG) {
+                return;
+            }
+            Metrics.Command command = Metrics.Command.ofFrame(type);
+            boolean limited = username != null;
+            if (limited && !admit(command)) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                if (username == null) {
+                    if (type == BinaryProtocol.LOGIN || type == BinaryProtocol.REGISTER) {
+                        String name = BinaryProtocol.getString(frame);
+                        String password = BinaryProtocol.getString(frame);
+                        if (type == BinaryProtocol.LOGIN) {
+                            login(name, password);
+                        } else {
+                            register(name, password);
+                        }
+                    } else if (type == BinaryProtocol.RESUME) {
+                        resume(BinaryProtocol.getString(frame), frame.getLong());
+                    } else {
+                        connection.close();
+                    }
+                    return;
+                }
+                switch (type) {
+                    case BinaryProtocol.PRIVATE:
+                        handlePrivateMessage(BinaryProtocol.getString(frame), BinaryProtocol.getString(frame));
+                        break;
+                    case BinaryProtocol.GET_CONTACTS:
+                        sendContactList();
+                        break;
+                    case BinaryProtocol.START_SESSION:
+                        startSession();
+                        break;
+                    case BinaryProtocol.LOGOUT:
+                        logout();
+                        break;
+                    case BinaryProtocol.GET_HISTORY_PAGE:
+                        sendHistoryPage(BinaryProtocol.getString(frame), frame.getInt(), frame.getLong());
+                        break;
+                    case BinaryProtocol.GET_HISTORY_SINCE:
+                        sendHistorySince(BinaryProtocol.getString(frame), frame.getLong(), frame.getInt());
+                        break;
+                    case BinaryProtocol.GROUP:
+                        handleGroupMessage(BinaryProtocol.getString(frame), BinaryProtocol.getString(frame));
+                        break;
+                    case BinaryProtocol.CREATE_GROUP: {
+                        String name = BinaryProtocol.getString(frame);
+                        int count = frame.getInt();
+                        List<String> members = new ArrayList<>();
+                        for (int i = 0; i < count; i++) {
+                            members.add(BinaryProtocol.getString(frame));
+                        }
+                        createGroup(name, members);
+                        break;
+                    }
+                    case BinaryProtocol.GET_GROUPS:
+                        sendGroups();
+                        break;
+                    case BinaryProtocol.GET_GROUP_HISTORY:
+                        sendGroupHistory(BinaryProtocol.getString(frame), frame.getInt(), frame.getLong());
+                        break;
+                    case BinaryProtocol.SEARCH:
+                        search(BinaryProtocol.getString(frame), BinaryProtocol.getString(frame), frame.getInt(), frame.getInt());
+                        break;
+                    default:
+                        log("Unknown frame type " + type + " from " + connection.remoteAddress());
+                }
+            } catch (SQLException | RuntimeException e) {
+                Metrics.failed(command);
+                log("Error handling frame: " + e.getMessage());
+            } finally {
+                Metrics.handled(command, start);
+                if (limited) {
+                    rateLimiter.release(command);
+                }
+            }
+        }
+
+        // A logged-in user's command over a rate limit is answered with
+        // THROTTLED instead of running. A client that goes on regardless is
+        // disconnected. LOGOUT always goes through.
+        private boolean admit(Metrics.Command command) {
+            long retryAfter = command == Metrics.Command.LOGOUT ? 0 : rateLimiter.acquire(username, command);
+            if (retryAfter == 0) {
+                throttledInARow = 0;
+                return true;
+            }
+            Metrics.throttled(command);
+            if (++throttledInARow > ServerConfig.MAX_THROTTLED_IN_A_ROW) {
+                log(username + " ignored " + ServerConfig.MAX_THROTTLED_IN_A_ROW + " THROTTLED answers, disconnecting");
+                connection.close();
+            } else {
+                connection.sendFrame(connection.format().throttled(command.name(), retryAfter));
+            }
+            return false;
+        }
+
+        // Legacy clients ignore THROTTLED and ask for the whole history again
+        // on every presence change. An over-limit GET_HISTORY is therefore
+        // run once the limit allows it instead of being refused, and a newer
+        // one replaces the one waiting, so a burst costs one query.
+        private synchronized boolean admitHistory(String message) {
+            if (deferredHistory != null) {
+                deferredHistory = message;
+                return false;
+            }
+            long retryAfter = rateLimiter.acquire(username, Metrics.Command.GET_HISTORY);
+            if (retryAfter == 0) {
+                return true;
+            }
+            Metrics.throttled(Metrics.Command.GET_HISTORY);
+            deferredHistory = message;
+            maintenance.schedule(this::runDeferredHistory, retryAfter, TimeUnit.MILLISECONDS);
+            return false;
+        }
+
+        // On the maintenance thread
+        private void runDeferredHistory() {
+            String message;
+            synchronized (this) {
+                long retryAfter = rateLimiter.acquire(username, Metrics.Command.GET_HISTORY);
+                if (retryAfter > 0) {
+                    maintenance.schedule(this::runDeferredHistory, retryAfter, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                message = deferredHistory;
+                deferredHistory = null;
+            }
+            try {
+                sendMessageHistory(message);
+            } catch (SQLException | RuntimeException e) {
+                Metrics.failed(Metrics.Command.GET_HISTORY);
+                log("Error handling message: " + e.getMessage());
+            } finally {
+                rateLimiter.release(Metrics.Command.GET_HISTORY);
+            }
+        }
+
+        @Override
+        public void onClose() {
+            Metrics.connectionsClosed.increment();
+            // Clean up
+            if (session != null) {
+                Session detached = session;
+                int detach = detached.detach(connection);
+                if (detach < 0) {
+                    log(username + "'s previous connection closed");
+                } else if (detached.isResumable()) {
+                    // Stay online for a while, so a short drop costs no presence change
+                    maintenance.schedule(() -> expireSession(detached, detach),
+                            ServerConfig.RESUME_WINDOW_SECONDS, TimeUnit.SECONDS);
+                    log(username + " disconnected, session kept for " + ServerConfig.RESUME_WINDOW_SECONDS + " s");
+                } else {
+                    takeOffline(detached);
+                    log(username + " disconnected");
+                }
+            } else if (username != null) {
+                log(username + " disconnected");
+            }
+        }
+
+        private void handleAuthentication(String authRequest) {
+            if (authRequest.startsWith(BinaryProtocol.HANDSHAKE)) {
+                negotiateProtocol(authRequest.substring(BinaryProtocol.HANDSHAKE.length()));
+                return;
+            }
+            if (authRequest.startsWith("RESUME:")) {
+                // RESUME:token:received
+                String[] parts = authRequest.split(":", 3);
+                resume(parts[1], parts.length > 2 ? Long.parseLong(parts[2]) : 0);
+                return;
+            }
+            String[] authParts = authRequest.split(":", 3);
+            if (authParts.length < 3) {
+                connection.close();
+                return;
+            }
+            String action = authParts[0];
+            String name = authParts[1];
+            String password = authParts[2];
+
+            if ("LOGIN".equals(action)) {
+                login(name, password);
+            } else if ("REGISTER".equals(action)) {
+                register(name, password);
+            } else {
+                connection.close();
+            }
+        }
+
+        // "<version>" or "<version>:deflate"
+        private void negotiateProtocol(String request) {
+            boolean deflate = request.endsWith(BinaryProtocol.DEFLATE) && "deflate".equals(ServerConfig.COMPRESSION);
+            String version = request.endsWith(BinaryProtocol.DEFLATE)
+                    ? request.substring(0, request.length() - BinaryProtocol.DEFLATE.length()) : request;
+            if (String.valueOf(BinaryProtocol.VERSION).equals(version)) {
+                connection.useBinaryFraming(deflate ? WireFormat.BINARY_DEFLATE : WireFormat.BINARY);
+                connection.send(BinaryProtocol.HANDSHAKE_OK + version + (deflate ? BinaryProtocol.DEFLATE : ""));
+            } else {
+                connection.send(BinaryProtocol.HANDSHAKE_UNSUPPORTED + BinaryProtocol.VERSION);
+            }
+        }
+
+        private void login(String name, String password) {
+            try {
+                if (authenticateUser(name, password)) {
+                    username = name;
+                    user = users.find(name);
+                    connection.sendFrame(connection.format().authResult(false, true));
+                    session = new Session(user, connection, ServerConfig.RESUME_BUFFER_KB * 1024L);
+                    synchronized (user) {
+                        onlineUsers.put(username, session);
+                    }
+                    deliverPending(session);
+                    updateUserStatus(user, true);
+                    presence.publish(username, true);
+                    cluster.announce(username, true);
+                    log(username + " logged in successfully");
+                } else {
+                    connection.sendFrame(connection.format().authResult(false, false));
+                    connection.close();
+                }
+            } catch (SQLException e) {
+                log("Authentication error: " + e.getMessage());
+                connection.sendFrame(connection.format().authResult(false, false));
+                connection.close();
+            }
+        }
+
+        private void register(String name, String password) {
+            try {
+                user = registerUser(name, password);
+                if (user != null) {
+                    username = name;
+                    connection.sendFrame(connection.format().authResult(true, true));
+                    // Lets everyone add the new contact
+                    presence.publish(username, false);
+                    cluster.announce(username, false);
+                    log(username + " registered successfully");
+                } else {
+                    connection.sendFrame(connection.format().authResult(true, false));
+                    connection.close();
+                }
+            } catch (SQLException e) {
+                log("Registration error: " + e.getMessage());
+                connection.sendFrame(connection.format().authResult(true, false));
+                connection.close();
+            }
+        }
+
+        // Picks up a session the client was disconnected from, with no
+        // password check and no presence change. On failure the connection
+        // stays open for a normal login.
+        private void resume(String token, long received) {
+            Session candidate = sessions.get(token);
+            boolean resumed = false;
+            if (candidate != null) {
+                synchronized (candidate.user) {
+                    resumed = onlineUsers.get(candidate.user.name) == candidate && candidate.resume(connection, received);
+                }
+            }
+            if (resumed) {
+                // Messages that came in while the session was detached
+                deliverPending(candidate);
+                session = candidate;
+                user = candidate.user;
+                username = user.name;
+                log(username + " resumed their session");
+            } else {
+                Session.failedResumes.incrementAndGet();
+                connection.sendFrame(connection.format().resumeResult(false));
+            }
+        }
+
+        private void startSession() {
+            if (session != null && ServerConfig.RESUME_WINDOW_SECONDS > 0 && !session.isResumable()) {
+                sessions.put(session.token, session);
+                session.makeResumable();
+            }
+        }
+
+        // Goes offline at once instead of waiting out the resume window
+        private void logout() {
+            if (session != null) {
+                sessions.remove(session.token, session);
+                session.end();
+            }
+            connection.close();
+        }
+
+        private boolean authenticateUser(String username, String password) throws SQLException {
+            String sql = "SELECT password FROM users WHERE username = ?";
+            try (Database.PooledConnection db = database.reader("authenticate")) {
+                PreparedStatement stmt = db.prepare(sql);
+                stmt.setString(1, username);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next()) {
+                        return rs.getString("password").equals(password);
+                    }
+                }
+            }
+            return false;
+        }
+
+        // The new user, or null if the name is taken
+        private UserDirectory.User registerUser(String username, String password) throws SQLException {
+            String sql = "INSERT INTO users(username, password) VALUES(?, ?)";
+            long id;
+            try (Database.PooledConnection db = database.writer("register_user")) {
+                PreparedStatement stmt = db.prepare(sql);
+                stmt.setString(1, username);
+                stmt.setString(2, password);
+                if (stmt.executeUpdate() == 0) {
+                    return null;
+                }
+                id = db.lastInsertId();
+            } catch (SQLException e) {
+                return null;
+            }
+            return users.add(id, username);
+        }
+
+        private void handlePrivateMessage(String recipient, String content) throws SQLException {
+            // Prevent self-messaging
+            if (username.equals(recipient)) {
+                return;
+            }
+            
+            UserDirectory.User recipientUser = users.find(recipient);
+            if (recipientUser == null) {
+                return;
+            }
+
+            // Store message in database, then forward to recipient if
+            // connected, here or on another node; otherwise it waits for
+            // their next login
+            boolean connected;
+            int node = -1;
+            CompletableFuture<Long> stored;
+            synchronized (recipientUser) {
+                connected = isConnected(recipientUser);
+                if (!connected) {
+                    node = cluster.locate(recipient);
+                }
+                stored = storeMessage(user, recipientUser, content, connected || node >= 0);
+            }
+            if (cluster.enabled()) {
+                long conversation = Database.conversationId(user.id, recipientUser.id);
+                stored.thenRun(() -> cluster.forget(conversation));
+            }
+            if (node >= 0) {
+                // Routed messages carry their id, so they wait for the commit
+                // whatever the durability setting
+                int target = node;
+                stored.thenAcceptAsync(id -> routeMessage(target, id, recipient, content), delivery);
+                return;
+            }
+            if (!connected) {
+                return;
+            }
+            if ("immediate".equals(ServerConfig.DURABILITY) && forwardMessage(recipientUser, content)) {
+                return;
+            }
+            stored.thenAcceptAsync(id -> forwardStored(recipientUser, id, content), delivery);
+        }
+
+        // Pushes the message if the recipient is connected right now. Under
+        // their lock, so it is either pushed or left for deliverPending.
+        private boolean forwardMessage(UserDirectory.User recipient, String content) {
+            synchronized (recipient) {
+                if (!isConnected(recipient)) {
+                    return false;
+                }
+                Session recipientSession = onlineUsers.get(recipient.name);
+                recipientSession.sendFrame(recipientSession.format().privateMessage(username, content));
+                return true;
+            }
+        }
+
+        // A message stored as delivered whose recipient may have left since.
+        // Runs on the delivery thread once it is committed; the row is marked
+        // through a writer connection of its own rather than a writer task,
+        // which could wait on the full queue.
+        private void forwardStored(UserDirectory.User recipient, long id, String content) {
+            synchronized (recipient) {
+                if (!forwardMessage(recipient, content)) {
+                    markUndelivered(id);
+                }
+            }
+        }
+
+        private void routeMessage(int node, long id, String recipient, String content) {
+            if (!cluster.sendPrivate(node, id, username, recipient, content)) {
+                markUndelivered(id);
+            }
+        }
+
+        // Stored once, then pushed to the members who are online from one
+        // encoded frame; the others find it in the group history. Nodes
+        // with members online get one copy each and fan it out themselves.
+        private void handleGroupMessage(String groupName, String content) {
+            GroupDirectory.Group group = groups.find(groupName);
+            if (group == null || !group.hasMember(user)) {
+                return;
+            }
+            CompletableFuture<Long> stored = messageWriter.submitGroup(user.id, group.id, content);
+            if (cluster.enabled()) {
+                long conversation = Database.groupConversationId(group.id);
+                stored.thenRun(() -> cluster.forget(conversation));
+            }
+            if ("immediate".equals(ServerConfig.DURABILITY)) {
+                sendToGroup(group, content);
+            } else {
+                stored.thenRun(() -> sendToGroup(group, content));
+            }
+        }
+
+        private void sendToGroup(GroupDirectory.Group group, String content) {
+            groupFanout.send(group, username, content);
+            cluster.sendGroup(group, username, content);
+        }
+
+        // Unknown member names are skipped; the creator is always a member
+        private void createGroup(String name, List<String> memberNames) throws SQLException {
+            GroupDirectory.Group group = null;
+            if (validGroupName(name) && memberNames.size() < ServerConfig.GROUP_MAX_MEMBERS) {
+                List<UserDirectory.User> members = new ArrayList<>();
+                for (String memberName : memberNames) {
+                    UserDirectory.User member = users.find(memberName.trim());
+                    if (member != null) {
+                        members.add(member);
+                    }
+                }
+                try {
+                    group = groups.create(name, user, members);
+                } catch (SQLException e) {
+                    // Typically another node taking the name first; the
+                    // client still gets its GROUP_FAILED
+                    log("Error creating group " + name + ": " + e.getMessage());
+                }
+            }
+            connection.sendFrame(connection.format().groupResult(name, group != null));
+            if (group != null) {
+                cluster.groupCreated(name);
+                log(username + " created group " + name + " with " + group.members().size() + " members");
+            }
+        }
+
+        // Kept free of the text protocol's separators
+        private boolean validGroupName(String name) {
+            return !name.isEmpty() && name.length() <= 64 && name.trim().equals(name)
+                    && name.chars().noneMatch(c -> c == ':' || c == ';' || c == ',' || c == '\n');
+        }
+
+        private void sendGroups() {
+            Map<String, List<String>> memberNames = new LinkedHashMap<>();
+            for (GroupDirectory.Group group : groups.of(user)) {
+                List<String> names = new ArrayList<>(group.members().size());
+                for (UserDirectory.User member : group.members()) {
+                    names.add(member.name);
+                }
+                memberNames.put(group.name, names);
+            }
+            connection.sendFrame(connection.format().groups(memberNames));
+        }
+
+        // Like sendHistoryPage, for members of the group only
+        private void sendGroupHistory(String groupName, int limit, long beforeId) throws SQLException {
+            limit = pageLimit(limit);
+            GroupDirectory.Group group = groups.find(groupName);
+            RecentMessages.Page page = NO_MESSAGES;
+            if (group != null && group.hasMember(user)) {
+                long conversation = Database.groupConversationId(group.id);
+                long seedToken = recentMessages.seedToken(conversation);
+                page = recentMessages.before(conversation, beforeId, limit);
+                if (page == null) {
+                    String sql = "SELECT id, sender_id, message, strftime('%s', timestamp) AS sent FROM group_messages " +
+                                 "WHERE group_id = ? AND id < ? ORDER BY id DESC LIMIT ?";
+                    page = queryHistory("group_history", sql, group.id, beforeId > 0 ? beforeId : Long.MAX_VALUE, limit);
+                    Collections.reverse(page.messages);
+                    if (beforeId == 0) {
+                        recentMessages.seed(conversation, page.messages, !page.hasMore, seedToken);
+                    }
+                }
+            }
+            List<WireFormat.HistoryEntry> entries = new ArrayList<>(page.messages.size());
+            for (RecentMessages.Message message : page.messages) {
+                UserDirectory.User sender = users.find(message.senderId);
+                entries.add(new WireFormat.HistoryEntry(message.id, sender != null ? sender.name : "?",
+                        message.sentSeconds, message.text));
+            }
+            connection.sendFrame(connection.format().groupHistory(groupName, beforeId, page.hasMore, entries));
+        }
+
+        private CompletableFuture<Long> storeMessage(UserDirectory.User sender, UserDirectory.User recipient, String content,
+                                                     boolean delivered) {
+            if (delivered) {
+                return messageWriter.submit(sender.id, recipient.id, content, true);
+            }
+            recipient.undeliveredWrites.incrementAndGet();
+            CompletableFuture<Long> stored = messageWriter.submit(sender.id, recipient.id, content, false);
+            stored.whenComplete((id, error) -> recipient.undeliveredWrites.decrementAndGet());
+            return stored;
+        }
+
+        private void sendContactList() {
+            connection.sendFrame(connection.format().presence(true, contactStatuses(username)));
+        }
+
+        // The whole conversation, oldest first, archived messages included;
+        // the legacy client has no paging
+        private void sendMessageHistory(String message) throws SQLException {
+            String otherUser = message.split(":")[1];
+            StringBuilder history = new StringBuilder("HISTORY:");
+            UserDirectory.User other = users.find(otherUser);
+            if (other != null) {
+                long conversation = Database.conversationId(user.id, other.id);
+                List<RecentMessages.Message> messages = messageArchive.all(conversation);
+                boolean archived = !messages.isEmpty();
+                try (Database.PooledConnection db = database.reader("history_all")) {
+                    String sql = "SELECT id, sender_id, message, strftime('%s', timestamp) AS sent FROM messages " +
+                                 "WHERE conversation_id = ? ORDER BY id";
+                    PreparedStatement stmt = db.prepare(sql);
+                    stmt.setLong(1, conversation);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            messages.add(new RecentMessages.Message(rs.getLong("id"), rs.getLong("sender_id"),
+                                    rs.getLong("sent"), rs.getString("message")));
+                        }
+                    }
+                }
+                if (archived) {
+                    // Messages delivered late stay live behind archived newer ones
+                    messages.sort(Comparator.comparingLong(m -> m.id));
+                }
+                for (RecentMessages.Message m : messages) {
+                    boolean fromMe = m.senderId == user.id;
+                    history.append(fromMe ? username : otherUser)
+                          .append(":")
+                          .append(fromMe ? otherUser : username)
+                          .append(":")
+                          .append(m.text)
+                          .append(":")
+                          .append(LEGACY_TIMESTAMP.format(Instant.ofEpochSecond(m.sentSeconds)))
+                          .append(";");
+                }
+            }
+            connection.send(history.toString());
+        }
+
+        // The newest `limit` messages older than beforeId (0 = latest), oldest
+        // first. The latest page comes from the recent-messages cache when it
+        // has the conversation, and refills it when it doesn't.
+        private void sendHistoryPage(String otherUser, int limit, long beforeId) throws SQLException {
+            limit = pageLimit(limit);
+            UserDirectory.User other = users.find(otherUser);
+            RecentMessages.Page page = NO_MESSAGES;
+            if (other != null) {
+                long conversation = Database.conversationId(user.id, other.id);
+                long seedToken = recentMessages.seedToken(conversation);
+                page = recentMessages.before(conversation, beforeId, limit);
+                if (page == null) {
+                    String sql = "SELECT id, sender_id, message, strftime('%s', timestamp) AS sent FROM messages " +
+                                 "WHERE conversation_id = ? AND id < ? ORDER BY id DESC LIMIT ?";
+                    page = queryHistory("history_page", sql, conversation, beforeId > 0 ? beforeId : Long.MAX_VALUE, limit);
+                    Collections.reverse(page.messages);
+                    if (!page.hasMore) {
+                        page = withArchived(conversation, beforeId, limit, page);
+                    }
+                    if (beforeId == 0) {
+                        recentMessages.seed(conversation, page.messages, !page.hasMore, seedToken);
+                    }
+                }
+            }
+            connection.sendFrame(connection.format().history(false, otherUser, beforeId, page.hasMore, entries(page, otherUser)));
+        }
+
+        // The first `limit` messages newer than afterId, oldest first, for
+        // clients that cache history
+        private void sendHistorySince(String otherUser, long afterId, int limit) throws SQLException {
+            limit = pageLimit(limit);
+            UserDirectory.User other = users.find(otherUser);
+            RecentMessages.Page page = NO_MESSAGES;
+            if (other != null) {
+                long conversation = Database.conversationId(user.id, other.id);
+                page = recentMessages.after(conversation, afterId, limit);
+                if (page == null) {
+                    String sql = "SELECT id, sender_id, message, strftime('%s', timestamp) AS sent FROM messages " +
+                                 "WHERE conversation_id = ? AND id > ? ORDER BY id LIMIT ?";
+                    // Everything archived lies below the live table's oldest
+                    // delivered message, so past it the archive has nothing
+                    RecentMessages.Page archived = afterId < oldestLiveDelivered(conversation)
+                            ? messageArchive.after(conversation, afterId, limit)
+                            : NO_MESSAGES;
+                    if (archived.hasMore) {
+                        page = archived;
+                    } else if (archived.messages.isEmpty()) {
+                        page = queryHistory("history_since", sql, conversation, afterId, limit);
+                    } else {
+                        // The archive's newest messages, then the live table's oldest
+                        int remaining = limit - archived.messages.size();
+                        RecentMessages.Page live = queryHistory("history_since", sql, conversation,
+                                archived.messages.get(archived.messages.size() - 1).id, Math.max(remaining, 0));
+                        List<RecentMessages.Message> messages = new ArrayList<>(archived.messages);
+                        messages.addAll(live.messages);
+                        page = new RecentMessages.Page(messages, live.hasMore);
+                    }
+                }
+            }
+            connection.sendFrame(connection.format().history(true, otherUser, afterId, page.hasMore, entries(page, otherUser)));
+        }
+
+        // Ranked matches from the user's own conversations, optionally only
+        // the one with `contact`; an unknown contact finds nothing
+        private void search(String query, String contact, int limit, int offset) throws SQLException {
+            limit = Math.max(1, Math.min(limit, ServerConfig.SEARCH_PAGE_MAX));
+            offset = Math.max(0, offset);
+            UserDirectory.User other = contact.isEmpty() ? null : users.find(contact);
+            MessageSearch.Page page = contact.isEmpty() || other != null
+                    ? messageSearch.search(user, other, query, limit, offset)
+                    : new MessageSearch.Page(Collections.emptyList(), false);
+            connection.sendFrame(connection.format().searchResults(offset, page.hasMore, page.hits));
+        }
+
+        // A history page the live table couldn't fill, or filled exactly,
+        // continued from the archive: older messages in front, and hasMore
+        // if the archive has even older ones
+        private RecentMessages.Page withArchived(long conversation, long beforeId, int limit, RecentMessages.Page live)
+                throws SQLException {
+            long cursor = live.messages.isEmpty() ? beforeId : live.messages.get(0).id;
+            RecentMessages.Page archived = messageArchive.before(conversation, cursor, limit - live.messages.size());
+            if (archived.messages.isEmpty() && !archived.hasMore) {
+                return live;
+            }
+            List<RecentMessages.Message> messages = new ArrayList<>(archived.messages);
+            messages.addAll(live.messages);
+            return new RecentMessages.Page(messages, archived.hasMore);
+        }
+
+        // Id of the conversation's oldest delivered message still in the
+        // live table, Long.MAX_VALUE if there is none. The archiver moves
+        // delivered messages in id order, so every archived one is older;
+        // a message delivered after its neighbours were archived only
+        // makes this lower.
+        private long oldestLiveDelivered(long conversation) throws SQLException {
+            try (Database.PooledConnection db = database.reader("oldest_live")) {
+                PreparedStatement stmt = db.prepare(
+                        "SELECT id FROM messages WHERE conversation_id = ? AND delivered ORDER BY id LIMIT 1");
+                stmt.setLong(1, conversation);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getLong(1) : Long.MAX_VALUE;
+                }
+            }
+        }
+
+        private int pageLimit(int requested) {
+            return Math.max(1, Math.min(requested, ServerConfig.HISTORY_PAGE_MAX));
+        }
+
+        // Runs a (conversation or group, cursor, limit) query and returns up
+        // to `limit` rows in query order
+        private RecentMessages.Page queryHistory(String query, String sql, long conversation, long cursor, int limit) throws SQLException {
+            List<RecentMessages.Message> messages = new ArrayList<>(limit);
+            try (Database.PooledConnection db = database.reader(query)) {
+                PreparedStatement stmt = db.prepare(sql);
+                stmt.setLong(1, conversation);
+                stmt.setLong(2, cursor);
+                stmt.setInt(3, limit + 1);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        if (messages.size() == limit) {
+                            return new RecentMessages.Page(messages, true);
+                        }
+                        messages.add(new RecentMessages.Message(rs.getLong("id"), rs.getLong("sender_id"),
+                                rs.getLong("sent"), rs.getString("message")));
+                    }
+                }
+            }
+            return new RecentMessages.Page(messages, false);
+        }
+
+        private List<WireFormat.HistoryEntry> entries(RecentMessages.Page page, String otherUser) {
+            List<WireFormat.HistoryEntry> entries = new ArrayList<>(page.messages.size());
+            for (RecentMessages.Message message : page.messages) {
+                entries.add(new WireFormat.HistoryEntry(message.id,
+                        message.senderId == user.id ? username : otherUser,
+                        message.sentSeconds, message.text));
+            }
+            return entries;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+// ServerConfig.java
+package messenger;
+
+// Server settings. Every value can be overridden on the command line with
+// -Dmessenger.<name>=<value>, e.g. java -Dmessenger.engine=threads Server
+final class ServerConfig {
+    static final int PORT = intProperty("port", 12345);
+    static final String DB_URL = stringProperty("db", "jdbc:sqlite:messenger.db");
+    // Pooled read-only connections; all writes share one writer connection
+    static final int DB_READERS = intProperty("dbReaders", 4);
+    // SQLite synchronous level for the WAL writer: FULL fsyncs every commit,
+    // NORMAL only at checkpoints (can lose the last commits on power loss)
+    static final String DB_SYNCHRONOUS = stringProperty("dbSynchronous", "FULL");
+
+    // Connection engine: "nio" (selector event loop) or "threads" (one thread
+    // per connection, virtual threads when the JVM supports them)
+    static final String ENGINE = stringProperty("engine", "nio");
+    static final int ACCEPT_BACKLOG = intProperty("backlog", 1024);
+    static final int WORKER_THREADS = intProperty("workers", Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    static final int MAX_LINE_LENGTH = intProperty("maxLineLength", 1 << 20);
+    // Stop reading from a connection once this many of its lines are waiting for a worker
+    static final int MAX_PENDING_LINES = intProperty("maxPendingLines", 256);
+
+    // Bytes queued for one client before the slow-consumer policy kicks in
+    static final int OUTBOUND_LIMIT = intProperty("outboundLimit", 4 << 20);
+    // What to do with a client that can't keep up: drop, disconnect or spill
+    static final OutboundQueue.Policy SLOW_CONSUMER_POLICY = OutboundQueue.Policy.parse(stringProperty("slowConsumer", "disconnect"));
+    // Per-connection cap on spilled bytes; past it the client is disconnected
+    static final long SPILL_LIMIT = intProperty("spillLimit", 64 << 20);
+
+    // "commit": forward a message only after its batch is committed.
+    // "immediate": forward at once and persist in the background.
+    static final String DURABILITY = stringProperty("durability", "commit");
+    // A write batch is committed when it holds this many messages or is this old
+    static final int WRITE_BATCH_SIZE = intProperty("writeBatchSize", 256);
+    static final int WRITE_BATCH_DELAY_MS = intProperty("writeBatchDelayMs", 5);
+    static final int WRITE_QUEUE_CAPACITY = intProperty("writeQueueCapacity", 50000);
+    // Presence changes within this window go out together as one delta frame
+    static final int PRESENCE_WINDOW_MS = intProperty("presenceWindowMs", 100);
+    // Seconds between full presence snapshots to every client; 0 = only on GET_CONTACTS
+    static final int PRESENCE_SNAPSHOT_SECONDS = intProperty("presenceSnapshotInterval", 0);
+    // Token buckets as rate/burst: all of one user's commands together, and
+    // per command (a command not listed only counts against the user's)
+    static final String USER_RATE_LIMIT = stringProperty("userRateLimit", "50/200");
+    static final String COMMAND_RATE_LIMITS = stringProperty("rateLimits",
+            "GET_CONTACTS=2/10,GET_HISTORY=0.5/3,GET_HISTORY_PAGE=10/40,GET_HISTORY_SINCE=10/40," +
+            "GET_GROUP_HISTORY=10/40,SEARCH=2/10,CREATE_GROUP=0.2/5,GET_GROUPS=2/10");
+    // History and search requests running at once, server-wide; 0 = no limit
+    static final int MAX_EXPENSIVE_COMMANDS = intProperty("maxExpensiveCommands", DB_READERS * 4);
+    // Requests turned down in a row before the connection is closed
+    static final int MAX_THROTTLED_IN_A_ROW = intProperty("maxThrottledInARow", 1000);
+    // Largest page a client may ask for with GET_HISTORY_PAGE
+    static final int HISTORY_PAGE_MAX = intProperty("historyPageMax", 500);
+    // Most members a group may be created with, the creator included
+    static final int GROUP_MAX_MEMBERS = intProperty("groupMaxMembers", 1000);
+    // Largest page of SEARCH results
+    static final int SEARCH_PAGE_MAX = intProperty("searchPageMax", 50);
+    // Delivered messages older than this many days move to monthly archive
+    // files in archiveDir; 0 keeps everything in the live table
+    static final int RETENTION_DAYS = intProperty("retentionDays", 0);
+    static final String ARCHIVE_DIR = stringProperty("archiveDir", "archive");
+    // Archive files of months older than this are deleted; 0 keeps them all
+    static final int ARCHIVE_MONTHS = intProperty("archiveMonths", 0);
+    // Messages moved per writer task, and minutes between archiving runs
+    static final int ARCHIVE_BATCH = intProperty("archiveBatch", 500);
+    static final int ARCHIVE_INTERVAL_MINUTES = intProperty("archiveInterval", 60);
+    // Newest messages kept in memory per conversation, and the memory budget for all of them
+    static final int RECENT_MESSAGES = intProperty("recentMessages", 200);
+    static final int RECENT_MESSAGES_MB = intProperty("recentMessagesMb", 64);
+    // "deflate" lets binary clients ask for compressed frames; "off" refuses
+    static final String COMPRESSION = stringProperty("compression", "deflate");
+    // Smallest frame worth compressing, and the zlib level (1 fastest .. 9 smallest)
+    static final int COMPRESSION_THRESHOLD = intProperty("compressionThreshold", 512);
+    static final int COMPRESSION_LEVEL = intProperty("compressionLevel", 1);
+    // Seconds a client may stay silent before it is sent PING, and before
+    // it is taken for dead and disconnected; 0 turns either off
+    static final int PING_INTERVAL_SECONDS = intProperty("pingInterval", 30);
+    static final int IDLE_TIMEOUT_SECONDS = intProperty("idleTimeout", 90);
+    // How long a resumable session outlives its connection; 0 = no resumable sessions
+    static final int RESUME_WINDOW_SECONDS = intProperty("resumeWindow", 30);
+    // Push frames kept per session for replay after a reconnect
+    static final int RESUME_BUFFER_KB = intProperty("resumeBufferKb", 256);
+    // host:port of every node's cluster link, in node order; empty runs a
+    // single server. All nodes share the database file.
+    static final String CLUSTER = stringProperty("cluster", "");
+    // This node's position in that list
+    static final int NODE = intProperty("node", 0);
+    // Frames queued for one peer node; beyond that, sends to it fail
+    static final int CLUSTER_QUEUE = intProperty("clusterQueue", 65536);
+    static final int STATS_INTERVAL_SECONDS = intProperty("statsInterval", 60);
+    // No window and no AWT at all; the log goes to stdout as well as the log
+    // file. Also turned on by --headless or -Djava.awt.headless=true.
+    static final boolean HEADLESS = Boolean.parseBoolean(
+            stringProperty("headless", System.getProperty("java.awt.headless", "false")));
+    // Log file, rotated at logMaxMb (0 = never) keeping logFiles old ones; empty for none
+    static final String LOG_FILE = stringProperty("logFile", "server.log");
+    static final int LOG_MAX_MB = intProperty("logMaxMb", 10);
+    static final int LOG_FILES = intProperty("logFiles", 5);
+    // Log lines waiting for the log thread; more than this are dropped and counted
+    static final int LOG_BUFFER = intProperty("logBuffer", 8192);
+    // Lines kept in the server window
+    static final int WINDOW_LOG_LINES = intProperty("windowLogLines", 2000);
+    // Prometheus scrape endpoint, http://<address>:<port>/metrics; port 0 turns it off
+    static final String METRICS_ADDRESS = stringProperty("metricsAddress", "127.0.0.1");
+    static final int METRICS_PORT = intProperty("metricsPort", 9464);
+
+    private ServerConfig() {
+    }
+
+    static String stringProperty(String name, String defaultValue) {
+        return System.getProperty("messenger." + name, defaultValue);
+    }
+
+    static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty("messenger." + name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid value for messenger." + name + ": " + value);
+            return defaultValue;
+        }
+    }
+}
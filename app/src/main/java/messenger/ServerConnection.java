@@ -0,0 +1,783 @@
+// ServerConnection.java
+package messenger;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// The client side of the protocol, without any UI: connects, negotiates the
+// framing, logs in and turns everything the server pushes into Listener
+// calls. The Swing client and the load test both drive the server through it.
+//
+// After startSession() the server numbers its pushes (PRIVATE_MSG, GROUP_MSG,
+// ONLINE_UPDATE and PENDING_MESSAGES) and this class counts them, so when the socket drops a new
+// connection can resume() the session and receive only the pushes missed.
+//
+// Once started, a connection that has heard nothing from the server for
+// heartbeatInterval seconds sends PING, and one that has heard nothing for
+// heartbeatTimeout seconds closes with a SocketTimeoutException, so a dead
+// server or network is noticed without waiting for TCP to give up. The
+// server PINGs quiet clients in the same way and is answered with PONG.
+class ServerConnection implements Closeable {
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    // -Dmessenger.heartbeatInterval and heartbeatTimeout, in seconds; 0 turns them off
+    private static final int HEARTBEAT_INTERVAL_SECONDS = Integer.getInteger("messenger.heartbeatInterval", 10);
+    private static final int HEARTBEAT_TIMEOUT_SECONDS = Integer.getInteger("messenger.heartbeatTimeout", 20);
+    // -Dmessenger.maxFrameLength: largest frame taken from the server, before
+    // and after inflating. Above the server's own 1 MiB limit, as contact
+    // lists and pending batches come in one frame.
+    private static final int MAX_FRAME_LENGTH = Integer.getInteger("messenger.maxFrameLength", 16 << 20);
+
+    // Called on the reader thread, in the order the server sent them
+    interface Listener {
+        default void onPrivateMessage(String sender, String content) {
+        }
+
+        // Messages that arrived while this user was offline, oldest first
+        default void onPendingMessages(List<MessageCache.Message> messages) {
+            for (MessageCache.Message message : messages) {
+                onPrivateMessage(message.sender, message.content);
+            }
+        }
+
+        default void onGroupMessage(String group, String sender, String content) {
+        }
+
+        // The groups this user belongs to, with their members
+        default void onGroups(Map<String, List<String>> groups) {
+        }
+
+        // Answer to createGroup(); false if the name was taken or invalid
+        default void onGroupCreated(String group, boolean created) {
+        }
+
+        default void onGroupHistory(String group, long beforeId, boolean hasMore, List<MessageCache.Message> messages) {
+        }
+
+        default void onContacts(Map<String, Boolean> statuses) {
+        }
+
+        // Only the users whose status changed
+        default void onOnlineUpdate(Map<String, Boolean> statuses) {
+        }
+
+        // cursor is the beforeId of a page or the afterId of a since-request
+        default void onHistory(boolean since, String contact, long cursor, boolean hasMore,
+                               List<MessageCache.Message> messages) {
+        }
+
+        // One page of SEARCH results, best match first
+        default void onSearchResults(int offset, boolean hasMore, List<SearchHit> hits) {
+        }
+
+        // A request the server turned down because of a rate limit; it may
+        // be sent again after retryAfterMillis
+        default void onThrottled(String command, long retryAfterMillis) {
+        }
+
+        // Called once when the connection ends; cause is null after close()
+        default void onClose(IOException cause) {
+        }
+    }
+
+    // contact is the other side of the conversation; the snippet has the
+    // matching terms in brackets
+    static class SearchHit {
+        final long id;
+        final String contact;
+        final String sender;
+        final long sentMillis;
+        final String snippet;
+
+        SearchHit(long id, String contact, String sender, long sentMillis, String snippet) {
+            this.id = id;
+            this.contact = contact;
+            this.sender = sender;
+            this.sentMillis = sentMillis;
+            this.snippet = snippet;
+        }
+    }
+
+    private final Socket socket;
+    private final HeartbeatInput heartbeat;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final boolean binary;
+    private final Inflater inflater = new Inflater();
+    private volatile boolean closed;
+    private volatile String sessionToken;
+    // Pushes received since the session began; only the reader thread writes it
+    private volatile long pushesReceived;
+
+    private ServerConnection(Socket socket, HeartbeatInput heartbeat, DataInputStream in, boolean binary) throws IOException {
+        this.socket = socket;
+        this.heartbeat = heartbeat;
+        this.in = in;
+        this.out = socket.getOutputStream();
+        this.binary = binary;
+        // Until start(), a server that doesn't answer within heartbeatTimeout is taken for dead
+        socket.setSoTimeout(HEARTBEAT_TIMEOUT_SECONDS * 1000);
+    }
+
+    // Asks for the given framing and falls back to text when the server
+    // refuses it or predates the handshake
+    static ServerConnection open(String host, int port, WireFormat requested) throws IOException {
+        Socket socket = connect(host, port);
+        HeartbeatInput heartbeat = new HeartbeatInput(socket.getInputStream());
+        DataInputStream in = new DataInputStream(new BufferedInputStream(heartbeat));
+        if (requested == WireFormat.TEXT) {
+            return new ServerConnection(socket, heartbeat, in, false);
+        }
+        String reply;
+        try {
+            reply = negotiateProtocol(socket, in, requested == WireFormat.BINARY_DEFLATE);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        if (reply == null) {
+            // A server that predates binary framing; reconnect and use text
+            socket.close();
+            return open(host, port, WireFormat.TEXT);
+        }
+        return new ServerConnection(socket, heartbeat, in, reply.startsWith(BinaryProtocol.HANDSHAKE_OK + BinaryProtocol.VERSION));
+    }
+
+    private static Socket connect(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    // Returns the server's answer, or null if it hung up or didn't answer,
+    // as servers without the handshake do
+    private static String negotiateProtocol(Socket socket, DataInputStream in, boolean deflate) throws IOException {
+        String request = BinaryProtocol.HANDSHAKE + BinaryProtocol.VERSION + (deflate ? BinaryProtocol.DEFLATE : "") + "\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        try {
+            return readLine(in);
+        } catch (SocketTimeoutException e) {
+            return null;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    // Blocks for the answer. The server hangs up after a failure.
+    boolean login(String username, String password) throws IOException {
+        return authenticate(false, username, password);
+    }
+
+    // A registered session can send but is not listed as online; log in on
+    // a new connection to receive messages
+    boolean register(String username, String password) throws IOException {
+        return authenticate(true, username, password);
+    }
+
+    // Takes over a session from a lost connection instead of logging in.
+    // Blocks for the answer; after a failure this connection can still log in.
+    boolean resume(String token, long received) throws IOException {
+        boolean resumed;
+        if (binary) {
+            sendToServer(new BinaryProtocol.FrameWriter(BinaryProtocol.RESUME)
+                    .putString(token)
+                    .putLong(received)
+                    .toBuffer());
+            resumed = readFrame().get() == BinaryProtocol.RESUMED;
+        } else {
+            sendLine("RESUME:" + token + ":" + received);
+            resumed = "RESUMED".equals(readLine(in));
+        }
+        if (resumed) {
+            sessionToken = token;
+            pushesReceived = received;
+        }
+        return resumed;
+    }
+
+    // Asks for a resumable session; the token arrives on the reader thread
+    void startSession() {
+        if (binary) {
+            sendToServer(new BinaryProtocol.FrameWriter(BinaryProtocol.START_SESSION).toBuffer());
+        } else {
+            sendLine("START_SESSION");
+        }
+    }
+
+    // null until the server has sent one
+    String sessionToken() {
+        return sessionToken;
+    }
+
+    long pushesReceived() {
+        return pushesReceived;
+    }
+
+    // Ends the session for good, so the user goes offline at once
+    void logout() {
+        if (binary) {
+            sendToServer(new BinaryProtocol.FrameWriter(BinaryProtocol.LOGOUT).toBuffer());
+        } else {
+            sendLine("LOGOUT");
+        }
+    }
+
+    private boolean authenticate(boolean register, String username, String password) throws IOException {
+        if (binary) {
+            sendToServer(new BinaryProtocol.FrameWriter(register ? BinaryProtocol.REGISTER : BinaryProtocol.LOGIN)
+                    .putString(username)
+                    .putString(password)
+                    .toBuffer());
+            byte response = readFrame().get();
+            return response == BinaryProtocol.AUTH_SUCCESS || response == BinaryProtocol.REGISTER_SUCCESS;
+        }
+        sendLine((register ? "REGISTER:" : "LOGIN:") + username + ":" + password);
+        String response = readLine(in);
+        return "AUTH_SUCCESS".equals(response) || "REGISTER_SUCCESS".equals(response);
+    }
+
+    // Starts delivering server pushes to the listener on a thread from the factory
+    void start(Listener listener, ThreadFactory threadFactory) {
+        try {
+            if (HEARTBEAT_INTERVAL_SECONDS > 0) {
+                heartbeat.start(this);
+                socket.setSoTimeout(HEARTBEAT_INTERVAL_SECONDS * 1000);
+            } else {
+                socket.setSoTimeout(0);
+            }
+        } catch (IOException e) {
+            // Already closed; the reader reports it
+        }
+        threadFactory.newThread(() -> readLoop(listener)).start();
+    }
+
+    void start(Listener listener) {
+        start(listener, r -> new Thread(r, "server-reader"));
+    }
+
+    private void ping() {
+        if (binary) {
+            sendToServer(new BinaryProtocol.FrameWriter(BinaryProtocol.PING).toBuffer());
+        } else {
+            sendLine("PING");
+        }
+    }
+
+    void requestContacts() {
+        if (binary) {
+            sendToServer(new BinaryProtocol.FrameWriter(BinaryProtocol.GET_CONTACTS).toBuffer());
+        } else {
+            sendLine("GET_CONTACTS");
+        }
+    }
+
+    void requestHistoryPage(String contact, int limit, long beforeId) {
+        if (binary) {
+            sendToServer(new BinaryProtocol.FrameWriter(BinaryProtocol.GET_HISTORY_PAGE)
+                    .putString(contact)
+                    .putInt(limit)
+                    .putLong(beforeId)
+                    .toBuffer());
+        } else {
+            sendLine("GET_HISTORY_PAGE:" + contact + ":" + limit + ":" + beforeId);
+        }
+    }
+
+    void requestHistorySince(String contact, long afterId, int limit) {
+        if (binary) {
+            sendToServer(new BinaryProtocol.FrameWriter(BinaryProtocol.GET_HISTORY_SINCE)
+                    .putString(contact)
+                    .putLong(afterId)
+                    .putInt(limit)
+                    .toBuffer());
+        } else {
+            sendLine("GET_HISTORY_SINCE:" + contact + ":" + afterId + ":" + limit);
+        }
+    }
+
+    // The name may not contain : ; or , and members are user names
+    void createGroup(String name, List<String> members) {
+        if (binary) {
+            BinaryProtocol.FrameWriter frame = new BinaryProtocol.FrameWriter(BinaryProtocol.CREATE_GROUP)
+                    .putString(name)
+                    .putInt(members.size());
+            for (String member : members) {
+                frame.putString(member);
+            }
+            sendToServer(frame.toBuffer());
+        } else {
+            sendLine("CREATE_GROUP:" + name + ":" + String.join(",", members));
+        }
+    }
+
+    void sendGroupMessage(String group, String content) {
+        if (binary) {
+            sendToServer(new BinaryProtocol.FrameWriter(BinaryProtocol.GROUP)
+                    .putString(group)
+                    .putString(content)
+                    .toBuffer());
+        } else {
+            sendLine("GROUP:" + group + ":" + content);
+        }
+    }
+
+    void requestGroups() {
+        if (binary) {
+            sendToServer(new BinaryProtocol.FrameWriter(BinaryProtocol.GET_GROUPS).toBuffer());
+        } else {
+            sendLine("GET_GROUPS");
+        }
+    }
+
+    void requestGroupHistory(String group, int limit, long beforeId) {
+        if (binary) {
+            sendToServer(new BinaryProtocol.FrameWriter(BinaryProtocol.GET_GROUP_HISTORY)
+                    .putString(group)
+                    .putInt(limit)
+                    .putLong(beforeId)
+                    .toBuffer());
+        } else {
+            sendLine("GET_GROUP_HISTORY:" + group + ":" + limit + ":" + beforeId);
+        }
+    }
+
+    // Messages matching every term of the query; contact null searches all
+    // conversations. A term ending in * matches as a prefix.
+    void search(String query, String contact, int limit, int offset) {
+        if (binary) {
+            sendToServer(new BinaryProtocol.FrameWriter(BinaryProtocol.SEARCH)
+                    .putString(query)
+                    .putString(contact != null ? contact : "")
+                    .putInt(limit)
+                    .putInt(offset)
+                    .toBuffer());
+        } else {
+            sendLine("SEARCH:" + limit + ":" + offset + ":" + (contact != null ? contact : "") + ":" + query);
+        }
+    }
+
+    void sendPrivateMessage(String recipient, String content) {
+        if (binary) {
+            sendToServer(new BinaryProtocol.FrameWriter(BinaryProtocol.PRIVATE)
+                    .putString(recipient)
+                    .putString(content)
+                    .toBuffer());
+        } else {
+            sendLine("PRIVATE:" + recipient + ":" + content);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    private void readLoop(Listener listener) {
+        IOException cause = null;
+        try {
+            while (true) {
+                if (binary) {
+                    handleServerFrame(readFrame(), listener);
+                } else {
+                    String message = readLine(in);
+                    if (message == null) {
+                        break;
+                    }
+                    handleServerMessage(message, listener);
+                }
+            }
+        } catch (IOException e) {
+            cause = e;
+        }
+        boolean closedHere = closed;
+        close();
+        inflater.end();
+        if (closedHere) {
+            listener.onClose(null);
+        } else {
+            listener.onClose(cause != null ? cause : new EOFException("Connection closed by server"));
+        }
+    }
+
+    private void handleServerMessage(String message, Listener listener) {
+        if (message.startsWith("PRIVATE_MSG:")) {
+            pushesReceived++;
+            String[] parts = message.split(":", 3);
+            listener.onPrivateMessage(parts[1], parts[2]);
+        } else if (message.startsWith("GROUP_MSG:")) {
+            pushesReceived++;
+            String[] parts = message.split(":", 4);
+            if (parts.length == 4) {
+                listener.onGroupMessage(parts[1], parts[2], parts[3]);
+            }
+        } else if (message.startsWith("GROUPS:")) {
+            listener.onGroups(parseGroups(message.substring(7)));
+        } else if (message.startsWith("GROUP_CREATED:") || message.startsWith("GROUP_FAILED:")) {
+            boolean created = message.startsWith("GROUP_CREATED:");
+            listener.onGroupCreated(message.substring(created ? 14 : 13), created);
+        } else if (message.startsWith("GROUP_HISTORY:")) {
+            // group:beforeId:hasMore:id:sender:epochSeconds:message;...
+            String[] header = message.substring(14).split(":", 4);
+            if (header.length == 4) {
+                listener.onGroupHistory(header[0], Long.parseLong(header[1]), "1".equals(header[2]), parseMessages(header[3]));
+            }
+        } else if (message.startsWith("CONTACTS:")) {
+            listener.onContacts(parseStatuses(message.substring(9)));
+        } else if (message.startsWith("ONLINE_UPDATE:")) {
+            pushesReceived++;
+            listener.onOnlineUpdate(parseStatuses(message.substring(14)));
+        } else if (message.startsWith("PENDING_MESSAGES:")) {
+            pushesReceived++;
+            listener.onPendingMessages(parseMessages(message.substring(17)));
+        } else if (message.startsWith("SESSION:")) {
+            // SESSION:token:pushesSent
+            String[] parts = message.split(":", 3);
+            if (parts.length == 3) {
+                pushesReceived = Long.parseLong(parts[2]);
+                sessionToken = parts[1];
+            }
+        } else if (message.startsWith("HISTORY_PAGE:") || message.startsWith("HISTORY_SINCE:")) {
+            // user:cursor:hasMore:id:sender:epochSeconds:message;...
+            boolean since = message.startsWith("HISTORY_SINCE:");
+            String[] header = message.substring(since ? 14 : 13).split(":", 4);
+            if (header.length == 4) {
+                listener.onHistory(since, header[0], Long.parseLong(header[1]), "1".equals(header[2]), parseMessages(header[3]));
+            }
+        } else if (message.startsWith("THROTTLED:")) {
+            // command:retryAfterMillis
+            String[] parts = message.split(":", 3);
+            if (parts.length == 3) {
+                listener.onThrottled(parts[1], Long.parseLong(parts[2]));
+            }
+        } else if (message.equals("PING")) {
+            sendLine("PONG");
+        } else if (message.startsWith("SEARCH_RESULTS:")) {
+            // offset:hasMore:id:contact:sender:epochSeconds:snippet;...
+            String[] header = message.substring(15).split(":", 3);
+            if (header.length == 3) {
+                listener.onSearchResults(Integer.parseInt(header[0]), "1".equals(header[1]), parseSearchHits(header[2]));
+            }
+        }
+    }
+
+    // Field layouts are listed in BinaryProtocol
+    private void handleServerFrame(ByteBuffer frame, Listener listener) {
+        switch (frame.get()) {
+            case BinaryProtocol.PRIVATE_MSG:
+                pushesReceived++;
+                listener.onPrivateMessage(BinaryProtocol.getString(frame), BinaryProtocol.getString(frame));
+                break;
+            case BinaryProtocol.GROUP_MSG:
+                pushesReceived++;
+                listener.onGroupMessage(BinaryProtocol.getString(frame), BinaryProtocol.getString(frame),
+                        BinaryProtocol.getString(frame));
+                break;
+            case BinaryProtocol.GROUPS: {
+                int count = frame.getInt();
+                Map<String, List<String>> groups = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String name = BinaryProtocol.getString(frame);
+                    int size = frame.getInt();
+                    List<String> members = new ArrayList<>(size);
+                    for (int j = 0; j < size; j++) {
+                        members.add(BinaryProtocol.getString(frame));
+                    }
+                    groups.put(name, members);
+                }
+                listener.onGroups(groups);
+                break;
+            }
+            case BinaryProtocol.GROUP_CREATED:
+            case BinaryProtocol.GROUP_FAILED:
+                listener.onGroupCreated(BinaryProtocol.getString(frame), frame.get(0) == BinaryProtocol.GROUP_CREATED);
+                break;
+            case BinaryProtocol.GROUP_HISTORY: {
+                String group = BinaryProtocol.getString(frame);
+                long cursor = frame.getLong();
+                boolean hasMore = BinaryProtocol.getBoolean(frame);
+                listener.onGroupHistory(group, cursor, hasMore, readMessages(frame));
+                break;
+            }
+            case BinaryProtocol.CONTACTS:
+                listener.onContacts(readStatuses(frame));
+                break;
+            case BinaryProtocol.ONLINE_UPDATE:
+                pushesReceived++;
+                listener.onOnlineUpdate(readStatuses(frame));
+                break;
+            case BinaryProtocol.SESSION: {
+                String token = BinaryProtocol.getString(frame);
+                pushesReceived = frame.getLong();
+                sessionToken = token;
+                break;
+            }
+            case BinaryProtocol.HISTORY_PAGE:
+            case BinaryProtocol.HISTORY_SINCE: {
+                boolean since = frame.get(0) == BinaryProtocol.HISTORY_SINCE;
+                String contact = BinaryProtocol.getString(frame);
+                long cursor = frame.getLong();
+                boolean hasMore = BinaryProtocol.getBoolean(frame);
+                listener.onHistory(since, contact, cursor, hasMore, readMessages(frame));
+                break;
+            }
+            case BinaryProtocol.PENDING_MESSAGES:
+                pushesReceived++;
+                listener.onPendingMessages(readMessages(frame));
+                break;
+            case BinaryProtocol.SEARCH_RESULTS: {
+                int offset = frame.getInt();
+                boolean hasMore = BinaryProtocol.getBoolean(frame);
+                int count = frame.getInt();
+                List<SearchHit> hits = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    long id = frame.getLong();
+                    String contact = BinaryProtocol.getString(frame);
+                    String sender = BinaryProtocol.getString(frame);
+                    long sentSeconds = frame.getLong();
+                    hits.add(new SearchHit(id, contact, sender, sentSeconds * 1000, BinaryProtocol.getString(frame)));
+                }
+                listener.onSearchResults(offset, hasMore, hits);
+                break;
+            }
+            case BinaryProtocol.THROTTLED:
+                listener.onThrottled(BinaryProtocol.getString(frame), frame.getInt());
+                break;
+            case BinaryProtocol.SERVER_PING:
+                sendToServer(new BinaryProtocol.FrameWriter(BinaryProtocol.PONG).toBuffer());
+                break;
+            default:
+                break;
+        }
+    }
+
+    // int count, then count x (long id, sender, long epochSeconds, message)
+    private static List<MessageCache.Message> readMessages(ByteBuffer frame) {
+        int count = frame.getInt();
+        List<MessageCache.Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long id = frame.getLong();
+            String sender = BinaryProtocol.getString(frame);
+            long sentSeconds = frame.getLong();
+            messages.add(new MessageCache.Message(id, sender, BinaryProtocol.getString(frame), sentSeconds * 1000));
+        }
+        return messages;
+    }
+
+    private static Map<String, Boolean> readStatuses(ByteBuffer frame) {
+        int count = frame.getInt();
+        Map<String, Boolean> statuses = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            statuses.put(BinaryProtocol.getString(frame), BinaryProtocol.getBoolean(frame));
+        }
+        return statuses;
+    }
+
+    // name,online;... (names may contain commas, the flag never does)
+    private static Map<String, Boolean> parseStatuses(String contactsData) {
+        Map<String, Boolean> statuses = new LinkedHashMap<>();
+        int start = 0;
+        while (start < contactsData.length()) {
+            int end = contactsData.indexOf(';', start);
+            if (end < 0) {
+                end = contactsData.length();
+            }
+            int comma = contactsData.lastIndexOf(',', end - 1);
+            if (comma > start && comma + 1 < end) {
+                statuses.put(contactsData.substring(start, comma), contactsData.charAt(comma + 1) == '1');
+            }
+            start = end + 1;
+        }
+        return statuses;
+    }
+
+    // id:sender:epochSeconds:message;...
+    private static List<MessageCache.Message> parseMessages(String data) {
+        List<MessageCache.Message> messages = new ArrayList<>();
+        for (String msg : data.split(";")) {
+            String[] parts = msg.split(":", 4);
+            if (parts.length == 4) {
+                messages.add(new MessageCache.Message(Long.parseLong(parts[0]), parts[1], parts[3],
+                        Long.parseLong(parts[2]) * 1000));
+            }
+        }
+        return messages;
+    }
+
+    // name:member,member,...;...
+    private static Map<String, List<String>> parseGroups(String data) {
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (String group : data.split(";")) {
+            String[] parts = group.split(":", 2);
+            if (parts.length == 2) {
+                groups.put(parts[0], parts[1].isEmpty() ? new ArrayList<>() : new ArrayList<>(List.of(parts[1].split(","))));
+            }
+        }
+        return groups;
+    }
+
+    // id:contact:sender:epochSeconds:snippet;...
+    private static List<SearchHit> parseSearchHits(String data) {
+        List<SearchHit> hits = new ArrayList<>();
+        for (String hit : data.split(";")) {
+            String[] parts = hit.split(":", 5);
+            if (parts.length == 5) {
+                hits.add(new SearchHit(Long.parseLong(parts[0]), parts[1], parts[2],
+                        Long.parseLong(parts[3]) * 1000, parts[4]));
+            }
+        }
+        return hits;
+    }
+
+    // The socket's input. Once start() turns heartbeats on, a read that times
+    // out pings the server instead of failing, until the server has been
+    // silent for heartbeatTimeout. The timeout never escapes mid-frame, so
+    // no partly read frame is lost.
+    private static class HeartbeatInput extends FilterInputStream {
+        private volatile ServerConnection connection;
+        // Reader thread only, after start()
+        private long lastReceived;
+
+        HeartbeatInput(InputStream in) {
+            super(in);
+        }
+
+        void start(ServerConnection connection) {
+            lastReceived = System.nanoTime();
+            this.connection = connection;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (true) {
+                try {
+                    int b = super.read();
+                    lastReceived = System.nanoTime();
+                    return b;
+                } catch (SocketTimeoutException e) {
+                    quiet(e);
+                }
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (true) {
+                try {
+                    int n = super.read(b, off, len);
+                    lastReceived = System.nanoTime();
+                    return n;
+                } catch (SocketTimeoutException e) {
+                    quiet(e);
+                }
+            }
+        }
+
+        private void quiet(SocketTimeoutException timeout) throws SocketTimeoutException {
+            ServerConnection owner = connection;
+            if (owner == null) {
+                throw timeout;
+            }
+            if (HEARTBEAT_TIMEOUT_SECONDS > 0
+                    && System.nanoTime() - lastReceived >= TimeUnit.SECONDS.toNanos(HEARTBEAT_TIMEOUT_SECONDS)) {
+                throw new SocketTimeoutException("Nothing from the server for " + HEARTBEAT_TIMEOUT_SECONDS + " s");
+            }
+            owner.ping();
+        }
+    }
+
+    // null at end of stream
+    private static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            line.write(b);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    // One frame body, type byte first, already inflated if it came compressed
+    private ByteBuffer readFrame() throws IOException {
+        int length = in.readInt();
+        if (length <= 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        if (body[0] != BinaryProtocol.COMPRESSED) {
+            return ByteBuffer.wrap(body);
+        }
+        // Type byte and inflated size, then the deflated frame
+        if (length < 5) {
+            throw new IOException("Truncated compressed frame");
+        }
+        int inflatedLength = ByteBuffer.wrap(body, 1, 4).getInt();
+        if (inflatedLength <= 0 || inflatedLength > MAX_FRAME_LENGTH) {
+            throw new IOException("Bad inflated frame length " + inflatedLength);
+        }
+        byte[] inflated = new byte[inflatedLength];
+        inflater.reset();
+        inflater.setInput(body, 5, length - 5);
+        try {
+            int size = 0;
+            while (size < inflated.length && !inflater.finished()) {
+                int n = inflater.inflate(inflated, size, inflated.length - size);
+                if (n == 0 && inflater.needsInput()) {
+                    break;
+                }
+                size += n;
+            }
+            if (size != inflated.length) {
+                throw new IOException("Truncated compressed frame");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        }
+        return ByteBuffer.wrap(inflated);
+    }
+
+    private synchronized void sendToServer(ByteBuffer frame) {
+        try {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            out.flush();
+        } catch (IOException e) {
+            // The reader thread reports the lost connection
+        }
+    }
+
+    private void sendLine(String line) {
+        sendToServer(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,212 @@
+// ServerLog.java
+package messenger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Asynchronous server log. log() only stamps the message and offers it to a
+// bounded ring buffer, so a burst of log lines never blocks a worker or grows
+// memory; when the buffer is full the message is dropped and counted. One
+// background thread formats what is queued, writes it to a size-rotated
+// file and/or stdout, and hands each batch to sinks such as the GUI tail.
+final class ServerLog {
+    private static final int BATCH = 256;
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static class Entry {
+        final long millis;
+        final String message;
+
+        Entry(long millis, String message) {
+            this.millis = millis;
+            this.message = message;
+        }
+    }
+
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(ServerConfig.LOG_BUFFER);
+    private static final List<Consumer<List<String>>> sinks = new CopyOnWriteArrayList<>();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final Entry SHUTDOWN = new Entry(0, null);
+
+    private static Path file;
+    private static Writer fileWriter;
+    private static long fileBytes;
+    private static boolean console;
+    private static Thread thread;
+
+    private ServerLog() {
+    }
+
+    // Starts the writer thread. file may be null for no log file.
+    static synchronized void start(Path logFile, boolean toConsole) {
+        if (thread != null) {
+            return;
+        }
+        file = logFile;
+        console = toConsole;
+        if (file != null) {
+            try {
+                openFile();
+            } catch (IOException e) {
+                System.err.println("Cannot open log file " + file + ": " + e.getMessage());
+                file = null;
+            }
+        }
+        thread = new Thread(ServerLog::run, "server-log");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ServerLog::close, "server-log-shutdown"));
+    }
+
+    static void log(String message) {
+        if (!queue.offer(new Entry(System.currentTimeMillis(), message))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    // Receives every batch of formatted lines on the log thread; must not block
+    static void addSink(Consumer<List<String>> sink) {
+        sinks.add(sink);
+    }
+
+    static long dropped() {
+        return dropped.get();
+    }
+
+    // Writes out what is queued and stops the writer thread
+    static void close() {
+        Thread writer = thread;
+        if (writer == null) {
+            return;
+        }
+        try {
+            queue.put(SHUTDOWN);
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void run() {
+        List<Entry> batch = new ArrayList<>(BATCH);
+        List<String> lines = new ArrayList<>(BATCH + 1);
+        long droppedSeen = 0;
+        boolean running = true;
+        while (running) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH - 1);
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            long droppedNow = dropped.get();
+            if (droppedNow > droppedSeen) {
+                lines.add(format(System.currentTimeMillis(), (droppedNow - droppedSeen) + " log messages dropped, the log buffer was full"));
+                droppedSeen = droppedNow;
+            }
+            for (Entry entry : batch) {
+                if (entry == SHUTDOWN) {
+                    running = false;
+                } else {
+                    lines.add(format(entry.millis, entry.message));
+                }
+            }
+            if (!lines.isEmpty()) {
+                write(lines);
+                for (Consumer<List<String>> sink : sinks) {
+                    sink.accept(lines);
+                }
+            }
+            batch.clear();
+            lines = new ArrayList<>(BATCH + 1);
+        }
+        closeFile();
+    }
+
+    private static String format(long millis, String message) {
+        return TIME.format(Instant.ofEpochMilli(millis)) + " " + message;
+    }
+
+    private static void write(List<String> lines) {
+        if (console) {
+            StringBuilder out = new StringBuilder();
+            for (String line : lines) {
+                out.append(line).append('\n');
+            }
+            System.out.print(out);
+            System.out.flush();
+        }
+        if (fileWriter == null) {
+            return;
+        }
+        try {
+            for (String line : lines) {
+                if (ServerConfig.LOG_MAX_MB > 0 && fileBytes >= ServerConfig.LOG_MAX_MB * 1024L * 1024L) {
+                    rotate();
+                }
+                fileWriter.write(line);
+                fileWriter.write('\n');
+                fileBytes += line.length() + 1;
+            }
+            fileWriter.flush();
+        } catch (IOException e) {
+            System.err.println("Writing " + file + " failed: " + e.getMessage());
+        }
+    }
+
+    // server.log -> server.log.1 -> ... -> server.log.<logFiles>, oldest deleted
+    private static void rotate() throws IOException {
+        closeFile();
+        int keep = Math.max(1, ServerConfig.LOG_FILES);
+        Files.deleteIfExists(sibling(keep));
+        for (int i = keep - 1; i >= 1; i--) {
+            Path older = sibling(i);
+            if (Files.exists(older)) {
+                Files.move(older, sibling(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, sibling(1), StandardCopyOption.REPLACE_EXISTING);
+        openFile();
+    }
+
+    private static Path sibling(int generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation);
+    }
+
+    private static void openFile() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        fileBytes = Files.exists(file) ? Files.size(file) : 0;
+        fileWriter = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+    }
+
+    private static void closeFile() {
+        if (fileWriter != null) {
+            try {
+                fileWriter.close();
+            } catch (IOException e) {
+                // Nothing more to write to it
+            }
+            fileWriter = null;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+// ServerWindow.java
+package messenger;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import java.awt.*;
+import java.util.ArrayDeque;
+import java.util.List;
+
+// Optional server window showing the tail of the server log. Only this class
+// touches Swing, so a headless server never loads AWT. Log lines are queued
+// by the log thread and applied at most once per refresh tick, and both that
+// queue and the text area are capped, so a log flood costs a bounded amount
+// of memory and EDT time.
+final class ServerWindow {
+    private static final int REFRESH_MS = 250;
+
+    private final int maxLines;
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private final JTextArea text = new JTextArea();
+
+    private ServerWindow(int maxLines) {
+        this.maxLines = Math.max(1, maxLines);
+    }
+
+    static void open(int maxLines) {
+        ServerWindow window = new ServerWindow(maxLines);
+        ServerLog.addSink(window::append);
+        SwingUtilities.invokeLater(window::show);
+    }
+
+    private void show() {
+        JFrame frame = new JFrame("Messenger Server");
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setSize(600, 500);
+
+        text.setEditable(false);
+        frame.add(new JScrollPane(text), BorderLayout.CENTER);
+        frame.setVisible(true);
+        new Timer(REFRESH_MS, e -> refresh()).start();
+    }
+
+    // Log thread: keep only the newest maxLines not yet shown
+    private void append(List<String> lines) {
+        synchronized (pending) {
+            for (String line : lines) {
+                if (pending.size() == maxLines) {
+                    pending.removeFirst();
+                }
+                pending.addLast(line);
+            }
+        }
+    }
+
+    // EDT
+    private void refresh() {
+        StringBuilder batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = new StringBuilder();
+            for (String line : pending) {
+                batch.append(line).append('\n');
+            }
+            pending.clear();
+        }
+        text.append(batch.toString());
+        int excess = text.getLineCount() - 1 - maxLines;
+        if (excess > 0) {
+            try {
+                text.replaceRange(null, 0, text.getLineStartOffset(excess));
+            } catch (BadLocationException e) {
+                text.setText("");
+            }
+        }
+        text.setCaretPosition(text.getDocument().getLength());
+    }
+}
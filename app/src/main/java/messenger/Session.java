@@ -0,0 +1,166 @@
+// Session.java
+package messenger;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A logged-in user as the rest of the server sees them: the entry in
+// onlineUsers that pushes (PRIVATE_MSG, GROUP_MSG, ONLINE_UPDATE,
+// PENDING_MESSAGES) are sent to. Pushes
+// are numbered and the newest ones kept, up to a byte limit, so once the
+// client has asked for a resumable session it can reconnect after a dropped
+// socket, say how many pushes it received, and get only the rest. Replies
+// to the client's own requests bypass the session and are never replayed.
+final class Session extends ClientConnection {
+    private static final SecureRandom random = new SecureRandom();
+
+    static final AtomicLong resumed = new AtomicLong();
+    static final AtomicLong failedResumes = new AtomicLong();
+    static final AtomicLong replayedFrames = new AtomicLong();
+
+    final String token = newToken();
+    final UserDirectory.User user;
+    private final WireFormat format;
+    private final long bufferLimit;
+
+    private final ArrayDeque<ByteBuffer> sent = new ArrayDeque<>();
+    private long sentBytes;
+    private long pushes;        // numbered from 1; `sent` holds the newest ones
+    private ClientConnection connection;
+    private boolean resumable;
+    private boolean expired;
+    private int detaches;
+
+    Session(UserDirectory.User user, ClientConnection connection, long bufferLimit) {
+        this.user = user;
+        this.connection = connection;
+        this.format = connection.format();
+        this.bufferLimit = bufferLimit;
+    }
+
+    @Override
+    synchronized void sendFrame(ByteBuffer frame) {
+        pushes++;
+        if (resumable) {
+            sent.add(frame);
+            sentBytes += frame.remaining();
+            while (sentBytes > bufferLimit && sent.size() > 1) {
+                sentBytes -= sent.poll().remaining();
+            }
+        }
+        if (connection != null) {
+            connection.sendFrame(frame);
+        }
+    }
+
+    // A push that is only worth sending to a live connection, e.g. one
+    // whose content stays in the database until it arrives. False if the
+    // session is waiting for a resume; nothing is sent or counted then.
+    synchronized boolean sendIfConnected(ByteBuffer frame) {
+        if (connection == null) {
+            return false;
+        }
+        sendFrame(frame);
+        return true;
+    }
+
+    // Sends the token; the client counts pushes from the number it carries
+    synchronized void makeResumable() {
+        resumable = true;
+        if (connection != null) {
+            connection.sendFrame(format.session(token, pushes));
+        }
+    }
+
+    // False while waiting for a resume
+    synchronized boolean isConnected() {
+        return connection != null;
+    }
+
+    synchronized boolean isResumable() {
+        return resumable;
+    }
+
+    // Takes over the session on a new connection and replays the pushes
+    // after the first `received`. Fails if the session expired, the client
+    // switched wire formats or the missing pushes are no longer kept.
+    synchronized boolean resume(ClientConnection newConnection, long received) {
+        long oldest = pushes - sent.size() + 1;
+        if (!resumable || expired || newConnection.format() != format || received > pushes || received < oldest - 1) {
+            return false;
+        }
+        ClientConnection old = connection;
+        connection = newConnection;
+        newConnection.sendFrame(format.resumeResult(true));
+        long seq = oldest;
+        for (ByteBuffer frame : sent) {
+            if (seq++ > received) {
+                newConnection.sendFrame(frame);
+                replayedFrames.incrementAndGet();
+            }
+        }
+        resumed.incrementAndGet();
+        if (old != null) {
+            // Usually already dead, but the server may not have noticed yet
+            old.close();
+        }
+        return true;
+    }
+
+    // Called when `closed` goes away. Returns the number to hand to expire()
+    // later, or -1 if another connection has resumed the session since.
+    synchronized int detach(ClientConnection closed) {
+        if (connection != closed) {
+            return -1;
+        }
+        connection = null;
+        return ++detaches;
+    }
+
+    // Ends the session if nothing resumed it since that detach(); pushes
+    // from then on are only counted
+    synchronized boolean expire(int detach) {
+        if (connection != null || detach != detaches || expired) {
+            return false;
+        }
+        expired = true;
+        sent.clear();
+        sentBytes = 0;
+        return true;
+    }
+
+    // The client logged out; closing its connection now takes the user offline
+    synchronized void end() {
+        resumable = false;
+        expired = true;
+        sent.clear();
+        sentBytes = 0;
+    }
+
+    @Override
+    WireFormat format() {
+        return format;
+    }
+
+    @Override
+    synchronized void close() {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    @Override
+    synchronized String remoteAddress() {
+        return connection != null ? connection.remoteAddress() : "(detached)";
+    }
+
+    // 128 random bits, URL-safe base64 so it fits in a text line
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
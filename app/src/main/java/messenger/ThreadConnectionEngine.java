@@ -0,0 +1,235 @@
+// ThreadConnectionEngine.java
+package messenger;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// Blocking I/O with a reader and a writer thread per connection and no upper bound on threads.
+// Uses virtual threads when the JVM has them (Java 21+), otherwise small-stack
+// platform threads.
+class ThreadConnectionEngine implements ConnectionEngine {
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+    private static final int WRITE_BATCH = 64;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final ThreadFactory threadFactory = connectionThreadFactory();
+    // Open connections, for the idle checks
+    private final Set<BlockingConnection> connections = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public void serve(int port, Function<ClientConnection, ClientConnection.Listener> handlerFactory) throws IOException {
+        if (ClientConnection.HEARTBEATS) {
+            startIdleChecks();
+        }
+        try (ServerSocket serverSocket = new ServerSocket(port, ServerConfig.ACCEPT_BACKLOG)) {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                BlockingConnection connection = new BlockingConnection(socket);
+                connections.add(connection);
+                ClientConnection.Listener listener = handlerFactory.apply(connection);
+                threadFactory.newThread(() -> connection.run(listener)).start();
+            }
+        }
+    }
+
+    // Closing the socket of a dead connection also ends its blocked reader thread
+    private void startIdleChecks() {
+        ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "idle-check");
+            t.setDaemon(true);
+            return t;
+        });
+        checker.scheduleWithFixedDelay(() -> {
+            long now = System.nanoTime();
+            for (BlockingConnection connection : connections) {
+                if (connection.idle(now)) {
+                    connection.closeNow();
+                }
+            }
+        }, ClientConnection.IDLE_CHECK_MILLIS, ClientConnection.IDLE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static ThreadFactory connectionThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "connection-", 0L);
+            Server.log("Using virtual threads for connections");
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger threadCount = new AtomicInteger();
+            return r -> {
+                Thread t = new Thread(null, r, "connection-" + threadCount.incrementAndGet(), PLATFORM_STACK_SIZE);
+                t.setDaemon(true);
+                return t;
+            };
+        }
+    }
+
+    private class BlockingConnection extends ClientConnection {
+        private final Socket socket;
+        private final OutboundQueue outbound = new OutboundQueue(ServerConfig.OUTBOUND_LIMIT, ServerConfig.SLOW_CONSUMER_POLICY);
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean closeRequested;
+        private byte[] lineBuffer = new byte[256];
+
+        BlockingConnection(Socket socket) {
+            this.socket = socket;
+        }
+
+        void run(ClientConnection.Listener listener) {
+            threadFactory.newThread(this::writeLoop).start();
+            // One stream for both framings, so switching to binary loses no buffered bytes
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                while (true) {
+                    if (format() != WireFormat.TEXT) {
+                        ByteBuffer frame = readFrame(in);
+                        received(System.nanoTime());
+                        try {
+                            listener.onFrame(frame);
+                        } catch (RuntimeException e) {
+                            Server.log("Error handling frame from " + remoteAddress() + ": " + e);
+                        }
+                    } else {
+                        String line = readLine(in);
+                        if (line == null) {
+                            break;
+                        }
+                        received(System.nanoTime());
+                        try {
+                            listener.onLine(line);
+                        } catch (RuntimeException e) {
+                            Server.log("Error handling line from " + remoteAddress() + ": " + e);
+                        }
+                    }
+                    // Time spent handling it doesn't count as silence
+                    received(System.nanoTime());
+                }
+            } catch (IOException e) {
+                // Connection reset or closed by us
+            } finally {
+                closeNow();
+                listener.onClose();
+            }
+        }
+
+        // null at end of stream
+        private String readLine(DataInputStream in) throws IOException {
+            int length = 0;
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    return null;
+                }
+                if (length == ServerConfig.MAX_LINE_LENGTH) {
+                    throw new IOException("Line longer than " + ServerConfig.MAX_LINE_LENGTH + " bytes");
+                }
+                if (length == lineBuffer.length) {
+                    lineBuffer = Arrays.copyOf(lineBuffer, Math.min(lineBuffer.length * 2, ServerConfig.MAX_LINE_LENGTH));
+                }
+                lineBuffer[length++] = (byte) b;
+            }
+            Metrics.bytesIn.add(length + 1);
+            if (length > 0 && lineBuffer[length - 1] == '\r') {
+                length--;
+            }
+            return new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+        }
+
+        // EOFException at end of stream
+        private ByteBuffer readFrame(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length <= 0 || length > ServerConfig.MAX_LINE_LENGTH) {
+                throw new IOException("Bad frame length " + length);
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            Metrics.bytesIn.add(4 + length);
+            return ByteBuffer.wrap(body);
+        }
+
+        // Dedicated writer: copies as many queued frames as fit into one
+        // buffer and writes them with a single call, so a slow reader only
+        // ever blocks this thread.
+        private void writeLoop() {
+            ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+            byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+            try {
+                OutputStream out = socket.getOutputStream();
+                int count;
+                while ((count = outbound.take(batch, WRITE_BUFFER_SIZE)) > 0) {
+                    int length = 0;
+                    for (int i = 0; i < count; i++) {
+                        ByteBuffer frame = batch[i];
+                        batch[i] = null;
+                        Metrics.bytesOut.add(frame.remaining());
+                        if (length + frame.remaining() > buffer.length) {
+                            out.write(buffer, 0, length);
+                            length = 0;
+                        }
+                        if (frame.remaining() > buffer.length) {
+                            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                        } else {
+                            int size = frame.remaining();
+                            frame.get(buffer, length, size);
+                            length += size;
+                        }
+                    }
+                    out.write(buffer, 0, length);
+                }
+            } catch (IOException | InterruptedException e) {
+                // Socket closed underneath us
+            } finally {
+                closeNow();
+            }
+        }
+
+        @Override
+        void sendFrame(ByteBuffer frame) {
+            if (closeRequested || closed.get()) {
+                return;
+            }
+            if (!outbound.offer(frame.duplicate())) {
+                Server.log("Disconnecting slow client " + remoteAddress());
+                closeNow();
+            }
+        }
+
+        @Override
+        void close() {
+            closeRequested = true;
+            outbound.finish();
+        }
+
+        private void closeNow() {
+            if (closed.compareAndSet(false, true)) {
+                connections.remove(this);
+                outbound.close();
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    Server.log("Error closing socket: " + e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        String remoteAddress() {
+            return String.valueOf(socket.getRemoteSocketAddress());
+        }
+    }
+}
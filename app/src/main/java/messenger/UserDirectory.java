@@ -0,0 +1,107 @@
+// UserDirectory.java
+package messenger;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Every user's id, name and online flag, loaded once at startup and kept up
+// to date on registration and login/logout, so the message path, contact
+// lists and presence never query the users table. A name that isn't known
+// yet is looked up in the database once and then cached.
+class UserDirectory {
+    // Rough per-user cost: the User object, two map nodes and boxed id
+    private static final int ENTRY_OVERHEAD_BYTES = 160;
+
+    static class User {
+        final long id;
+        final String name;
+        volatile boolean online;
+        // Writes that leave a message undelivered for this user and haven't
+        // committed yet; while there are none, a reader sees everything pending
+        final AtomicInteger undeliveredWrites = new AtomicInteger();
+
+        User(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private final Database database;
+    private final ConcurrentHashMap<String, User> byName = new ConcurrentHashMap<>();
+    // Ordered by id, i.e. registration order, for contact lists
+    private final ConcurrentSkipListMap<Long, User> byId = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong estimatedBytes = new AtomicLong();
+
+    UserDirectory(Database database) {
+        this.database = database;
+    }
+
+    void load() throws SQLException {
+        try (Database.PooledConnection db = database.reader("load_users")) {
+            PreparedStatement stmt = db.prepare("SELECT id, username FROM users");
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    add(rs.getLong("id"), rs.getString("username"));
+                }
+            }
+        }
+    }
+
+    // null if there is no such user
+    User find(String name) throws SQLException {
+        User user = byName.get(name);
+        if (user != null) {
+            hits.incrementAndGet();
+            return user;
+        }
+        misses.incrementAndGet();
+        try (Database.PooledConnection db = database.reader("find_user")) {
+            PreparedStatement stmt = db.prepare("SELECT id FROM users WHERE username = ?");
+            stmt.setString(1, name);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? add(rs.getLong("id"), name) : null;
+            }
+        }
+    }
+
+    User find(long id) {
+        User user = byId.get(id);
+        (user != null ? hits : misses).incrementAndGet();
+        return user;
+    }
+
+    User add(long id, String name) {
+        User user = new User(id, name);
+        User existing = byName.putIfAbsent(name, user);
+        if (existing != null) {
+            return existing;
+        }
+        byId.put(id, user);
+        estimatedBytes.addAndGet(ENTRY_OVERHEAD_BYTES + 2L * name.length());
+        return user;
+    }
+
+    Collection<User> all() {
+        return byId.values();
+    }
+
+    int size() {
+        return byName.size();
+    }
+
+    String stats() {
+        long total = hits.get() + misses.get();
+        return String.format("User directory: %d users, ~%d KB, %d hits, %d misses (%.1f%% hit ratio)",
+                size(), estimatedBytes.get() / 1024, hits.get(), misses.get(),
+                total == 0 ? 100.0 : 100.0 * hits.get() / total);
+    }
+}
@@ -0,0 +1,335 @@
+// WireFormat.java
+package messenger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+// How the server encodes what it sends to one connection: the original
+// newline text protocol, or binary frames (optionally compressed) once the
+// client negotiated them.
+// Every method returns a ready-to-write buffer, which may be shared by many
+// connections.
+enum WireFormat {
+    TEXT {
+        @Override
+        ByteBuffer authResult(boolean register, boolean success) {
+            return line(register ? (success ? "REGISTER_SUCCESS" : "REGISTER_FAILED")
+                                 : (success ? "AUTH_SUCCESS" : "AUTH_FAILED"));
+        }
+
+        @Override
+        ByteBuffer privateMessage(String sender, String content) {
+            return line("PRIVATE_MSG:" + sender + ":" + content);
+        }
+
+        // CONTACTS:name,online;... or ONLINE_UPDATE:name,online;...
+        @Override
+        ByteBuffer presence(boolean contactList, Map<String, Boolean> statuses) {
+            StringBuilder frame = new StringBuilder(contactList ? "CONTACTS:" : "ONLINE_UPDATE:");
+            for (Map.Entry<String, Boolean> status : statuses.entrySet()) {
+                frame.append(status.getKey())
+                     .append(",")
+                     .append(status.getValue() ? "1" : "0")
+                     .append(";");
+            }
+            return line(frame.toString());
+        }
+
+        // HISTORY_PAGE|HISTORY_SINCE:user:cursor:hasMore:id:sender:epochSeconds:message;...
+        @Override
+        ByteBuffer history(boolean since, String otherUser, long cursor, boolean hasMore, List<HistoryEntry> entries) {
+            StringBuilder frame = new StringBuilder(since ? "HISTORY_SINCE:" : "HISTORY_PAGE:")
+                    .append(otherUser).append(":")
+                    .append(cursor).append(":")
+                    .append(hasMore ? "1" : "0").append(":");
+            for (HistoryEntry entry : entries) {
+                frame.append(entry.id).append(":")
+                     .append(entry.sender).append(":")
+                     .append(entry.sentSeconds).append(":")
+                     .append(entry.message).append(";");
+            }
+            return line(frame.toString());
+        }
+
+        // PENDING_MESSAGES:id:sender:epochSeconds:message;...
+        @Override
+        ByteBuffer pendingMessages(List<HistoryEntry> entries) {
+            StringBuilder frame = new StringBuilder("PENDING_MESSAGES:");
+            for (HistoryEntry entry : entries) {
+                frame.append(entry.id).append(":")
+                     .append(entry.sender).append(":")
+                     .append(entry.sentSeconds).append(":")
+                     .append(entry.message).append(";");
+            }
+            return line(frame.toString());
+        }
+
+        @Override
+        ByteBuffer groupMessage(String group, String sender, String content) {
+            return line("GROUP_MSG:" + group + ":" + sender + ":" + content);
+        }
+
+        // GROUPS:name:member,member,...;...
+        @Override
+        ByteBuffer groups(Map<String, ? extends Collection<String>> groups) {
+            StringBuilder frame = new StringBuilder("GROUPS:");
+            for (Map.Entry<String, ? extends Collection<String>> group : groups.entrySet()) {
+                frame.append(group.getKey()).append(":")
+                     .append(String.join(",", group.getValue())).append(";");
+            }
+            return line(frame.toString());
+        }
+
+        @Override
+        ByteBuffer groupResult(String group, boolean created) {
+            return line((created ? "GROUP_CREATED:" : "GROUP_FAILED:") + group);
+        }
+
+        // GROUP_HISTORY:group:cursor:hasMore:id:sender:epochSeconds:message;...
+        @Override
+        ByteBuffer groupHistory(String group, long cursor, boolean hasMore, List<HistoryEntry> entries) {
+            StringBuilder frame = new StringBuilder("GROUP_HISTORY:")
+                    .append(group).append(":")
+                    .append(cursor).append(":")
+                    .append(hasMore ? "1" : "0").append(":");
+            for (HistoryEntry entry : entries) {
+                frame.append(entry.id).append(":")
+                     .append(entry.sender).append(":")
+                     .append(entry.sentSeconds).append(":")
+                     .append(entry.message).append(";");
+            }
+            return line(frame.toString());
+        }
+
+        // SEARCH_RESULTS:offset:hasMore:id:contact:sender:epochSeconds:snippet;...
+        @Override
+        ByteBuffer searchResults(int offset, boolean hasMore, List<SearchHit> hits) {
+            StringBuilder frame = new StringBuilder("SEARCH_RESULTS:")
+                    .append(offset).append(":")
+                    .append(hasMore ? "1" : "0").append(":");
+            for (SearchHit hit : hits) {
+                frame.append(hit.id).append(":")
+                     .append(hit.contact).append(":")
+                     .append(hit.sender).append(":")
+                     .append(hit.sentSeconds).append(":")
+                     .append(hit.snippet).append(";");
+            }
+            return line(frame.toString());
+        }
+
+        // THROTTLED:command:retryAfterMillis
+        @Override
+        ByteBuffer throttled(String command, long retryAfterMillis) {
+            return line("THROTTLED:" + command + ":" + retryAfterMillis);
+        }
+
+        @Override
+        ByteBuffer ping() {
+            return line("PING");
+        }
+
+        @Override
+        ByteBuffer pong() {
+            return line("PONG");
+        }
+
+        // SESSION:token:pushesSent
+        @Override
+        ByteBuffer session(String token, long pushes) {
+            return line("SESSION:" + token + ":" + pushes);
+        }
+
+        @Override
+        ByteBuffer resumeResult(boolean success) {
+            return line(success ? "RESUMED" : "RESUME_FAILED");
+        }
+    },
+
+    BINARY,
+
+    // Binary frames, deflated when they are large enough to be worth it
+    BINARY_DEFLATE {
+        @Override
+        ByteBuffer finish(ByteBuffer frame) {
+            return FrameCompression.compress(frame);
+        }
+    };
+
+    static class HistoryEntry {
+        final long id;
+        final String sender;
+        final long sentSeconds;
+        final String message;
+
+        HistoryEntry(long id, String sender, long sentSeconds, String message) {
+            this.id = id;
+            this.sender = sender;
+            this.sentSeconds = sentSeconds;
+            this.message = message;
+        }
+    }
+
+    // One search result; contact is the other side of the conversation
+    static class SearchHit {
+        final long id;
+        final String contact;
+        final String sender;
+        final long sentSeconds;
+        final String snippet;
+
+        SearchHit(long id, String contact, String sender, long sentSeconds, String snippet) {
+            this.id = id;
+            this.contact = contact;
+            this.sender = sender;
+            this.sentSeconds = sentSeconds;
+            this.snippet = snippet;
+        }
+    }
+
+    // The binary encodings; TEXT overrides all of them
+
+    ByteBuffer authResult(boolean register, boolean success) {
+        return finish(new BinaryProtocol.FrameWriter(register
+                ? (success ? BinaryProtocol.REGISTER_SUCCESS : BinaryProtocol.REGISTER_FAILED)
+                : (success ? BinaryProtocol.AUTH_SUCCESS : BinaryProtocol.AUTH_FAILED)).toBuffer());
+    }
+
+    ByteBuffer privateMessage(String sender, String content) {
+        return finish(new BinaryProtocol.FrameWriter(BinaryProtocol.PRIVATE_MSG)
+                .putString(sender)
+                .putString(content)
+                .toBuffer());
+    }
+
+    ByteBuffer presence(boolean contactList, Map<String, Boolean> statuses) {
+        BinaryProtocol.FrameWriter frame = new BinaryProtocol.FrameWriter(
+                contactList ? BinaryProtocol.CONTACTS : BinaryProtocol.ONLINE_UPDATE);
+        frame.putInt(statuses.size());
+        for (Map.Entry<String, Boolean> status : statuses.entrySet()) {
+            frame.putString(status.getKey()).putBoolean(status.getValue());
+        }
+        return finish(frame.toBuffer());
+    }
+
+    // One page of history, oldest first
+    ByteBuffer history(boolean since, String otherUser, long cursor, boolean hasMore, List<HistoryEntry> entries) {
+        BinaryProtocol.FrameWriter frame = new BinaryProtocol.FrameWriter(
+                since ? BinaryProtocol.HISTORY_SINCE : BinaryProtocol.HISTORY_PAGE);
+        frame.putString(otherUser).putLong(cursor).putBoolean(hasMore).putInt(entries.size());
+        for (HistoryEntry entry : entries) {
+            frame.putLong(entry.id)
+                 .putString(entry.sender)
+                 .putLong(entry.sentSeconds)
+                 .putString(entry.message);
+        }
+        return finish(frame.toBuffer());
+    }
+
+    // Messages that arrived while the recipient was offline, oldest first
+    ByteBuffer pendingMessages(List<HistoryEntry> entries) {
+        BinaryProtocol.FrameWriter frame = new BinaryProtocol.FrameWriter(BinaryProtocol.PENDING_MESSAGES);
+        frame.putInt(entries.size());
+        for (HistoryEntry entry : entries) {
+            frame.putLong(entry.id)
+                 .putString(entry.sender)
+                 .putLong(entry.sentSeconds)
+                 .putString(entry.message);
+        }
+        return finish(frame.toBuffer());
+    }
+
+    ByteBuffer groupMessage(String group, String sender, String content) {
+        return finish(new BinaryProtocol.FrameWriter(BinaryProtocol.GROUP_MSG)
+                .putString(group)
+                .putString(sender)
+                .putString(content)
+                .toBuffer());
+    }
+
+    // The groups a user belongs to, each with its members
+    ByteBuffer groups(Map<String, ? extends Collection<String>> groups) {
+        BinaryProtocol.FrameWriter frame = new BinaryProtocol.FrameWriter(BinaryProtocol.GROUPS);
+        frame.putInt(groups.size());
+        for (Map.Entry<String, ? extends Collection<String>> group : groups.entrySet()) {
+            frame.putString(group.getKey()).putInt(group.getValue().size());
+            for (String member : group.getValue()) {
+                frame.putString(member);
+            }
+        }
+        return finish(frame.toBuffer());
+    }
+
+    ByteBuffer groupResult(String group, boolean created) {
+        return finish(new BinaryProtocol.FrameWriter(created ? BinaryProtocol.GROUP_CREATED : BinaryProtocol.GROUP_FAILED)
+                .putString(group)
+                .toBuffer());
+    }
+
+    // One page of a group's history, oldest first
+    ByteBuffer groupHistory(String group, long cursor, boolean hasMore, List<HistoryEntry> entries) {
+        BinaryProtocol.FrameWriter frame = new BinaryProtocol.FrameWriter(BinaryProtocol.GROUP_HISTORY);
+        frame.putString(group).putLong(cursor).putBoolean(hasMore).putInt(entries.size());
+        for (HistoryEntry entry : entries) {
+            frame.putLong(entry.id)
+                 .putString(entry.sender)
+                 .putLong(entry.sentSeconds)
+                 .putString(entry.message);
+        }
+        return finish(frame.toBuffer());
+    }
+
+    // One page of search results, best match first
+    ByteBuffer searchResults(int offset, boolean hasMore, List<SearchHit> hits) {
+        BinaryProtocol.FrameWriter frame = new BinaryProtocol.FrameWriter(BinaryProtocol.SEARCH_RESULTS);
+        frame.putInt(offset).putBoolean(hasMore).putInt(hits.size());
+        for (SearchHit hit : hits) {
+            frame.putLong(hit.id)
+                 .putString(hit.contact)
+                 .putString(hit.sender)
+                 .putLong(hit.sentSeconds)
+                 .putString(hit.snippet);
+        }
+        return finish(frame.toBuffer());
+    }
+
+    // A command turned down by a rate limit, and when it may be tried again
+    ByteBuffer throttled(String command, long retryAfterMillis) {
+        return finish(new BinaryProtocol.FrameWriter(BinaryProtocol.THROTTLED)
+                .putString(command)
+                .putInt((int) Math.min(retryAfterMillis, Integer.MAX_VALUE))
+                .toBuffer());
+    }
+
+    // Heartbeats: asks the client to answer, and answers the client's PING
+    ByteBuffer ping() {
+        return finish(new BinaryProtocol.FrameWriter(BinaryProtocol.SERVER_PING).toBuffer());
+    }
+
+    ByteBuffer pong() {
+        return finish(new BinaryProtocol.FrameWriter(BinaryProtocol.SERVER_PONG).toBuffer());
+    }
+
+    // A resumable session's token and how many push frames it has sent so far
+    ByteBuffer session(String token, long pushes) {
+        return finish(new BinaryProtocol.FrameWriter(BinaryProtocol.SESSION)
+                .putString(token)
+                .putLong(pushes)
+                .toBuffer());
+    }
+
+    ByteBuffer resumeResult(boolean success) {
+        return finish(new BinaryProtocol.FrameWriter(success ? BinaryProtocol.RESUMED : BinaryProtocol.RESUME_FAILED).toBuffer());
+    }
+
+    // Last step for every encoded binary frame
+    ByteBuffer finish(ByteBuffer frame) {
+        return frame;
+    }
+
+    static ByteBuffer line(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,65 @@
+// LatencyHistogramTest.java
+package messenger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+    @Test
+    void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentileNanos(99));
+        assertEquals(0, histogram.meanNanos());
+        assertArrayEquals(new long[] {0, 0}, histogram.cumulativeCounts(new long[] {1000}));
+    }
+
+    @Test
+    void percentilesAreWithinOneBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1 us to 10 ms
+        for (int i = 1; i <= 10_000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(10_000, histogram.count());
+        assertEquals(10_000_000, histogram.maxNanos());
+        assertEquals(5_000_500, histogram.meanNanos(), 1);
+        for (double percent : new double[] {1, 50, 90, 99, 99.9}) {
+            long exact = (long) Math.ceil(percent / 100.0 * 10_000) * 1000;
+            long reported = histogram.percentileNanos(percent);
+            // An upper bound, at most one bucket (12.5%) above
+            assertTrue(reported >= exact && reported <= exact * 1.125, percent + ": " + reported + " for " + exact);
+        }
+        assertEquals(10_000_000, histogram.percentileNanos(100));
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(3);
+        histogram.record(7);
+
+        assertEquals(0, histogram.percentileNanos(30));
+        assertEquals(3, histogram.percentileNanos(50));
+        assertEquals(7, histogram.percentileNanos(100));
+    }
+
+    @Test
+    void cumulativeCountsPerBound() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.record(1_000);
+        histogram.record(1_000_000);
+
+        // 1000 shares a bucket reaching above the 1000 bound, so it counts above it
+        assertArrayEquals(new long[] {1, 1, 2, 3, 3},
+                histogram.cumulativeCounts(new long[] {500, 1_000, 10_000, 1_000_000_000}));
+    }
+}
@@ -0,0 +1,150 @@
+// OutboundQueueTest.java
+package messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+// The slow-consumer policies and the writer's side of the queue
+class OutboundQueueTest {
+    private static final int FRAME_BYTES = 8;
+
+    @Test
+    void framesComeOutInOrderInBatches() {
+        OutboundQueue queue = new OutboundQueue(1000, OutboundQueue.Policy.DISCONNECT);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(frame(i)));
+        }
+
+        ByteBuffer[] batch = new ByteBuffer[3];
+        assertEquals(3, queue.poll(batch, Integer.MAX_VALUE));
+        assertSequence(batch, 3, 0);
+        assertEquals(2, queue.poll(batch, Integer.MAX_VALUE));
+        assertSequence(batch, 2, 3);
+        assertEquals(0, queue.poll(batch, Integer.MAX_VALUE));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void oneFrameIsTakenEvenOverTheLimit() {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.Policy.DISCONNECT);
+
+        assertTrue(queue.offer(frame(0)));
+        assertFalse(queue.offer(frame(1)));
+    }
+
+    @Test
+    void dropDiscardsFramesOverTheLimit() {
+        OutboundQueue queue = new OutboundQueue(2 * FRAME_BYTES, OutboundQueue.Policy.DROP);
+        long dropped = OutboundQueue.droppedFrames.get();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(frame(i)));
+        }
+
+        assertEquals(dropped + 2, OutboundQueue.droppedFrames.get());
+        assertEquals(List.of(0, 1), drain(queue));
+
+        // Room again once the writer caught up
+        assertTrue(queue.offer(frame(4)));
+        assertEquals(List.of(4), drain(queue));
+    }
+
+    @Test
+    void disconnectAsksForTheConnectionToBeClosed() {
+        OutboundQueue queue = new OutboundQueue(2 * FRAME_BYTES, OutboundQueue.Policy.DISCONNECT);
+        long disconnected = OutboundQueue.disconnectedConsumers.get();
+
+        assertTrue(queue.offer(frame(0)));
+        assertTrue(queue.offer(frame(1)));
+        assertFalse(queue.offer(frame(2)));
+        assertEquals(disconnected + 1, OutboundQueue.disconnectedConsumers.get());
+    }
+
+    @Test
+    void spillKeepsEveryFrameInOrder() {
+        OutboundQueue queue = new OutboundQueue(4 * FRAME_BYTES, OutboundQueue.Policy.SPILL);
+        long spilled = OutboundQueue.spilledBytes.get();
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(queue.offer(frame(i)));
+            expected.add(i);
+        }
+        assertEquals(spilled + 96 * FRAME_BYTES, OutboundQueue.spilledBytes.get());
+
+        // Frames offered while the file is being replayed go behind it
+        List<Integer> received = new ArrayList<>();
+        ByteBuffer[] batch = new ByteBuffer[2];
+        int count = queue.poll(batch, Integer.MAX_VALUE);
+        for (int i = 0; i < count; i++) {
+            received.add(batch[i].getInt(4));
+        }
+        assertTrue(queue.offer(frame(100)));
+        expected.add(100);
+        received.addAll(drain(queue));
+
+        assertEquals(expected, received);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void closeDiscardsFramesAndWakesTheWriter() throws Exception {
+        OutboundQueue queue = new OutboundQueue(1000, OutboundQueue.Policy.SPILL);
+        CompletableFuture<Integer> taken = CompletableFuture.supplyAsync(() -> take(queue));
+
+        queue.close();
+
+        assertEquals(0, taken.get(10, TimeUnit.SECONDS));
+        assertTrue(queue.offer(frame(0)));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void finishLetsTheWriterDrainTheRest() {
+        OutboundQueue queue = new OutboundQueue(1000, OutboundQueue.Policy.DISCONNECT);
+        queue.offer(frame(0));
+        queue.finish();
+
+        assertEquals(1, take(queue));
+        assertEquals(0, take(queue));
+    }
+
+    // A frame whose body is its sequence number
+    private static ByteBuffer frame(int sequence) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_BYTES);
+        frame.putInt(FRAME_BYTES - 4).putInt(sequence).flip();
+        return frame;
+    }
+
+    private static List<Integer> drain(OutboundQueue queue) {
+        List<Integer> sequences = new ArrayList<>();
+        ByteBuffer[] batch = new ByteBuffer[16];
+        int count;
+        while ((count = queue.poll(batch, Integer.MAX_VALUE)) > 0) {
+            for (int i = 0; i < count; i++) {
+                sequences.add(batch[i].getInt(4));
+            }
+        }
+        return sequences;
+    }
+
+    private static int take(OutboundQueue queue) {
+        try {
+            return queue.take(new ByteBuffer[16], Integer.MAX_VALUE);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void assertSequence(ByteBuffer[] batch, int count, int first) {
+        for (int i = 0; i < count; i++) {
+            assertEquals(first + i, batch[i].getInt(4));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+// RateLimiterTest.java
+package messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class RateLimiterTest {
+
+    @Test
+    void burstThenRefill() throws Exception {
+        RateLimiter limiter = new RateLimiter(new RateLimiter.Limit(20, 2), Map.of(), 0);
+
+        assertEquals(0, limiter.acquire("alice", Metrics.Command.PRIVATE));
+        assertEquals(0, limiter.acquire("alice", Metrics.Command.PRIVATE));
+        long wait = limiter.acquire("alice", Metrics.Command.PRIVATE);
+        assertTrue(wait > 0 && wait <= 50, "wait " + wait);
+        // Other users have their own buckets
+        assertEquals(0, limiter.acquire("bob", Metrics.Command.PRIVATE));
+
+        Thread.sleep(wait + 20);
+        assertEquals(0, limiter.acquire("alice", Metrics.Command.PRIVATE));
+        assertEquals(1, limiter.rejections());
+    }
+
+    @Test
+    void rejectedCommandSpendsNoTokens() {
+        Map<Metrics.Command, RateLimiter.Limit> limits = new EnumMap<>(Metrics.Command.class);
+        limits.put(Metrics.Command.SEARCH, new RateLimiter.Limit(0.001, 1));
+        RateLimiter limiter = new RateLimiter(new RateLimiter.Limit(0.001, 2), limits, 0);
+
+        assertEquals(0, limiter.acquire("alice", Metrics.Command.SEARCH));
+        assertTrue(limiter.acquire("alice", Metrics.Command.SEARCH) > 0);
+        // The rejected SEARCH left the user's second token alone
+        assertEquals(0, limiter.acquire("alice", Metrics.Command.PRIVATE));
+        assertTrue(limiter.acquire("alice", Metrics.Command.PRIVATE) > 0);
+    }
+
+    @Test
+    void expensiveCommandsShareAServerWideLimit() {
+        RateLimiter limiter = new RateLimiter(null, Map.of(), 1);
+
+        assertEquals(0, limiter.acquire("alice", Metrics.Command.SEARCH));
+        assertTrue(limiter.acquire("bob", Metrics.Command.GET_HISTORY_PAGE) > 0);
+        // Cheap commands don't count
+        assertEquals(0, limiter.acquire("bob", Metrics.Command.PRIVATE));
+        limiter.release(Metrics.Command.PRIVATE);
+        assertEquals(1, limiter.expensiveRunning());
+
+        limiter.release(Metrics.Command.SEARCH);
+        assertEquals(0, limiter.acquire("bob", Metrics.Command.GET_HISTORY_PAGE));
+        limiter.release(Metrics.Command.GET_HISTORY_PAGE);
+        assertEquals(0, limiter.expensiveRunning());
+    }
+
+    @Test
+    void usersIdleUntilTheirBucketsAreFullArePruned() {
+        RateLimiter limiter = new RateLimiter(new RateLimiter.Limit(1000, 1), Map.of(), 0);
+        limiter.acquire("alice", Metrics.Command.PRIVATE);
+        limiter.acquire("bob", Metrics.Command.PRIVATE);
+        assertEquals(2, limiter.trackedUsers());
+
+        limiter.pruneIdle(System.nanoTime() + TimeUnit.MINUTES.toNanos(2));
+        assertEquals(0, limiter.trackedUsers());
+        // A pruned user starts again with a full bucket
+        assertEquals(0, limiter.acquire("alice", Metrics.Command.PRIVATE));
+        assertEquals(1, limiter.trackedUsers());
+    }
+
+    @Test
+    void usersStillRefillingAreKept() {
+        RateLimiter limiter = new RateLimiter(new RateLimiter.Limit(0.001, 1), Map.of(), 0);
+        limiter.acquire("alice", Metrics.Command.PRIVATE);
+
+        limiter.pruneIdle(System.nanoTime() + TimeUnit.MINUTES.toNanos(2));
+        assertEquals(1, limiter.trackedUsers());
+        assertTrue(limiter.acquire("alice", Metrics.Command.PRIVATE) > 0);
+    }
+
+    @Test
+    void parseSkipsInvalidEntries() {
+        Map<Metrics.Command, RateLimiter.Limit> limits = RateLimiter.parse("SEARCH=1/5, BOGUS=1/2, GET_HISTORY=0.2");
+
+        assertEquals(1, limits.size());
+        assertEquals(1, limits.get(Metrics.Command.SEARCH).rate);
+        assertEquals(5, limits.get(Metrics.Command.SEARCH).burst);
+        assertNull(RateLimiter.parseLimit(" "));
+    }
+}
@@ -0,0 +1,162 @@
+// SessionTest.java
+package messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+// Resumable sessions over text connections, so frames read as lines
+class SessionTest {
+    private static final UserDirectory.User ALICE = new UserDirectory.User(1, "alice");
+
+    @Test
+    void pushesGoStraightToTheConnection() {
+        RecordingConnection connection = new RecordingConnection();
+        Session session = new Session(ALICE, connection, 1 << 20);
+
+        session.sendFrame(push(1));
+        assertEquals(List.of("PRIVATE_MSG:bob:1"), connection.lines);
+    }
+
+    @Test
+    void resumeReplaysOnlyThePushesTheClientMissed() {
+        RecordingConnection first = new RecordingConnection();
+        Session session = new Session(ALICE, first, 1 << 20);
+        session.makeResumable();
+        assertEquals(List.of("SESSION:" + session.token + ":0"), first.lines);
+        for (int i = 1; i <= 3; i++) {
+            session.sendFrame(push(i));
+        }
+
+        assertEquals(1, session.detach(first));
+        assertFalse(session.isConnected());
+        session.sendFrame(push(4));
+        assertFalse(session.sendIfConnected(push(5)));
+
+        // The client saw the first two pushes before the connection died
+        RecordingConnection second = new RecordingConnection();
+        assertTrue(session.resume(second, 2));
+        assertTrue(session.isConnected());
+        assertEquals(List.of("RESUMED", "PRIVATE_MSG:bob:3", "PRIVATE_MSG:bob:4"), second.lines);
+
+        assertTrue(session.sendIfConnected(push(5)));
+        assertEquals("PRIVATE_MSG:bob:5", second.lines.get(3));
+    }
+
+    @Test
+    void resumeClosesAConnectionNotYetDetached() {
+        RecordingConnection first = new RecordingConnection();
+        Session session = new Session(ALICE, first, 1 << 20);
+        session.makeResumable();
+
+        assertTrue(session.resume(new RecordingConnection(), 0));
+        assertTrue(first.closed);
+        assertEquals(-1, session.detach(first));
+    }
+
+    @Test
+    void resumeFailsAfterExpiry() {
+        RecordingConnection first = new RecordingConnection();
+        Session session = new Session(ALICE, first, 1 << 20);
+        session.makeResumable();
+        int detach = session.detach(first);
+
+        assertTrue(session.expire(detach));
+        assertFalse(session.resume(new RecordingConnection(), 0));
+    }
+
+    @Test
+    void expiryOfAnEarlierDetachIsIgnored() {
+        RecordingConnection first = new RecordingConnection();
+        Session session = new Session(ALICE, first, 1 << 20);
+        session.makeResumable();
+        int detach = session.detach(first);
+        RecordingConnection second = new RecordingConnection();
+        assertTrue(session.resume(second, 0));
+
+        assertEquals(-1, session.detach(first));
+        assertFalse(session.expire(detach));
+        session.detach(second);
+        assertTrue(session.resume(new RecordingConnection(), 0));
+    }
+
+    @Test
+    void resumeFailsOnAnotherWireFormat() {
+        RecordingConnection first = new RecordingConnection();
+        Session session = new Session(ALICE, first, 1 << 20);
+        session.makeResumable();
+        session.detach(first);
+
+        RecordingConnection binary = new RecordingConnection();
+        binary.useBinaryFraming(WireFormat.BINARY);
+        assertFalse(session.resume(binary, 0));
+        assertTrue(binary.lines.isEmpty());
+        assertTrue(session.resume(new RecordingConnection(), 0));
+    }
+
+    @Test
+    void resumeFailsWhenMissedPushesWereDropped() {
+        RecordingConnection first = new RecordingConnection();
+        int pushBytes = push(1).remaining();
+        // Room for the two newest pushes only
+        Session session = new Session(ALICE, first, 2 * pushBytes);
+        session.makeResumable();
+        for (int i = 1; i <= 5; i++) {
+            session.sendFrame(push(i));
+        }
+        session.detach(first);
+
+        assertFalse(session.resume(new RecordingConnection(), 2));
+        // Nor may the client claim pushes that were never sent
+        assertFalse(session.resume(new RecordingConnection(), 6));
+        RecordingConnection second = new RecordingConnection();
+        assertTrue(session.resume(second, 3));
+        assertEquals(List.of("RESUMED", "PRIVATE_MSG:bob:4", "PRIVATE_MSG:bob:5"), second.lines);
+    }
+
+    @Test
+    void endedSessionCannotBeResumed() {
+        RecordingConnection first = new RecordingConnection();
+        Session session = new Session(ALICE, first, 1 << 20);
+        session.makeResumable();
+        session.end();
+        session.detach(first);
+
+        assertFalse(session.resume(new RecordingConnection(), 0));
+    }
+
+    private static ByteBuffer push(int n) {
+        return WireFormat.TEXT.privateMessage("bob", Integer.toString(n));
+    }
+
+    // Keeps what it is sent, one line per frame
+    private static class RecordingConnection extends ClientConnection {
+        final List<String> lines = new ArrayList<>();
+        boolean closed;
+
+        @Override
+        void sendFrame(ByteBuffer frame) {
+            ByteBuffer copy = frame.duplicate();
+            byte[] bytes = new byte[copy.remaining()];
+            copy.get(bytes);
+            String line = new String(bytes, StandardCharsets.UTF_8);
+            lines.add(line.endsWith("\n") ? line.substring(0, line.length() - 1) : line);
+        }
+
+        @Override
+        void close() {
+            closed = true;
+        }
+
+        @Override
+        String remoteAddress() {
+            return "test";
+        }
+    }
+}
@@ -0,0 +1,218 @@
+// WireFormatTest.java
+package messenger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+import org.junit.jupiter.api.Test;
+
+// The server's encodings against BinaryProtocol's readers, FrameCompression
+// against java.util.zip, and ServerConnection decoding what the server sends
+class WireFormatTest {
+
+    @Test
+    void binaryPrivateMessageRoundTrips() {
+        ByteBuffer frame = WireFormat.BINARY.privateMessage("al:ice", "a;b:c\nd ünïcöde");
+
+        assertEquals(frame.remaining() - 4, frame.getInt());
+        assertEquals(BinaryProtocol.PRIVATE_MSG, frame.get());
+        assertEquals("al:ice", BinaryProtocol.getString(frame));
+        assertEquals("a;b:c\nd ünïcöde", BinaryProtocol.getString(frame));
+        assertFalse(frame.hasRemaining());
+    }
+
+    @Test
+    void textPrivateMessageIsOneLine() {
+        assertEquals("PRIVATE_MSG:alice:hi there\n", string(WireFormat.TEXT.privateMessage("alice", "hi there")));
+    }
+
+    @Test
+    void binaryHistoryRoundTrips() {
+        ByteBuffer frame = WireFormat.BINARY.history(false, "bob", 42, true, entries(3));
+
+        frame.getInt();
+        assertEquals(BinaryProtocol.HISTORY_PAGE, frame.get());
+        assertEquals("bob", BinaryProtocol.getString(frame));
+        assertEquals(42, frame.getLong());
+        assertTrue(BinaryProtocol.getBoolean(frame));
+        assertEquals(3, frame.getInt());
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(i, frame.getLong());
+            assertEquals("sender" + i, BinaryProtocol.getString(frame));
+            assertEquals(1_700_000_000L + i, frame.getLong());
+            assertEquals("message " + i, BinaryProtocol.getString(frame));
+        }
+        assertFalse(frame.hasRemaining());
+    }
+
+    @Test
+    void smallFramesAreNotCompressed() {
+        ByteBuffer frame = WireFormat.BINARY.privateMessage("alice", "hi");
+
+        assertSame(frame, FrameCompression.compress(frame));
+        assertArrayEquals(bytes(frame), bytes(WireFormat.BINARY_DEFLATE.privateMessage("alice", "hi")));
+    }
+
+    @Test
+    void incompressibleFramesAreSentAsTheyAre() {
+        byte[] noise = new byte[4096];
+        new Random(1).nextBytes(noise);
+        ByteBuffer frame = ByteBuffer.allocate(4 + 1 + noise.length);
+        frame.putInt(1 + noise.length).put(BinaryProtocol.PRIVATE_MSG).put(noise).flip();
+
+        assertSame(frame, FrameCompression.compress(frame));
+    }
+
+    @Test
+    void compressedFrameInflatesToTheOriginalBody() throws Exception {
+        byte[] plain = bytes(WireFormat.BINARY.history(true, "bob", 7, false, entries(200)));
+        ByteBuffer compressed = WireFormat.BINARY_DEFLATE.history(true, "bob", 7, false, entries(200));
+
+        assertTrue(compressed.remaining() < plain.length);
+        assertEquals(compressed.remaining() - 4, compressed.getInt());
+        assertEquals(BinaryProtocol.COMPRESSED, compressed.get());
+        int bodyLength = compressed.getInt();
+        assertEquals(plain.length - 4, bodyLength);
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(bytes(compressed));
+        byte[] body = new byte[bodyLength];
+        int size = 0;
+        while (size < body.length && !inflater.finished()) {
+            size += inflater.inflate(body, size, body.length - size);
+        }
+        inflater.end();
+        assertEquals(bodyLength, size);
+        assertArrayEquals(Arrays.copyOfRange(plain, 4, plain.length), body);
+    }
+
+    @Test
+    void clientDecodesCompressedFrames() throws Exception {
+        BlockingQueue<List<MessageCache.Message>> histories = new LinkedBlockingQueue<>();
+        BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread fake = serve(server, "PROTOCOL_OK:1:deflate",
+                    WireFormat.BINARY_DEFLATE.history(false, "bob", 0, false, entries(200)),
+                    WireFormat.BINARY_DEFLATE.privateMessage("bob", "after the history"));
+            ServerConnection connection = ServerConnection.open("127.0.0.1", server.getLocalPort(), WireFormat.BINARY_DEFLATE);
+            try {
+                assertTrue(connection.isBinary());
+                connection.start(new ServerConnection.Listener() {
+                    @Override
+                    public void onHistory(boolean since, String contact, long cursor, boolean hasMore,
+                                          List<MessageCache.Message> page) {
+                        histories.add(page);
+                    }
+
+                    @Override
+                    public void onPrivateMessage(String sender, String content) {
+                        messages.add(sender + ":" + content);
+                    }
+                });
+
+                List<MessageCache.Message> page = histories.poll(10, TimeUnit.SECONDS);
+                assertNotNull(page);
+                assertEquals(200, page.size());
+                MessageCache.Message last = page.get(199);
+                assertEquals(200, last.id);
+                assertEquals("sender200", last.sender);
+                assertEquals("message 200", last.content);
+                assertEquals((1_700_000_000L + 200) * 1000, last.sentMillis);
+                assertEquals("bob:after the history", messages.poll(10, TimeUnit.SECONDS));
+            } finally {
+                connection.close();
+                fake.join(10_000);
+            }
+        }
+    }
+
+    @Test
+    void clientRejectsOversizedFrames() throws Exception {
+        BlockingQueue<String> closes = new LinkedBlockingQueue<>();
+        ByteBuffer oversized = ByteBuffer.allocate(5).putInt(Integer.MAX_VALUE).put(BinaryProtocol.PRIVATE_MSG);
+        oversized.flip();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread fake = serve(server, "PROTOCOL_OK:1", oversized);
+            ServerConnection connection = ServerConnection.open("127.0.0.1", server.getLocalPort(), WireFormat.BINARY);
+            try {
+                connection.start(new ServerConnection.Listener() {
+                    @Override
+                    public void onClose(IOException cause) {
+                        closes.add(cause == null ? "" : cause.getMessage());
+                    }
+                });
+
+                assertEquals("Bad frame length " + Integer.MAX_VALUE, closes.poll(10, TimeUnit.SECONDS));
+            } finally {
+                connection.close();
+                fake.join(10_000);
+            }
+        }
+    }
+
+    // Answers the handshake, writes the frames and waits for the client to hang up
+    private static Thread serve(ServerSocket server, String handshakeReply, ByteBuffer... frames) {
+        Thread thread = new Thread(() -> {
+            try (Socket socket = server.accept()) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                int b;
+                while ((b = in.read()) != '\n' && b >= 0) {
+                    // The PROTOCOL line
+                }
+                OutputStream out = socket.getOutputStream();
+                out.write((handshakeReply + "\n").getBytes(StandardCharsets.UTF_8));
+                for (ByteBuffer frame : frames) {
+                    out.write(bytes(frame));
+                }
+                out.flush();
+                while (in.read() >= 0) {
+                    // Pings, until the client closes
+                }
+            } catch (IOException e) {
+                // The client went away
+            }
+        }, "fake-server");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static List<WireFormat.HistoryEntry> entries(int count) {
+        List<WireFormat.HistoryEntry> entries = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            entries.add(new WireFormat.HistoryEntry(i, "sender" + i, 1_700_000_000L + i, "message " + i));
+        }
+        return entries;
+    }
+
+    private static byte[] bytes(ByteBuffer frame) {
+        ByteBuffer copy = frame.duplicate();
+        byte[] bytes = new byte[copy.remaining()];
+        copy.get(bytes);
+        return bytes;
+    }
+
+    private static String string(ByteBuffer frame) {
+        return new String(bytes(frame), StandardCharsets.UTF_8);
+    }
+}
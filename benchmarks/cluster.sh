@@ -0,0 +1,41 @@
+#!/bin/sh
+# Runs the load test against clusters of 1 to 4 server processes on this
+# host, all sharing one fresh database, and prints the message throughput of
+# each size. Users are spread over the nodes, so most messages cross a link.
+#   benchmarks/cluster.sh [sessions] [seconds] [max nodes]
+# Other load settings pass through, e.g. LOAD_OPTS="-Dload.rate=5"
+set -e
+cd "$(dirname "$0")/.."
+sessions=${1:-2000}
+seconds=${2:-60}
+max_nodes=${3:-4}
+port=22345
+link_port=23345
+mvn -B -q package -DskipTests
+work=$(mktemp -d)
+trap 'kill $(cat "$work"/*.pid 2>/dev/null) 2>/dev/null; rm -rf "$work"' EXIT
+
+for nodes in $(seq 1 "$max_nodes"); do
+    cluster=""
+    for i in $(seq 0 $((nodes - 1))); do
+        cluster="$cluster${cluster:+,}127.0.0.1:$((link_port + i))"
+    done
+    [ "$nodes" -gt 1 ] || cluster=""
+    rm -f "$work"/messenger.db*
+    for i in $(seq 0 $((nodes - 1))); do
+        java -Dmessenger.port=$((port + i)) -Dmessenger.node="$i" -Dmessenger.cluster="$cluster" \
+             -Dmessenger.db="jdbc:sqlite:$work/messenger.db" -Dmessenger.metricsPort=0 \
+             -Dmessenger.logFile="$work/node$i.log" \
+             -jar app/target/messenger.jar --headless > /dev/null 2>&1 &
+        echo $! > "$work/node$i.pid"
+        # The first node creates the schema before the others open it
+        sleep 2
+    done
+    sleep 2
+    echo "== $nodes node(s)"
+    java -Dload.nodes="$nodes" $LOAD_OPTS -cp app/target/messenger.jar messenger.LoadTest \
+         localhost "$port" "$sessions" "$seconds" | grep -E "^(Sessions|Messages|Delivery latency):" || true
+    kill $(cat "$work"/*.pid) 2>/dev/null || true
+    wait 2>/dev/null || true
+    rm -f "$work"/*.pid
+done
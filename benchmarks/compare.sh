@@ -0,0 +1,23 @@
+#!/bin/sh
+# Compares two JMH result files, one line per benchmark and parameter set:
+# the old and new score and the change in percent (negative is faster for
+# the average-time benchmarks here). Needs jq.
+#   benchmarks/compare.sh benchmarks/results/abc1234.json benchmarks/results/def5678.json
+set -e
+if [ $# -ne 2 ]; then
+    echo "usage: $0 <old.json> <new.json>" >&2
+    exit 1
+fi
+jq -r -n --slurpfile old "$1" --slurpfile new "$2" '
+    def num: . * 1000 | round / 1000;
+    def key: .benchmark + ((.params // {}) | to_entries | map(" " + .key + "=" + .value) | join(""));
+    ($old[0] | map({(key): .primaryMetric}) | add) as $before
+    | $new[0][]
+    | key as $k
+    | $before[$k] as $b
+    | if $b == null then
+          "\($k)\tnew\t\(.primaryMetric.score | num) \(.primaryMetric.scoreUnit)"
+      else
+          "\($k)\t\($b.score | num) -> \(.primaryMetric.score | num) \(.primaryMetric.scoreUnit)\t\((.primaryMetric.score - $b.score) / $b.score * 100 | . * 10 | round / 10)%"
+      end
+'
@@ -0,0 +1,14 @@
+#!/bin/sh
+# Builds the benchmarks and runs them, saving the JMH results as
+# benchmarks/results/<commit>.json so runs on different commits can be compared
+# with compare.sh. Extra arguments go to JMH, e.g. ./run.sh PresenceBenchmark -f 3
+set -e
+cd "$(dirname "$0")/.."
+commit=$(git rev-parse --short HEAD)
+if [ -n "$(git status --porcelain -- app benchmarks)" ]; then
+    commit="$commit-dirty"
+fi
+mvn -B -q package -DskipTests
+mkdir -p benchmarks/results
+java -jar benchmarks/target/benchmarks.jar -rf json -rff "benchmarks/results/$commit.json" "$@"
+echo "Results saved to benchmarks/results/$commit.json"
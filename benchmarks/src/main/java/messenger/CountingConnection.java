@@ -0,0 +1,30 @@
+// CountingConnection.java
+package messenger;
+
+import java.nio.ByteBuffer;
+
+// Benchmark stand-in for a client connection: frames are only counted, so
+// fan-out benchmarks measure encoding, not socket writes
+class CountingConnection extends ClientConnection {
+    long bytes;
+
+    CountingConnection(WireFormat format) {
+        if (format != WireFormat.TEXT) {
+            useBinaryFraming(format);
+        }
+    }
+
+    @Override
+    void sendFrame(ByteBuffer frame) {
+        bytes += frame.remaining();
+    }
+
+    @Override
+    void close() {
+    }
+
+    @Override
+    String remoteAddress() {
+        return "benchmark";
+    }
+}
@@ -0,0 +1,68 @@
+// GroupFanoutBenchmark.java
+package messenger;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// One group message pushed to every online member of a group of the given
+// size: GroupFanout, which encodes the frame once per wire format, against
+// encoding it for each member, which is what sending the same text N times
+// as private messages costs. Connections only count bytes, so this measures
+// encoding and fan-out, not socket writes.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GroupFanoutBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int members;
+
+    // Share of the members that negotiated binary framing
+    @Param({"0", "100"})
+    int binaryPercent;
+
+    private Map<String, ClientConnection> onlineUsers;
+    private GroupDirectory.Group group;
+    private GroupFanout fanout;
+    private String content;
+
+    @Setup
+    public void setup() {
+        onlineUsers = new ConcurrentHashMap<>();
+        List<UserDirectory.User> users = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            boolean binary = i * 100 < binaryPercent * members;
+            users.add(new UserDirectory.User(i + 1, "user" + i));
+            onlineUsers.put("user" + i, new CountingConnection(binary ? WireFormat.BINARY : WireFormat.TEXT));
+        }
+        group = new GroupDirectory.Group(1, "team", users);
+        fanout = new GroupFanout(onlineUsers);
+        content = "Stand-up moved to 10:30, same room as last week. Bring the release notes.";
+    }
+
+    @Benchmark
+    public int encodeOnce() {
+        return fanout.send(group, "user0", content);
+    }
+
+    @Benchmark
+    public int encodePerMember() {
+        int sent = 0;
+        for (UserDirectory.User member : group.members()) {
+            ClientConnection client = onlineUsers.get(member.name);
+            if (client != null && !member.name.equals("user0")) {
+                client.sendFrame(client.format().groupMessage(group.name, "user0", content));
+                sent++;
+            }
+        }
+        return sent;
+    }
+}
@@ -0,0 +1,47 @@
+// HistoryBenchmark.java
+package messenger;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Serializing a conversation history into one HISTORY_PAGE frame. The small
+// sizes are normal pages; 1M rows shows how the encoders scale when a legacy
+// client asks for everything at once.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class HistoryBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    int rows;
+
+    @Param({"TEXT", "BINARY", "BINARY_DEFLATE"})
+    String formatName;
+
+    private WireFormat format;
+    private List<WireFormat.HistoryEntry> entries;
+
+    @Setup
+    public void setup() {
+        format = WireFormat.valueOf(formatName);
+        entries = new ArrayList<>(rows);
+        long sentSeconds = 1_700_000_000L;
+        for (int i = 0; i < rows; i++) {
+            String sender = i % 2 == 0 ? "alice" : "bob";
+            entries.add(new WireFormat.HistoryEntry(i + 1, sender, sentSeconds + i,
+                    "message number " + i + " in a fairly ordinary chat"));
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer encodePage() {
+        return format.history(false, "bob", 1, true, entries);
+    }
+}
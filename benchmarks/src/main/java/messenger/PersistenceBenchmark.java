@@ -0,0 +1,90 @@
+// PersistenceBenchmark.java
+package messenger;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Storing messages through MessageWriter into a fresh SQLite file, as the
+// server does: one sender waiting for each message, and a burst of messages
+// that group commit can share one transaction between.
+// Run with -jvmArgsAppend -Dmessenger.dbSynchronous=NORMAL to compare
+// synchronous modes.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PersistenceBenchmark {
+    private static final int BURST = 256;
+
+    @Param({"0", "5"})
+    int batchDelayMillis;
+
+    private Path directory;
+    private Database database;
+    private MessageWriter writer;
+    private long alice;
+    private long bob;
+    private String content;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        directory = Files.createTempDirectory("messenger-bench");
+        database = new Database("jdbc:sqlite:" + directory.resolve("messenger.db"), 1);
+        alice = addUser("alice");
+        bob = addUser("bob");
+        content = "An ordinary chat message of about sixty characters in length";
+        writer = new MessageWriter(database, new RecentMessages(200, 64L << 20),
+                BURST, batchDelayMillis, 50_000);
+        writer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        writer.close();
+        database.close();
+        File[] files = directory.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    // Latency of one message when nothing else is being written
+    @Benchmark
+    public long storeOne() {
+        return writer.submit(alice, bob, content, true).join();
+    }
+
+    // Per-message cost when a burst arrives at once
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public long storeBurst() {
+        CompletableFuture<Long> last = null;
+        for (int i = 0; i < BURST; i++) {
+            last = writer.submit(i % 2 == 0 ? alice : bob, i % 2 == 0 ? bob : alice, content, true);
+        }
+        return last.join();
+    }
+
+    private long addUser(String name) throws SQLException {
+        try (Database.PooledConnection db = database.writer("add_user")) {
+            PreparedStatement stmt = db.prepare("INSERT INTO users(username, password) VALUES(?, ?)");
+            stmt.setString(1, name);
+            stmt.setString(2, "password");
+            stmt.executeUpdate();
+            return db.lastInsertId();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+// PresenceBenchmark.java
+package messenger;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Presence fan-out with a given number of users online: one login delta sent
+// to everybody, and the periodic full snapshot of every online user.
+// Connections only count frames, so this measures encoding and fan-out, not
+// socket writes.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PresenceBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    int online;
+
+    // Share of the online users that negotiated binary framing
+    @Param({"0", "50", "100"})
+    int binaryPercent;
+
+    private ScheduledExecutorService scheduler;
+    private PresenceBroadcaster presence;
+    private Map<String, Boolean> delta;
+    private Map<String, Boolean> snapshot;
+
+    @Setup
+    public void setup() {
+        Map<String, ClientConnection> onlineUsers = new ConcurrentHashMap<>();
+        snapshot = new LinkedHashMap<>();
+        for (int i = 0; i < online; i++) {
+            boolean binary = i * 100 < binaryPercent * online;
+            onlineUsers.put("user" + i, new CountingConnection(binary ? WireFormat.BINARY : WireFormat.TEXT));
+            snapshot.put("user" + i, true);
+        }
+        delta = new LinkedHashMap<>();
+        delta.put("newcomer", true);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        presence = new PresenceBroadcaster(onlineUsers, scheduler, 100);
+    }
+
+    @TearDown
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public void broadcastDelta() {
+        presence.broadcast(delta);
+    }
+
+    @Benchmark
+    public void broadcastSnapshot() {
+        presence.broadcast(snapshot);
+    }
+}
@@ -0,0 +1,82 @@
+// ProtocolBenchmark.java
+package messenger;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Cost of one chat message on the wire: encoding PRIVATE_MSG for the
+// recipient and decoding the sender's PRIVATE command, text versus binary.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+
+    @Param({"16", "256", "4096"})
+    int messageLength;
+
+    private String sender;
+    private String content;
+    private byte[] textLine;
+    private ByteBuffer binaryBody;
+
+    @Setup
+    public void setup() {
+        sender = "alice";
+        StringBuilder text = new StringBuilder(messageLength);
+        for (int i = 0; i < messageLength; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        content = text.toString();
+
+        textLine = ("PRIVATE:bob:" + content).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = new BinaryProtocol.FrameWriter(BinaryProtocol.PRIVATE)
+                .putString("bob")
+                .putString(content)
+                .toBuffer();
+        frame.position(4);
+        binaryBody = frame.slice();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeText() {
+        return WireFormat.TEXT.privateMessage(sender, content);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinary() {
+        return WireFormat.BINARY.privateMessage(sender, content);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinaryDeflate() {
+        return WireFormat.BINARY_DEFLATE.privateMessage(sender, content);
+    }
+
+    // What the engines and ClientHandler.onLine do with one PRIVATE line
+    @Benchmark
+    public void decodeText(Blackhole blackhole) {
+        String line = new String(textLine, StandardCharsets.UTF_8);
+        if (line.startsWith("PRIVATE:")) {
+            String[] parts = line.split(":", 3);
+            blackhole.consume(parts[1]);
+            blackhole.consume(parts[2]);
+        }
+    }
+
+    // What ClientHandler.onFrame does with one PRIVATE frame
+    @Benchmark
+    public void decodeBinary(Blackhole blackhole) {
+        ByteBuffer frame = binaryBody.duplicate();
+        if (frame.get() == BinaryProtocol.PRIVATE) {
+            blackhole.consume(BinaryProtocol.getString(frame));
+            blackhole.consume(BinaryProtocol.getString(frame));
+        }
+    }
+}
@@ -13,4 +13,4 @@ if "%1"=="" (
 )
 echo Connecting to server at %1:12345
 echo.
-java -cp .;sqlite-jdbc-3.50.2.0.jar Client %1 
\ No newline at end of file
+java -cp app\target\messenger.jar messenger.Client %1 
\ No newline at end of file
@@ -12,8 +12,8 @@ echo.
 echo Starting server on port 12345...
 echo.
 echo To connect from other devices, use:
-echo java -cp .;sqlite-jdbc-3.50.2.0.jar Client YOUR_IP_ADDRESS
+echo java -cp app\target\messenger.jar messenger.Client YOUR_IP_ADDRESS
 echo.
 echo Press any key to start the server...
 pause > nul
-java -cp .;sqlite-jdbc-3.50.2.0.jar Server 
\ No newline at end of file
+java -jar app\target\messenger.jar 
\ No newline at end of file